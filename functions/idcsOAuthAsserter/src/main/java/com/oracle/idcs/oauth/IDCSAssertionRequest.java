@@ -7,29 +7,42 @@ package com.oracle.idcs.oauth;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.http.HttpHeaders;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
-
+import com.oracle.idcs.oauth.util.Deadline;
+import com.oracle.idcs.oauth.util.DeadlineExceededException;
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.StringJoiner;
 import java.util.UUID;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import static com.oracle.idcs.oauth.util.Constants.*;
 
 public class IDCSAssertionRequest {
 
-    private final Logger logger = Logger.getLogger(IDCSAssertionRequest.class.getName());
+    private static final EventLog logger = EventLog.get(IDCSAssertionRequest.class.getName());
 
     // Constants
     private final String TOKEN_URL         = "/oauth2/v1/token";
     private final long DEFAULT_EXPIRY_TIME = (60 * 60 * 1000);
+    // Token request timeout, shortened to what is left of the invocation
+    private final long REQUEST_TIMEOUT_MS  = 30000;
+
+    // Shared by every assertion of the container, negotiates HTTP/2 with IDCS over ALPN (HTTP/1.1 otherwise)
+    // and keeps the connection open between calls instead of connecting for each token
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
 
     private String idcsURL;
     private String identityDomain;
@@ -70,24 +83,35 @@ public class IDCSAssertionRequest {
             buildSignetJWTs();
         }
 
-        HttpClient client = HttpClients.custom().build();
-        RequestBuilder builder = RequestBuilder.post().setUri( idcsURL + TOKEN_URL ).
-                setHeader(HttpHeaders.CONTENT_TYPE, "application/x-www-form-urlencoded; charset=utf-8").
-                setHeader("X-USER-IDENTITY-DOMAIN-NAME", identityDomain);
-        builder.addParameter("grant_type", GRANT_TYPE)
-                .addParameter("assertion", signedJWTBuilderUser.build())
-                .addParameter("client_assertion_type", CLIENT_ASSERTION_TYPE)
-                .addParameter("client_assertion", signedJWTBuilderClient.build())
-                .addParameter("client_id", clientID)
-                .addParameter("scope", scope);
-        HttpUriRequest request = builder.build();
-
-        logger.log(Level.INFO, "IDCS Assertion Request: " + request.getRequestLine());
-
-        HttpResponse response = client.execute(request);
-        String responseJson = EntityUtils.toString(response.getEntity());
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("grant_type", GRANT_TYPE);
+        parameters.put("assertion", signedJWTBuilderUser.build());
+        parameters.put("client_assertion_type", CLIENT_ASSERTION_TYPE);
+        parameters.put("client_assertion", signedJWTBuilderClient.build());
+        parameters.put("client_id", clientID);
+        parameters.put("scope", scope);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(idcsURL + TOKEN_URL)).
+                header("Content-Type", "application/x-www-form-urlencoded; charset=utf-8").
+                header("X-USER-IDENTITY-DOMAIN-NAME", identityDomain).
+                POST(HttpRequest.BodyPublishers.ofString(formEncode(parameters))).
+                timeout(Duration.ofMillis(Deadline.current().timeoutMs(REQUEST_TIMEOUT_MS, "calling IDCS"))).
+                build();
+
+        logger.info("asserter.idcs.request", "method", request.method(), "uri", request.uri());
+
+        HttpResponse<String> response;
+        try {
+            response = CLIENT.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        } catch (HttpTimeoutException e) {
+            if (Deadline.current().isExpired()) {
+                throw new DeadlineExceededException("Invocation time budget spent waiting for IDCS");
+            }
+            throw e;
+        }
+        String responseJson = response.body();
 
-        logger.log(Level.FINEST,"ResponseJson: " + responseJson);
+        // Never the body, it holds the access token
+        logger.fine("asserter.idcs.response", "version", response.version(), "status", response.statusCode());
 
         ObjectMapper mapper = new ObjectMapper();
         JsonNode json = mapper.readTree(responseJson);
@@ -99,6 +123,15 @@ public class IDCSAssertionRequest {
     }
 
 
+    private static String formEncode(Map<String, String> parameters) {
+        StringJoiner form = new StringJoiner("&");
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            form.add(URLEncoder.encode(parameter.getKey(), StandardCharsets.UTF_8) + "="
+                    + URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8));
+        }
+        return form.toString();
+    }
+
     /**
      * Build both, User and Client Signed JWT Assertions. As it is required to have the keystore prepared to build JWT
      * Assertions, this method initialize the keystore to be used for both.
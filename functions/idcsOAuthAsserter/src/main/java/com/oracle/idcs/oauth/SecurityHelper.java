@@ -18,6 +18,10 @@ import com.oracle.bmc.secrets.SecretsClient;
 import com.oracle.bmc.secrets.model.Base64SecretBundleContentDetails;
 import com.oracle.bmc.secrets.requests.GetSecretBundleRequest;
 import com.oracle.bmc.secrets.responses.GetSecretBundleResponse;
+import com.oracle.idcs.oauth.util.Deadline;
+import com.oracle.idcs.oauth.util.DeadlineExceededException;
+import com.oracle.idcs.oauth.util.EventLog;
+import com.oracle.idcs.oauth.util.OutboundExecutor;
 import org.apache.commons.io.FileUtils;
 
 import java.io.File;
@@ -26,8 +30,12 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import static com.oracle.idcs.oauth.util.Constants.*;
 
@@ -35,7 +43,7 @@ public class SecurityHelper {
 
     public static final String FN_PREFIX = "Fn-Http-H-";
 
-    private final Logger logger = Logger.getLogger(SecurityHelper.class.getName());
+    private static final EventLog logger = EventLog.get(SecurityHelper.class.getName());
 
     private final String TOKEN_BEARER_PREFIX = "Bearer ";
     private final String API_GATEWAY_CUSTOM_HEADER = "Authorization";
@@ -43,10 +51,19 @@ public class SecurityHelper {
     private Map<String,String> securityProps;
 
     private String username;
+    // Issuer, tenant and sub of the user token, the same sub may belong to different users in other domains or tenants
+    private String cacheKey;
 
     private boolean useCacheToken = false;
 
-    private static SecretsClient secretsClient;                              // For Vault usage
+    // For Vault usage, created once per container, also by the background token refresher
+    private static volatile SecretsClient secretsClient;
+    // Runs the Vault calls of an assertion side by side, on virtual threads when the runtime has them
+    private static final ExecutorService vaultExecutor = OutboundExecutor.newExecutor("idcs-vault", 3);
+
+    // Shared by all SecurityHelper instances of the container, which are usually created per request
+    private static final TokenRefresher tokenRefresher = new TokenRefresher();
+    private boolean tokenRefresh = false;
 
     private String localOciConfigFilePath = LOCAL_OCI_CONFIG_FILE_PATH;
     private String localOciProfile = LOCAL_OCI_PROFILE;
@@ -71,6 +88,7 @@ public class SecurityHelper {
             securityProps.put(KEYSTORE_PATH, CERTS_DIR + KEYSTORE_NAME);
         }
         useCacheToken = Boolean.parseBoolean(this.securityProps.get(USE_CACHE_TOKEN));
+        tokenRefresh = Boolean.parseBoolean(this.securityProps.get(TOKEN_REFRESH));
     }
 
     /**
@@ -81,9 +99,12 @@ public class SecurityHelper {
     public SecurityHelper(RuntimeContext ctx) {
         initSecurityProps(ctx);
         useCacheToken = Boolean.parseBoolean(this.securityProps.get(USE_CACHE_TOKEN));
+        tokenRefresh = Boolean.parseBoolean(this.securityProps.get(TOKEN_REFRESH));
 
-        logger.log(Level.FINEST, "Security Props: ");
-        securityProps.forEach( (k,v)-> logger.log(Level.FINEST, "KEY: [" + k + "] -- VALUE: [" + v + "]") );
+        // Values of secret keys are redacted by the log
+        if (logger.isLoggable(Level.FINEST)) {
+            securityProps.forEach((k, v) -> logger.finest("asserter.prop", k, v));
+        }
     }
 
     /**
@@ -108,6 +129,9 @@ public class SecurityHelper {
         securityProps.put(SECRET_PK_PASS_ID       , ctx.getConfigurationByKey(SECRET_PK_PASS_ID).orElse(""));
 
         securityProps.put(USE_CACHE_TOKEN, ctx.getConfigurationByKey(USE_CACHE_TOKEN).orElse("true") );
+        securityProps.put(TOKEN_REFRESH, ctx.getConfigurationByKey(TOKEN_REFRESH).orElse("false") );
+        securityProps.put(TOKEN_REFRESH_MARGIN_S, ctx.getConfigurationByKey(TOKEN_REFRESH_MARGIN_S).orElse("120") );
+        securityProps.put(TOKEN_REFRESH_IDLE_S, ctx.getConfigurationByKey(TOKEN_REFRESH_IDLE_S).orElse("900") );
 
         /// This is specific from function, so it can be as constant or from FN Config
         securityProps.put(KEYSTORE_PATH, CERTS_DIR + KEYSTORE_NAME);
@@ -122,7 +146,7 @@ public class SecurityHelper {
      * @throws Exception if one of the mandatory props is missing.
      */
     private void validateMandatoryProps() throws Exception {
-        logger.log(Level.INFO, "Validating mandatory properties for IDCS Assertion.");
+        logger.fine("asserter.props.validate");
         String [] mandatoryProps = new String[]{IDCS_URL, CLIENT_ID, KEY_ID, SCOPE, AUDIENCE, IDDOMAIN,
                                                 SECRET_KEYSTORE_ID, SECRET_KS_PASS_ID, SECRET_PK_PASS_ID};
         int missingProps = 0;
@@ -132,7 +156,7 @@ public class SecurityHelper {
                 continue;
             }
             missingProps ++;
-            logger.log(Level.SEVERE, "Mandatory Property missing: " + prop);
+            logger.severe("asserter.prop.missing", "key", prop);
         }
         if(missingProps > 0) {
             throw new Exception("There are missing mandatory Properties for IDCS Assertion. Check logs for details.");
@@ -187,7 +211,9 @@ public class SecurityHelper {
         // extractSubject
         String fieldSub = "sub";
         username = getBearerTokenFields(jwtToken, fieldSub).get(fieldSub);
-        logger.log(Level.INFO, "Username = " + username);
+        JsonNode claims = getBearerTokenClaims(jwtToken);
+        cacheKey = String.join("|", claims.path("iss").asText(), claims.path("tenant").asText(), username);
+        logger.info("asserter.principal", "username", username);
         return this;
     }
 
@@ -210,25 +236,43 @@ public class SecurityHelper {
         //       to be used. In such case, if the request hits a container without he token the assertion will be performed
         //       as usual. We need to found a better cache approach able to propagate the valid token across all the backed
         //       containers that.
-        logger.log(Level.INFO, "useCacheToken: " + useCacheToken);
+        if (useCacheToken && tokenRefresh) {
+            // Keeps renewing this principal's cached token while it stays active
+            tokenRefresher.touch(cacheKey, principal, this::assertAccessToken,
+                    Long.parseLong(securityProps.getOrDefault(TOKEN_REFRESH_MARGIN_S, "120")) * 1000,
+                    Long.parseLong(securityProps.getOrDefault(TOKEN_REFRESH_IDLE_S, "900")) * 1000);
+        }
         if (useCacheToken) {
-            String cachedToken = System.getProperty(CACHED_BEARER_TOKEN + "_" + username);
+            String cachedToken = System.getProperty(CACHED_BEARER_TOKEN + "_" + cacheKey);
             if (cachedToken != null) {
                 // Validate cached token
                 try {
-                    logger.log(Level.INFO, "Found cached Access Token");
                     if (validateCachedToken(cachedToken)) {
-                        logger.log(Level.INFO, "Valid cached Access Token. Using it to invoke FA");
+                        logger.info("asserter.cache.hit", "username", username);
                         return cachedToken;
                     }
-                    logger.log(Level.INFO, "Cached token is not valid anymore. Generate a new one with assertion.");
+                    logger.info("asserter.cache.stale", "username", username);
                 } catch (Exception ex) {
-                    logger.log(Level.SEVERE, "Error trying to validate cached token [" + ex.getMessage() + "].", ex);
-                    logger.log(Level.INFO, "Unable to validate cached token. Generate a new one with assertion.");
+                    logger.log(Level.SEVERE, "asserter.cache.invalid", ex, "username", username);
                 }
             }
         }
 
+        return assertAccessToken(principal, cacheKey);
+    }
+
+    /**
+     * Performs the IDCS assertion for the principal and caches the resulting token if caching is enabled.
+     * Also called by the background token refresher.
+     *
+     * @param principal
+     * @param cacheKey : Suffix of the System property the token is cached in
+     * @return
+     * @throws Exception
+     */
+    private String assertAccessToken(String principal, String cacheKey) throws Exception {
+        Deadline.current().check("asserting a token");
+
         // Ensure Secrets client is initialized.
         initializeSecretsClient();
 
@@ -243,28 +287,35 @@ public class SecurityHelper {
         asserterProps.put(PRINCIPAL, principal);                               // This principal comes from PRINCIPAL_SOURCE, default BEARER
         asserterProps.put(IDDOMAIN, securityProps.get(IDDOMAIN));              // From function config.
 
-        // Keytore data from Secrets
+        // Keytore data and passphrases from Secrets, fetched concurrently
         String ksPath = securityProps.get(KEYSTORE_PATH);
+        Future<?> keystore = null;
         if (!new File(ksPath).exists()) {
             if (securityProps.containsKey(SECRET_KEYSTORE_ID)) {                       // If V_KEYSTORE prop, retrieve keystore from Vault
-                logger.log(Level.INFO, "Retrieve keystore from Vault... ");
-                writeSecretFile(securityProps.get(SECRET_KEYSTORE_ID), ksPath);
+                logger.info("asserter.keystore.fetch");
+                keystore = vaultExecutor.submit(() -> {
+                    writeSecretFile(securityProps.get(SECRET_KEYSTORE_ID), ksPath);
+                    return null;
+                });
             }
         }
+        Future<byte[]> keystorePassphrase = vaultExecutor.submit(() -> getSecretValue(securityProps.get(SECRET_KS_PASS_ID)));   // Always from Vault
+        Future<byte[]> privatekeyPassphrase = vaultExecutor.submit(() -> getSecretValue(securityProps.get(SECRET_PK_PASS_ID))); // Always from Vault
         asserterProps.put(KEYSTORE_PATH, ksPath);
 
         // Create Asserter object
-        logger.log(Level.INFO, "Create Asserter Generator Object");
         String [] audienceList = this.securityProps.get(AUDIENCE).split(",");
         IDCSAssertionRequest asserter = new IDCSAssertionRequest(asserterProps , audienceList);
-        asserter.setKeystorePassphrase(   getSecretValue(securityProps.get(SECRET_KS_PASS_ID)   ));    // Always from Vault
-        asserter.setPrivatekeyPassphrase( getSecretValue(securityProps.get(SECRET_PK_PASS_ID) ));      // Always from Vault
+        asserter.setKeystorePassphrase(await(keystorePassphrase));
+        asserter.setPrivatekeyPassphrase(await(privatekeyPassphrase));
+        if (keystore != null) {
+            await(keystore);                                                     // The keystore is read by getAccessToken()
+        }
 
         String bearedAccessToken = asserter.getAccessToken();
-        logger.log(Level.FINEST,"bearedAccessToken from Assertion: " + bearedAccessToken);
+        logger.info("asserter.asserted", "principal", principal, "cached", useCacheToken);
         if (useCacheToken) {
-            logger.log(Level.INFO,"Store token in cache");
-            System.setProperty(CACHED_BEARER_TOKEN + "_" + username, bearedAccessToken);     // Caching token in System Properties
+            System.setProperty(CACHED_BEARER_TOKEN + "_" + cacheKey, bearedAccessToken);    // Caching token in System Properties
         }
         return bearedAccessToken;
     }
@@ -284,10 +335,8 @@ public class SecurityHelper {
         // Validate if the current user to be planned for new assertion match with the cached token.
         // If not, generate a new assertion.
         String cachedUsername = tvs.get("sub");
-        logger.log(Level.FINEST, "Cached Token Username ["+ cachedUsername +"]");
-        logger.log(Level.FINEST, "Incoming Token Username ["+ username +"]");
         if ( !username.equalsIgnoreCase( tvs.get("sub") )) {
-            logger.log(Level.INFO, "Cached token subject ["+ cachedUsername +"] does not match with incoming token subject ["+ username +"]");
+            logger.info("asserter.cache.mismatch", "cached", cachedUsername, "username", username);
             return false;
         }
 
@@ -297,14 +346,12 @@ public class SecurityHelper {
         try {
             expvalue = Long.valueOf(cachedExp) * 1000;
         }catch (Exception ex) {
-            logger.log(Level.SEVERE, "An error ocurred trying to validate cached token expiration time ["+ ex.getMessage() +"]");
+            logger.severe("asserter.cache.exp.invalid", "error", ex.getMessage());
             throw ex;
         }
         Long currentTime = System.currentTimeMillis();
-        logger.log(Level.FINEST, "Cached Token Expiry time ["+ expvalue +"]");
-        logger.log(Level.FINEST, "Current time ["+ currentTime +"]");
         if ( currentTime > expvalue) {
-            logger.log(Level.INFO, "Cached token is not valid anymore. Expiry time ["+ expvalue +"]. Current Time ["+ currentTime +"]");
+            logger.fine("asserter.cache.expired", "exp", expvalue, "now", currentTime);
             return false;
         }
 
@@ -317,10 +364,17 @@ public class SecurityHelper {
      * @throws Exception
      */
     private void initializeSecretsClient() throws Exception {
-        if (secretsClient == null) {
+        if (secretsClient != null) {
+            return;
+        }
+        synchronized (SecurityHelper.class) {
+            if (secretsClient != null) {
+                // Created by another thread meanwhile
+                return;
+            }
             // This env variable exists in FN Runtime
             String version = System.getenv("OCI_RESOURCE_PRINCIPAL_VERSION");
-            logger.log(Level.FINEST, "Version: [" + version + "]");
+            logger.finest("oci.rp.version", "version", version);
 
             // OCI/BMC AUTH PROVIDER from OCI SDK:
             // https://github.com/oracle/oci-java-sdk
@@ -339,14 +393,41 @@ public class SecurityHelper {
                     e.printStackTrace();
                 }
             }
-            logger.log(Level.INFO, "OCI Provider: [" + provider + "]");
+            logger.info("oci.provider", "provider", provider == null ? null : provider.getClass().getSimpleName());
             if (provider == null) {
                 throw new Exception("BasicAuthenticationDetailsProvider is null!!");
             }
 
             // Initialize SecretsClient for our tenancy region
-            secretsClient = new SecretsClient(provider);
-            secretsClient.setRegion(ociRegion);
+            SecretsClient client = new SecretsClient(provider);
+            client.setRegion(ociRegion);
+            secretsClient = client;
+        }
+    }
+
+    /**
+     * Waits for a Vault call, rethrowing its exception, at most until the deadline of the invocation
+     *
+     * @param future
+     * @return
+     * @throws Exception
+     */
+    private static <T> T await(Future<T> future) throws Exception {
+        Deadline deadline = Deadline.current();
+        try {
+            if (deadline == Deadline.NONE) {
+                return future.get();
+            }
+            return future.get(Math.max(0, deadline.remainingMs()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new DeadlineExceededException("Invocation time budget spent waiting for Vault");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
         }
     }
 
@@ -363,7 +444,7 @@ public class SecurityHelper {
             File secretFile = new File(filepath);
             secretFile.getParentFile().mkdirs();
             FileUtils.writeByteArrayToFile(secretFile, secretValueDecoded);
-            logger.log(Level.INFO,"Stored Secret file: " + secretFile.getAbsolutePath());
+            logger.info("vault.file.stored", "path", secretFile.getAbsolutePath());
         }
         catch (IOException e) {
             e.printStackTrace();
@@ -378,7 +459,7 @@ public class SecurityHelper {
      * @throws IOException
      */
     private byte[] getSecretValue(String secretOcid) throws IOException {
-        logger.log(Level.INFO, "Get Secret Value: "+ secretOcid);
+        logger.fine("vault.secret.get", "ocid", secretOcid);
 
         // Create get secret bundle request
         //    https://github.com/oracle/oci-java-sdk/blob/master/bmc-secrets/src/main/java/com/oracle/bmc/secrets/requests/GetSecretBundleRequest.java
@@ -412,13 +493,8 @@ public class SecurityHelper {
      * @return
      */
     private Map<String,String> getBearerTokenFields(String token, String ... fields)  throws Exception {
-        String[] split_string = token.split("\\.");
-        String base64EncodedBody = split_string[1];
-        byte[] decodedJWT = Base64.getDecoder().decode(base64EncodedBody);
         try {
-            String JSONbody = new String(decodedJWT, "utf-8");
-            ObjectMapper mapper = new ObjectMapper();
-            JsonNode root = mapper.readTree(JSONbody);
+            JsonNode root = getBearerTokenClaims(token);
 
             Map<String,String> values = new HashMap<>();
             for(String field : fields ) {
@@ -431,6 +507,19 @@ public class SecurityHelper {
         }
     }
 
+    /**
+     * Helper function to read the claims of a Bearer Token
+     *
+     * @param token
+     * @return
+     */
+    private JsonNode getBearerTokenClaims(String token) throws Exception {
+        String[] split_string = token.split("\\.");
+        String base64EncodedBody = split_string[1];
+        byte[] decodedJWT = Base64.getDecoder().decode(base64EncodedBody);
+        return new ObjectMapper().readTree(new String(decodedJWT, "utf-8"));
+    }
+
     /**
      * Get header from request to Function
      *
@@ -450,6 +539,10 @@ public class SecurityHelper {
         return username;
     }
 
+    String getCacheKey() {
+        return cacheKey;
+    }
+
     public String getLocalOciConfigFilePath() {
         return localOciConfigFilePath;
     }
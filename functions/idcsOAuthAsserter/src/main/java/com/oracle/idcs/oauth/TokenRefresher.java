@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2020, Oracle and/or its affiliates. All rights reserved.
+ * Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+ */
+
+package com.oracle.idcs.oauth;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static com.oracle.idcs.oauth.util.Constants.CACHED_BEARER_TOKEN;
+
+/**
+ * Renews the cached asserted tokens of recently active principals in the background, a margin before they expire,
+ * so that active users do not pay the assertion (keystore signing, IDCS call) on the request path.
+ *
+ * Every call to SecurityHelper.getAssertedAccessToken marks its principal active. Principals not seen for the idle
+ * period are forgotten, their tokens are then left to expire and are asserted again on their next request.
+ *
+ * Tokens are tracked by their cache key, which tells apart users of different domains or tenants sharing a sub.
+ */
+class TokenRefresher {
+
+    /**
+     * Asserts and caches a new token for a principal
+     */
+    @FunctionalInterface
+    interface Asserter {
+        String assertAccessToken(String principal, String cacheKey) throws Exception;
+    }
+
+    /**
+     * Principal of a cached token and when it was last seen
+     */
+    private static final class Active {
+        final String principal;
+        final long at;
+
+        Active(String principal, long at) {
+            this.principal = principal;
+            this.at = at;
+        }
+    }
+
+    private static final EventLog logger = EventLog.get(TokenRefresher.class.getName());
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final long MIN_CHECK_INTERVAL_MS = 1000;
+    private static final long MAX_CHECK_INTERVAL_MS = 30000;
+
+    private final Map<String, Active> lastActive = new ConcurrentHashMap<>();
+    private volatile Asserter asserter;
+    private volatile long marginMs;
+    private volatile long idleMs;
+    private volatile ScheduledExecutorService scheduler;
+
+    /**
+     * Records activity of a principal, starting the background refresh on first use
+     *
+     * @param cacheKey : Suffix of the System property the token is cached in
+     * @param principal : Asserted to renew the token
+     * @param asserter : Used to renew the tokens, the latest one registered wins
+     * @param marginMs : Tokens are renewed this long before their exp
+     * @param idleMs : Principals inactive for longer are no longer refreshed
+     */
+    void touch(String cacheKey, String principal, Asserter asserter, long marginMs, long idleMs) {
+        this.asserter = asserter;
+        this.marginMs = marginMs;
+        this.idleMs = idleMs;
+        lastActive.put(cacheKey, new Active(principal, System.currentTimeMillis()));
+        if (scheduler == null) {
+            start(Math.max(MIN_CHECK_INTERVAL_MS, Math.min(MAX_CHECK_INTERVAL_MS, marginMs / 4)));
+        }
+    }
+
+    private synchronized void start(long checkIntervalMs) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "idcs-token-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refreshDue, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+        logger.info("asserter.refresher.started", "checkIntervalMs", checkIntervalMs);
+    }
+
+    void refreshDue() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Active> entry : lastActive.entrySet()) {
+            String cacheKey = entry.getKey();
+            String principal = entry.getValue().principal;
+            if (now - entry.getValue().at > idleMs) {
+                lastActive.remove(cacheKey, entry.getValue());
+                logger.fine("asserter.refresher.idle", "principal", principal);
+                continue;
+            }
+            String cachedToken = System.getProperty(CACHED_BEARER_TOKEN + "_" + cacheKey);
+            if (cachedToken == null) {
+                // No token yet means the request path is asserting the first one
+                continue;
+            }
+            long expiresAt = expiresAt(cachedToken);
+            if (expiresAt == 0) {
+                // Would be due at every check, the request path validates the token and asserts a new one as needed
+                lastActive.remove(cacheKey, entry.getValue());
+                logger.warning("asserter.refresher.exp.unreadable", "principal", principal);
+                continue;
+            }
+            if (expiresAt - marginMs > now) {
+                continue;
+            }
+            try {
+                long start = System.currentTimeMillis();
+                asserter.assertAccessToken(principal, cacheKey);
+                logger.info("asserter.refresher.refreshed", "principal", principal, "ms", System.currentTimeMillis() - start);
+            } catch (Exception e) {
+                // Next check retries, the request path still asserts on its own if the token expires meanwhile
+                logger.warning("asserter.refresher.failed", "principal", principal, "error", e.getMessage());
+            } catch (Throwable t) {
+                // Never let the scheduled task die
+                logger.log(Level.SEVERE, "asserter.refresher.error", t);
+            }
+        }
+    }
+
+    boolean isRefreshing(String cacheKey) {
+        return lastActive.containsKey(cacheKey);
+    }
+
+    /**
+     * @return exp of the token in milliseconds, 0 if it cannot be read
+     */
+    static long expiresAt(String token) {
+        try {
+            String[] parts = token.split("\\.");
+            JsonNode claims = MAPPER.readTree(new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8));
+            return claims.path("exp").asLong(0) * 1000;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
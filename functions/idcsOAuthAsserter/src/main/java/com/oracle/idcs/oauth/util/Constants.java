@@ -24,6 +24,11 @@ public class Constants {
 
     public final static String USE_CACHE_TOKEN = "USE_CACHE_TOKEN";
 
+    // Background renewal of the cached tokens of active principals
+    public final static String TOKEN_REFRESH = "TOKEN_REFRESH";
+    public final static String TOKEN_REFRESH_MARGIN_S = "TOKEN_REFRESH_MARGIN_S";
+    public final static String TOKEN_REFRESH_IDLE_S = "TOKEN_REFRESH_IDLE_S";
+
     public final static String PRINCIPAL  = "PRINCIPAL";
 
     // Assertions constants
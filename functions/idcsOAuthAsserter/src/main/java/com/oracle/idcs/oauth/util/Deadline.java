@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020, Oracle and/or its affiliates. All rights reserved.
+ * Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+ */
+
+package com.oracle.idcs.oauth.util;
+
+import java.time.Instant;
+
+/**
+ * Time left to the current function invocation. Created in handleRequest from the configured budget (and the deadline
+ * Fn passes, if any), then entered on the invocation thread so that every outbound call (http, Vault, KMS) can cap its
+ * timeout to what is left and give up, with a DeadlineExceededException, once nothing is.
+ *
+ * Threads not running an invocation, eg: background refreshes, see NONE and keep their own timeouts.
+ */
+public final class Deadline {
+
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long expiresAtMs;
+
+    /**
+     * Restores the previous deadline of the thread when closed
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private Deadline(long expiresAtMs) {
+        this.expiresAtMs = expiresAtMs;
+    }
+
+    /**
+     * @param budgetMs : Time from now
+     */
+    public static Deadline after(long budgetMs) {
+        return new Deadline(System.currentTimeMillis() + budgetMs);
+    }
+
+    public static Deadline at(Instant instant) {
+        return new Deadline(instant.toEpochMilli());
+    }
+
+    /**
+     * @return the deadline entered on this thread, NONE outside of an invocation
+     */
+    public static Deadline current() {
+        Deadline deadline = CURRENT.get();
+        return deadline == null ? NONE : deadline;
+    }
+
+    /**
+     * Makes this deadline the current one of the thread, usually in a try-with-resources around the invocation
+     */
+    public Scope enter() {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(this);
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * @return the earlier of the two deadlines
+     */
+    public Deadline min(Deadline other) {
+        return other.expiresAtMs < expiresAtMs ? other : this;
+    }
+
+    /**
+     * @return this deadline brought forward by marginMs, eg: to keep time to write the response
+     */
+    public Deadline minus(long marginMs) {
+        return this == NONE ? NONE : new Deadline(expiresAtMs - marginMs);
+    }
+
+    public long remainingMs() {
+        return this == NONE ? Long.MAX_VALUE : expiresAtMs - System.currentTimeMillis();
+    }
+
+    public boolean isExpired() {
+        return remainingMs() <= 0;
+    }
+
+    public Instant toInstant() {
+        return Instant.ofEpochMilli(expiresAtMs);
+    }
+
+    /**
+     * @param configuredMs : Timeout the call would use on its own
+     * @return configuredMs, or less if the invocation ends sooner
+     * @throws DeadlineExceededException : Nothing left
+     */
+    public int timeoutMs(long configuredMs, String call) {
+        check(call);
+        return (int) Math.min(Integer.MAX_VALUE, Math.min(configuredMs, remainingMs()));
+    }
+
+    /**
+     * @param call : What was about to be done, for the message
+     * @throws DeadlineExceededException : Nothing left, the call should not be started
+     */
+    public void check(String call) {
+        if (isExpired()) {
+            throw new DeadlineExceededException("Invocation time budget spent, not " + call);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+/*
+ * Copyright (c) 2020, Oracle and/or its affiliates. All rights reserved.
+ * Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+ */
+
+package com.oracle.idcs.oauth.util;
+
+/**
+ * The time budget of the invocation is spent (see Deadline), functions answer it with a 504.
+ * Unchecked so that it crosses every layer between the outbound call and handleRequest.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2020, Oracle and/or its affiliates. All rights reserved.
+ * Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+ */
+
+package com.oracle.idcs.oauth.util;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Structured logging for the functions : an event name and key value pairs, eg: "fusion.response status=200 ms=85".
+ *
+ * The level is checked before anything is formatted. Events are formatted and written by a background thread from a
+ * bounded queue, so log I/O is not on the request path. When the queue is full, events below WARNING are dropped (and
+ * counted), WARNING and SEVERE are written by the caller.
+ *
+ * INFO events can be sampled : startRequest() decides for the current thread whether this request's INFO events are
+ * logged. Values of keys naming a secret (token, secret, password...), Bearer/Basic credentials and JWTs are redacted,
+ * whatever their key.
+ */
+public final class EventLog {
+
+    private static final String REDACTED = "***";
+    // Keys naming the secret itself (token, accessToken, client_secret...), not keys merely about one (tokenExchange)
+    private static final Pattern SECRET_KEY = Pattern.compile(".*(token|secret|password|passphrase|authorization|assertion|credential)s?",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern CREDENTIAL = Pattern.compile("(Bearer|Basic) [^\\s\"',]+");
+    private static final Pattern JWT = Pattern.compile("eyJ[A-Za-z0-9_-]*\\.[A-Za-z0-9_-]+\\.[A-Za-z0-9_-]*");
+    private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    private static final Map<String, EventLog> LOGS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Boolean> SAMPLED = new ThreadLocal<>();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Level level;                 // null until configured, the logging configuration applies
+    private static volatile double infoSampleRate = 1;
+    private static volatile BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<>(DEFAULT_QUEUE_CAPACITY);
+    private static Thread writer;
+
+    private final Logger logger;
+
+    private EventLog(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * @param name : Name of the java.util.logging logger written to
+     */
+    public static EventLog get(String name) {
+        return LOGS.computeIfAbsent(name, n -> {
+            Logger logger = Logger.getLogger(n);
+            if (level != null) {
+                logger.setLevel(level);
+            }
+            return new EventLog(logger);
+        });
+    }
+
+    /**
+     * Called once per container, eg: from the @FnConfiguration method
+     *
+     * @param logLevel : Level of every EventLog logger
+     * @param sampleRate : Fraction of the requests whose INFO events are logged, 1 for all
+     * @param queueCapacity : Events waiting to be written at most
+     */
+    public static synchronized void configure(Level logLevel, double sampleRate, int queueCapacity) {
+        level = logLevel;
+        infoSampleRate = sampleRate;
+        if (queueCapacity != queue.remainingCapacity() + queue.size()) {
+            BlockingQueue<LogRecord> previous = queue;
+            queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+            previous.drainTo(queue);
+        }
+        for (EventLog log : LOGS.values()) {
+            log.logger.setLevel(logLevel);
+        }
+    }
+
+    /**
+     * Decides whether the INFO events of the request run by the current thread are logged
+     */
+    public static void startRequest() {
+        double rate = infoSampleRate;
+        SAMPLED.set(rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    /**
+     * @return true if an event of this level would be logged, nothing needs to be computed for it otherwise
+     */
+    public boolean isLoggable(Level eventLevel) {
+        if (!logger.isLoggable(eventLevel)) {
+            return false;
+        }
+        if (eventLevel == Level.INFO) {
+            // Outside of a request (background work), logged
+            Boolean sampled = SAMPLED.get();
+            return sampled == null || sampled;
+        }
+        return true;
+    }
+
+    public void finest(String event, Object... keyValues) {
+        log(Level.FINEST, event, null, keyValues);
+    }
+
+    public void fine(String event, Object... keyValues) {
+        log(Level.FINE, event, null, keyValues);
+    }
+
+    public void info(String event, Object... keyValues) {
+        log(Level.INFO, event, null, keyValues);
+    }
+
+    public void warning(String event, Object... keyValues) {
+        log(Level.WARNING, event, null, keyValues);
+    }
+
+    public void severe(String event, Object... keyValues) {
+        log(Level.SEVERE, event, null, keyValues);
+    }
+
+    /**
+     * @param event : Name of the event, a constant
+     * @param thrown : Exception logged with its stack trace, may be null
+     * @param keyValues : key1, value1, key2, value2...
+     */
+    public void log(Level eventLevel, String event, Throwable thrown, Object... keyValues) {
+        if (!isLoggable(eventLevel)) {
+            return;
+        }
+        // Formatted by the writer, from the values as they are now
+        LogRecord record = new StructuredRecord(eventLevel, event, keyValues.clone());
+        record.setLoggerName(logger.getName());
+        // Not inferred from the stack, it is the writer's by then
+        record.setSourceClassName(logger.getName());
+        record.setSourceMethodName(null);
+        record.setThrown(thrown);
+        if (!queue.offer(record)) {
+            if (eventLevel.intValue() < Level.WARNING.intValue()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            write(record);
+            return;
+        }
+        ensureWriter();
+    }
+
+    private static synchronized void ensureWriter() {
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread(EventLog::drain, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+        // Events still queued when the function exits
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::flush, "event-log-flush"));
+    }
+
+    private static void drain() {
+        while (true) {
+            try {
+                // Polled again and again, configure() may replace the queue
+                LogRecord record = queue.poll(1, TimeUnit.SECONDS);
+                if (record != null) {
+                    write(record);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                // A failing handler must not stop the writer
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private static void flush() {
+        LogRecord record;
+        while ((record = queue.poll()) != null) {
+            write(record);
+        }
+    }
+
+    private static void write(LogRecord record) {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            Logger.getLogger(record.getLoggerName()).log(Level.WARNING, "log.dropped count=" + lost);
+        }
+        Logger.getLogger(record.getLoggerName()).log(record);
+    }
+
+    /**
+     * Formats the event when the handler asks for its message, on the writer thread
+     */
+    private static final class StructuredRecord extends LogRecord {
+        private final Object[] keyValues;
+        private String formatted;
+
+        StructuredRecord(Level level, String event, Object[] keyValues) {
+            super(level, event);
+            this.keyValues = keyValues;
+        }
+
+        @Override
+        public String getMessage() {
+            if (formatted == null) {
+                formatted = format(super.getMessage(), keyValues);
+            }
+            return formatted;
+        }
+    }
+
+    static String format(String event, Object[] keyValues) {
+        StringBuilder line = new StringBuilder(event);
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            String key = String.valueOf(keyValues[i]);
+            line.append(' ').append(key).append('=');
+            Object value = keyValues[i + 1];
+            if (value == null) {
+                line.append("null");
+            } else if (SECRET_KEY.matcher(key).matches()) {
+                line.append(REDACTED);
+            } else {
+                appendValue(line, redact(String.valueOf(value)));
+            }
+        }
+        if (keyValues.length % 2 != 0) {
+            appendValue(line.append(" msg="), redact(String.valueOf(keyValues[keyValues.length - 1])));
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return the text with any credential or JWT in it replaced
+     */
+    public static String redact(String text) {
+        if (text.indexOf("eyJ") >= 0) {
+            text = JWT.matcher(text).replaceAll(REDACTED);
+        }
+        if (text.contains("Bearer ") || text.contains("Basic ")) {
+            text = CREDENTIAL.matcher(text).replaceAll("$1 " + REDACTED);
+        }
+        return text;
+    }
+
+    private static void appendValue(StringBuilder line, String value) {
+        if (value.isEmpty() || value.chars().anyMatch(c -> c == ' ' || c == '"' || c == '=' || c < 0x20)) {
+            line.append('"');
+            for (char c : value.toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if (c == '\n') {
+                    line.append("\\n");
+                } else if (c < 0x20) {
+                    line.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                } else {
+                    line.append(c);
+                }
+            }
+            line.append('"');
+        } else {
+            line.append(value);
+        }
+    }
+}
@@ -11,12 +11,10 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 public class KeystoreUtil {
 
-    private Logger logger = Logger.getLogger(CertificateUtils.class.getName());
+    private static final EventLog logger = EventLog.get(CertificateUtils.class.getName());
 
     private KeyStore fnKeystore;
     private String keystorePath;
@@ -39,15 +37,14 @@ public class KeystoreUtil {
      */
     private void loadKeystore(String keystorePath) throws Exception {
         FileInputStream isks = null;
-        logger.log(Level.INFO, "" +
-                ": " + keystorePath);
+        logger.info("keystore.load", "path", keystorePath);
         try {
             isks = new FileInputStream(keystorePath);
             fnKeystore = KeyStore.getInstance("pkcs12");
             fnKeystore.load(isks, new String(keystorePassphrase).toCharArray());
         } catch (Exception ex) {
             ex.printStackTrace();
-            logger.log(Level.SEVERE, "Error while trying to load keystore ["+ keystorePath +"]");
+            logger.severe("keystore.load.failed", "path", keystorePath);
             throw new Exception("Error while trying to load keystore ["+ keystorePath +"]",ex);
         } finally {
             try {
@@ -66,11 +63,11 @@ public class KeystoreUtil {
      */
     public Certificate getCertificate(String alias) throws Exception {
         try {
-            logger.log(Level.INFO, "Looking for certificate alias: " + alias);
+            logger.info("keystore.certificate.get", "alias", alias);
             return fnKeystore.getCertificate(alias);
         } catch (KeyStoreException ex) {
             ex.printStackTrace();
-            logger.log(Level.SEVERE, "Error while trying to get Certificate ["+ alias +"]");
+            logger.severe("keystore.certificate.failed", "alias", alias);
             throw new Exception("Error while trying to get Certificate ["+ alias +"]",ex);
         }
     }
@@ -82,9 +79,10 @@ public class KeystoreUtil {
      * @throws Exception
      */
     public PrivateKey getPrivateKey(String alias) throws Exception {
-        logger.log(Level.INFO, "Looking for Private Key with alias: " + alias);
+        logger.info("keystore.privatekey.get", "alias", alias);
         PrivateKey pk = getPrivateKey(alias, privatekeyPassphrase);
-        logger.log(Level.FINEST, "PrivateKey: ["+ pk +"] Type: ["+ pk.getClass().getCanonicalName() +"]");
+        // Never the key itself, its toString may print it
+        logger.finest("keystore.privatekey.found", "type", pk.getClass().getCanonicalName());
         return pk;
     }
 
@@ -100,7 +98,7 @@ public class KeystoreUtil {
             return (PrivateKey)fnKeystore.getKey(alias, new String(passphrase).toCharArray());
         } catch (KeyStoreException ex) {
             ex.printStackTrace();
-            logger.log(Level.SEVERE, "Error while trying to get Certificate ["+ alias +"]");
+            logger.severe("keystore.privatekey.failed", "alias", alias);
             throw new Exception("Error while trying to get Certificate ["+ alias +"]",ex);
         }
     }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020, Oracle and/or its affiliates. All rights reserved.
+ * Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+ */
+
+package com.oracle.idcs.oauth.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Creates the executors running blocking outbound calls (http, Vault) in the functions.
+ *
+ * When the runtime offers virtual threads (JDK 21+), every task gets its own virtual thread, so hundreds of calls
+ * can wait on the network for the cost of a few platform threads. The code is compiled for JDK 11, so virtual
+ * threads are looked up by reflection. On older runtimes, or with -Doutbound.virtualThreads=false, a bounded pool of
+ * daemon threads is used instead.
+ *
+ * Neither executor bounds its queue, callers limit how much work they submit (eg: a window, a semaphore).
+ */
+public final class OutboundExecutor {
+
+    private static final EventLog logger = EventLog.get(OutboundExecutor.class.getName());
+    private static final String VIRTUAL_THREADS_PROPERTY = "outbound.virtualThreads";
+    private static final long IDLE_THREAD_KEEPALIVE_S = 60;
+
+    // Thread.ofVirtual(), Thread.Builder name(String, long) and factory(), Executors.newThreadPerTaskExecutor(ThreadFactory),
+    // null when not available
+    private static final Method OF_VIRTUAL = lookup("java.lang.Thread", "ofVirtual");
+    private static final Method BUILDER_NAME = lookup("java.lang.Thread$Builder", "name", String.class, long.class);
+    private static final Method BUILDER_FACTORY = lookup("java.lang.Thread$Builder", "factory");
+    private static final Method THREAD_PER_TASK = lookup("java.util.concurrent.Executors", "newThreadPerTaskExecutor", ThreadFactory.class);
+
+    private OutboundExecutor() {
+        throw new IllegalStateException("OutboundExecutor is a utility class");
+    }
+
+    /**
+     * @return true if newExecutor returns virtual thread executors
+     */
+    public static boolean virtualThreads() {
+        return OF_VIRTUAL != null && BUILDER_NAME != null && BUILDER_FACTORY != null && THREAD_PER_TASK != null
+                && Boolean.parseBoolean(System.getProperty(VIRTUAL_THREADS_PROPERTY, "true"));
+    }
+
+    /**
+     * @param name : Prefix of the thread names
+     * @param maxThreads : Size of the platform thread pool, when virtual threads are not available
+     * @return an executor, to be shut down by its owner when no longer used
+     */
+    public static ExecutorService newExecutor(String name, int maxThreads) {
+        if (virtualThreads()) {
+            try {
+                return newVirtualThreadExecutor(name);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                logger.log(Level.WARNING, "executor.virtual.unavailable", e, "threads", maxThreads, "name", name);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_THREAD_KEEPALIVE_S, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // Idle containers do not keep threads around
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor(String name) throws ReflectiveOperationException {
+        // Thread.ofVirtual().name(name + "-", 1).factory()
+        Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 1L);
+        ThreadFactory factory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+        return (ExecutorService) THREAD_PER_TASK.invoke(null, factory);
+    }
+
+    private static Method lookup(String type, String name, Class<?>... parameterTypes) {
+        try {
+            return Class.forName(type).getMethod(name, parameterTypes);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
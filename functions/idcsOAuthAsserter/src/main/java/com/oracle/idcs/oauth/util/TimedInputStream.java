@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2020, Oracle and/or its affiliates. All rights reserved.
+ * Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+ */
+
+package com.oracle.idcs.oauth.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Response body that must be read within a time limit. Http client timeouts only cover the wait for the response
+ * headers (JDK client) or each single read (Apache client), a body trickling in can still outlive the invocation.
+ *
+ * When the time is up, the exchange is aborted, which unblocks a read in progress, and reads then fail with an
+ * HttpTimeoutException, handled as any other timeout by the callers.
+ */
+public final class TimedInputStream extends FilterInputStream {
+
+    private static final EventLog logger = EventLog.get(TimedInputStream.class.getName());
+    // One daemon thread for the whole container, expiries only abort exchanges
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "response-read-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long timeoutMs;
+    private final ScheduledFuture<?> expiry;
+    private volatile boolean expired = false;
+
+    /**
+     * @param in : Response body
+     * @param timeoutMs : Time left to read the whole body, from now
+     * @param abort : Aborts the exchange, closing the body is enough for the JDK client
+     */
+    public TimedInputStream(InputStream in, long timeoutMs, Runnable abort) {
+        super(in);
+        this.timeoutMs = timeoutMs;
+        this.expiry = TIMER.schedule(() -> {
+            expired = true;
+            try {
+                abort.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.FINE, "response.abort.failed", e);
+            }
+        }, Math.max(0, timeoutMs), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param in : Response body, closed when the time is up
+     * @param timeoutMs : Time left to read the whole body, from now
+     */
+    public TimedInputStream(InputStream in, long timeoutMs) {
+        this(in, timeoutMs, () -> closeQuietly(in));
+    }
+
+    @Override
+    public int read() throws IOException {
+        try {
+            return checked(super.read());
+        } catch (IOException e) {
+            throw timeoutOr(e);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        try {
+            return checked(super.read(b, off, len));
+        } catch (IOException e) {
+            throw timeoutOr(e);
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        try {
+            return super.skip(n);
+        } catch (IOException e) {
+            throw timeoutOr(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        expiry.cancel(false);
+        super.close();
+    }
+
+    /**
+     * @return true if the time was up before the body was read and closed
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+
+    private int checked(int read) throws IOException {
+        // An aborted exchange may look like the end of the body
+        if (expired) {
+            throw timeout();
+        }
+        return read;
+    }
+
+    private IOException timeoutOr(IOException e) {
+        return expired ? timeout() : e;
+    }
+
+    private HttpTimeoutException timeout() {
+        return new HttpTimeoutException("Response body not read within " + timeoutMs + " ms");
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "response.close.failed", e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2020, Oracle and/or its affiliates. All rights reserved.
+ * Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+ */
+
+package com.oracle.idcs.oauth;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class SecurityHelperTest {
+
+    private static String bearer(String claims) {
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return "Bearer " + encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".sig";
+    }
+
+    private static SecurityHelper extract(String claims) throws Exception {
+        return new SecurityHelper(new HashMap<>()).extractSubFromJwtToken(bearer(claims));
+    }
+
+    @Test
+    public void keysTheCacheByIssuerTenantAndSub() throws Exception {
+        SecurityHelper helper = extract("{\"sub\":\"alice\",\"iss\":\"https://a.example/\",\"tenant\":\"t1\"}");
+        assertEquals("alice", helper.getUsername());
+        assertEquals("https://a.example/|t1|alice", helper.getCacheKey());
+    }
+
+    @Test
+    public void sameSubOfAnotherTenantGetsItsOwnCacheKey() throws Exception {
+        SecurityHelper tenant1 = extract("{\"sub\":\"alice\",\"iss\":\"https://a.example/\",\"tenant\":\"t1\"}");
+        SecurityHelper tenant2 = extract("{\"sub\":\"alice\",\"iss\":\"https://a.example/\",\"tenant\":\"t2\"}");
+        SecurityHelper domain2 = extract("{\"sub\":\"alice\",\"iss\":\"https://b.example/\",\"tenant\":\"t1\"}");
+        assertNotEquals(tenant1.getCacheKey(), tenant2.getCacheKey());
+        assertNotEquals(tenant1.getCacheKey(), domain2.getCacheKey());
+    }
+
+    @Test
+    public void tokensWithoutIssuerOrTenantStillGetAKey() throws Exception {
+        assertEquals("||alice", extract("{\"sub\":\"alice\"}").getCacheKey());
+    }
+}
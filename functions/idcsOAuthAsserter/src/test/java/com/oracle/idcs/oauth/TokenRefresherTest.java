@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020, Oracle and/or its affiliates. All rights reserved.
+ * Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+ */
+
+package com.oracle.idcs.oauth;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.oracle.idcs.oauth.util.Constants.CACHED_BEARER_TOKEN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenRefresherTest {
+
+    private static final String PRINCIPAL = "refresher-test";
+
+    static String token(String claims) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".";
+    }
+
+    @After
+    public void clearCache() {
+        System.clearProperty(CACHED_BEARER_TOKEN + "_" + PRINCIPAL);
+    }
+
+    @Test
+    public void readsExp() {
+        assertEquals(1600000000000L, TokenRefresher.expiresAt(token("{\"exp\":1600000000}")));
+        assertEquals(0, TokenRefresher.expiresAt(token("{\"sub\":\"x\"}")));
+        assertEquals(0, TokenRefresher.expiresAt("not a token"));
+    }
+
+    @Test
+    public void refreshesTokensAboutToExpire() {
+        AtomicInteger asserted = new AtomicInteger();
+        TokenRefresher refresher = new TokenRefresher();
+        System.setProperty(CACHED_BEARER_TOKEN + "_" + PRINCIPAL,
+                token("{\"exp\":" + (System.currentTimeMillis() / 1000 + 60) + "}"));
+        refresher.touch(PRINCIPAL, PRINCIPAL, (p, k) -> "t" + asserted.incrementAndGet(), 120000, 900000);
+
+        refresher.refreshDue();
+        assertEquals(1, asserted.get());
+    }
+
+    @Test
+    public void leavesFreshTokens() {
+        AtomicInteger asserted = new AtomicInteger();
+        TokenRefresher refresher = new TokenRefresher();
+        System.setProperty(CACHED_BEARER_TOKEN + "_" + PRINCIPAL,
+                token("{\"exp\":" + (System.currentTimeMillis() / 1000 + 3600) + "}"));
+        refresher.touch(PRINCIPAL, PRINCIPAL, (p, k) -> "t" + asserted.incrementAndGet(), 120000, 900000);
+
+        refresher.refreshDue();
+        assertEquals(0, asserted.get());
+        assertTrue(refresher.isRefreshing(PRINCIPAL));
+    }
+
+    @Test
+    public void forgetsTokensWithoutReadableExp() {
+        AtomicInteger asserted = new AtomicInteger();
+        TokenRefresher refresher = new TokenRefresher();
+        System.setProperty(CACHED_BEARER_TOKEN + "_" + PRINCIPAL, token("{\"sub\":\"x\"}"));
+        refresher.touch(PRINCIPAL, PRINCIPAL, (p, k) -> "t" + asserted.incrementAndGet(), 120000, 900000);
+
+        refresher.refreshDue();
+        refresher.refreshDue();
+        assertEquals(0, asserted.get());
+        assertFalse(refresher.isRefreshing(PRINCIPAL));
+    }
+
+    @Test
+    public void refreshesEachCacheKeyForItsPrincipal() {
+        String otherTenant = PRINCIPAL + "-other";
+        List<String> asserted = new ArrayList<>();
+        TokenRefresher refresher = new TokenRefresher();
+        String expiring = token("{\"exp\":" + (System.currentTimeMillis() / 1000 + 60) + "}");
+        System.setProperty(CACHED_BEARER_TOKEN + "_" + PRINCIPAL, expiring);
+        System.setProperty(CACHED_BEARER_TOKEN + "_" + otherTenant, expiring);
+        try {
+            refresher.touch(PRINCIPAL, "alice", (p, k) -> { asserted.add(p + "@" + k); return "t"; }, 120000, 900000);
+            refresher.touch(otherTenant, "alice", (p, k) -> { asserted.add(p + "@" + k); return "t"; }, 120000, 900000);
+
+            refresher.refreshDue();
+            Collections.sort(asserted);
+            assertEquals(Arrays.asList("alice@" + PRINCIPAL, "alice@" + otherTenant), asserted);
+        } finally {
+            System.clearProperty(CACHED_BEARER_TOKEN + "_" + otherTenant);
+        }
+    }
+
+    @Test
+    public void forgetsIdlePrincipals() throws InterruptedException {
+        TokenRefresher refresher = new TokenRefresher();
+        refresher.touch(PRINCIPAL, PRINCIPAL, (p, k) -> "t", 120000, 1);
+        Thread.sleep(5);
+
+        refresher.refreshDue();
+        assertFalse(refresher.isRefreshing(PRINCIPAL));
+    }
+}
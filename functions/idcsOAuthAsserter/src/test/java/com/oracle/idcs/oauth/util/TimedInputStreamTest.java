@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2020, Oracle and/or its affiliates. All rights reserved.
+ * Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+ */
+
+package com.oracle.idcs.oauth.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TimedInputStreamTest {
+
+    /**
+     * Body of a server that sent one byte and went quiet, reads block until it is closed
+     */
+    private static class StalledBody extends InputStream {
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private boolean first = true;
+
+        @Override
+        public int read() throws IOException {
+            if (first) {
+                first = false;
+                return '{';
+            }
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            throw new IOException("closed");
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    @Test
+    public void readsABodyInTime() throws IOException {
+        byte[] body = "{\"keys\":[]}".getBytes(StandardCharsets.UTF_8);
+        try (TimedInputStream in = new TimedInputStream(new ByteArrayInputStream(body), 5000)) {
+            assertArrayEquals(body, in.readAllBytes());
+            assertFalse(in.isExpired());
+        }
+    }
+
+    @Test
+    public void abortsABodyNotReadInTime() throws IOException {
+        long start = System.currentTimeMillis();
+        try (TimedInputStream in = new TimedInputStream(new StalledBody(), 200)) {
+            assertEquals('{', in.read());
+            in.read();
+            fail("Expected the read to time out");
+        } catch (HttpTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void expiredBodyFailsEvenIfItEnded() throws Exception {
+        AtomicInteger aborts = new AtomicInteger();
+        TimedInputStream in = new TimedInputStream(new ByteArrayInputStream(new byte[0]), 50, aborts::incrementAndGet);
+        Thread.sleep(300);
+        assertTrue(in.isExpired());
+        assertEquals(1, aborts.get());
+        try {
+            in.read();
+            fail("Expected the read to time out");
+        } catch (HttpTimeoutException e) {
+            // An aborted exchange may look like the end of the body
+        }
+    }
+
+    @Test
+    public void closingCancelsTheTimer() throws Exception {
+        AtomicInteger aborts = new AtomicInteger();
+        TimedInputStream in = new TimedInputStream(new ByteArrayInputStream(new byte[0]), 100, aborts::incrementAndGet);
+        in.close();
+        Thread.sleep(300);
+        assertFalse(in.isExpired());
+        assertEquals(0, aborts.get());
+    }
+}
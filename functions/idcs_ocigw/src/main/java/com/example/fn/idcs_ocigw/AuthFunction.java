@@ -6,28 +6,39 @@ package com.example.fn.idcs_ocigw;
 
 
 import com.example.fn.idcs_ocigw.utils.AccessTokenValidator;
+import com.example.fn.idcs_ocigw.utils.FusionTokenExchange;
 import com.example.fn.idcs_ocigw.utils.InvalidTokenException;
+import com.example.fn.idcs_ocigw.utils.RateLimiter;
 import com.example.fn.idcs_ocigw.utils.ResourceServerConfig;
+import com.example.fn.idcs_ocigw.utils.RoutePolicy;
 import com.fnproject.fn.api.FnConfiguration;
 import com.fnproject.fn.api.RuntimeContext;
 import com.nimbusds.jwt.JWTClaimsSet;
+import com.oracle.idcs.oauth.util.Deadline;
+import com.oracle.idcs.oauth.util.DeadlineExceededException;
+import com.oracle.idcs.oauth.util.EventLog;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
-import java.util.logging.Logger;
 
 
 public class AuthFunction {
 
-    private  static final Logger LOGGER = Logger.getLogger("IDCS_GTW_LOGGER");
+    private  static final EventLog LOGGER = EventLog.get("IDCS_GTW_LOGGER");
     private static final DateTimeFormatter ISO8601 = DateTimeFormatter.ISO_DATE_TIME;
     private static final String TOKEN_BEARER_PREFIX = "Bearer ";
     private static ResourceServerConfig rsc;
+    private static FusionTokenExchange tokenExchange;  // Only set when gateway_token_exchange=true
+    private static RoutePolicy routePolicy;
+    private static RateLimiter rateLimiter;
 
     /**
      * @param ctx : Runtime context passed in by Fn, used to set default parameters
@@ -35,7 +46,14 @@ public class AuthFunction {
     @FnConfiguration
     public void config(RuntimeContext ctx) throws IOException {
         rsc=new ResourceServerConfig(ctx);
-        LOGGER.setLevel(Level.parse(rsc.DEBUG_LEVEL));
+        // Set once, INFO traces of a sample of the calls, written by a background thread
+        EventLog.configure(Level.parse(rsc.DEBUG_LEVEL), rsc.LOG_INFO_SAMPLE_RATE, rsc.LOG_QUEUE_CAPACITY);
+        routePolicy = RoutePolicy.compile(rsc.ROUTE_SCOPES);
+        rateLimiter = new RateLimiter(rsc.RATE_LIMIT_PER_S, rsc.RATE_LIMIT_BURST, rsc.RATE_LIMIT_IDLE_MS, rsc.RATE_LIMIT_MAX_KEYS);
+        if (rsc.TOKEN_EXCHANGE) {
+            tokenExchange = new FusionTokenExchange(ctx, rsc.TOKEN_EXCHANGE_REGION,
+                    rsc.TOKEN_EXCHANGE_MARGIN_S * 1000, rsc.TOKEN_EXCHANGE_MAX_ENTRIES);
+        }
 
     }
 
@@ -43,6 +61,8 @@ public class AuthFunction {
     public static class Input {
         public String type;
         public String token;
+        // Multi-argument authorizer (type USER_DEFINED) : token, method and path
+        public Map<String, String> data;
 
         public String getType() {
             return type;
@@ -59,6 +79,14 @@ public class AuthFunction {
         public void setToken(String token) {
             this.token = token;
         }
+
+        public Map<String, String> getData() {
+            return data;
+        }
+
+        public void setData(Map<String, String> data) {
+            this.data = data;
+        }
     }
 
     public static class Result {
@@ -143,7 +171,8 @@ public class AuthFunction {
      */
     public Result handleRequest(Input input) {
 
-        LOGGER.info("Authentication Request requested");
+        EventLog.startRequest();
+        LOGGER.info("auth.request");
 
         if (input==null)
         {
@@ -151,6 +180,9 @@ public class AuthFunction {
         }
 
         Result result = new Result();
+        if (input.token == null && input.data != null) {
+            input.token = input.data.get("token");
+        }
 
         if (input.token == null || !input.token.startsWith(TOKEN_BEARER_PREFIX)) {
             result.active = false;
@@ -161,36 +193,108 @@ public class AuthFunction {
         // remove "Bearer " prefix in the token string before processing
         String token = input.token.substring(TOKEN_BEARER_PREFIX.length());
 
-        AccessTokenValidator accessTokenValidator = new AccessTokenValidator();
-        accessTokenValidator.init(rsc);
+        // Caps the timeout of the IDCS calls made for this invocation
+        try (Deadline.Scope deadlineScope = Deadline.after(rsc.INVOCATION_BUDGET_MS).enter()) {
+            AccessTokenValidator accessTokenValidator = new AccessTokenValidator();
+            accessTokenValidator.init(rsc);
 
-        try {
             JWTClaimsSet claimsSet = accessTokenValidator.validate(rsc,token);
 
+            // Bound to fail at Fusion for lack of scope, stop it here
+            String[] scope = claimsSet.getStringClaim("scope").split(" ");
+            String routeDenial = routeDenial(input, scope);
+            if (routeDenial != null) {
+                result.active = false;
+                result.wwwAuthenticate = routeDenial;
+                return result;
+            }
+
+            // Flooding clients are turned away here, before using up Fusion quota and backend concurrency
+            String tenant = claimsSet.getStringClaim("tenant");
+            long retryAfterMs = rateLimiter.acquire(claimsSet.getSubject() + "|" + tenant);
+            if (retryAfterMs > 0) {
+                long retryAfterS = (retryAfterMs + 999) / 1000;
+                LOGGER.info("auth.rate.limited", "principal", claimsSet.getSubject(), "tenant", tenant, "retryAfterS", retryAfterS);
+                result.active = false;
+                result.wwwAuthenticate = "Bearer error=\"rate_limited\", error_description=\"Too many requests, retry after "
+                        + retryAfterS + " seconds\", retry_after=\"" + retryAfterS + "\"";
+                return result;
+            }
+
             // Now that we can trust the contents of the JWT we can build the APIGW auth result
             result.active = true;
 
             result.principal = claimsSet.getSubject();
-            result.scope = claimsSet.getStringClaim("scope").split(" ");
-            result.expiresAt = ISO8601.format(claimsSet.getExpirationTime().toInstant().atOffset(ZoneOffset.UTC));
+            result.scope = scope;
+            Instant expiresAt = claimsSet.getExpirationTime().toInstant();
 
             Map<String, Object> context = new HashMap<>();
-            context.put("tenant", claimsSet.getStringClaim("tenant"));
+            context.put("tenant", tenant);
+            if (tokenExchange != null && rsc.CHECK_ISSUER && !rsc.ISSUER.equals(claimsSet.getIssuer())) {
+                // The asserter asserts principals of the default domain only, a same named user there is someone else
+                LOGGER.info("auth.exchange.skipped", "issuer", claimsSet.getIssuer());
+            } else if (tokenExchange != null) {
+                // Passed by the gateway to the backend as headers, see gateway_token_exchange
+                try {
+                    FusionTokenExchange.FusionToken fusionToken =
+                            tokenExchange.exchange(claimsSet.getIssuer(), tenant, result.principal, token);
+                    context.put("fusion_token", fusionToken.getToken());
+                    context.put("principal", result.principal);
+                    if (fusionToken.getExpiresAt() > 0 && fusionToken.getExpiresAt() < expiresAt.toEpochMilli()) {
+                        // The gateway must not reuse this result once the Fusion token has expired
+                        expiresAt = Instant.ofEpochMilli(fusionToken.getExpiresAt());
+                    }
+                } catch (DeadlineExceededException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    // The token is valid, the backend asserts it itself
+                    LOGGER.warning("auth.exchange.failed", "error", ex.getMessage());
+                }
+            }
+            result.expiresAt = ISO8601.format(expiresAt.atOffset(ZoneOffset.UTC));
             result.context = context;
 
         } catch (InvalidTokenException e) {
 
-            LOGGER.info("Invalid Token Exception "+e.getMessage());
+            LOGGER.info("auth.token.invalid", "error", e.getMessage());
             result.active = false;
             result.wwwAuthenticate = "Bearer error=\"invalid_token\", error_description=\"" + e.getMessage() + "\"";
         } catch (ParseException ex) {
 
-            LOGGER.info("Parse Exception "+ex.getMessage());
+            LOGGER.info("auth.token.claim.invalid", "error", ex.getMessage());
             result.active = false;
             result.wwwAuthenticate = "Bearer error=\"invalid_token_claim\", error_description=\"" + ex.getMessage() + "\"";
+        } catch (DeadlineExceededException ex) {
+
+            // The authorizer result carries no status code, deny with a timeout error rather than being killed by Fn
+            LOGGER.warning("auth.deadline.exceeded", "error", ex.getMessage());
+            result.active = false;
+            result.wwwAuthenticate = "Bearer error=\"timeout\", error_description=\"" + ex.getMessage() + "\"";
         }
 
         return result;
     }
 
-}
\ No newline at end of file
+    /**
+     * Checks the scopes of the token against the route policy, when the gateway passes the route (multi-argument authorizer)
+     * @return the wwwAuthenticate of the denial, null if the token may call the route
+     */
+    private static String routeDenial(Input input, String[] scope) {
+        if (routePolicy.isEmpty()) {
+            return null;
+        }
+        String method = input.data == null ? null : input.data.get("method");
+        String path = input.data == null ? null : input.data.get("path");
+        if (method == null || path == null) {
+            // route_scopes is set but the gateway does not pass the method and path
+            LOGGER.warning("auth.route.unknown");
+            return "Bearer error=\"insufficient_scope\", error_description=\"Route not known to the authorizer\"";
+        }
+        Set<String> missing = routePolicy.missingScopes(method, path, Arrays.asList(scope));
+        if (missing.isEmpty()) {
+            return null;
+        }
+        LOGGER.info("auth.scope.missing", "scopes", String.join(" ", missing), "method", method, "path", path);
+        return "Bearer error=\"insufficient_scope\", scope=\"" + String.join(" ", missing) + "\"";
+    }
+}
@@ -5,85 +5,150 @@ Licensed under the Universal Permissive License v 1.0 as shown at https://oss.or
 package com.example.fn.idcs_ocigw.utils;
 
 import com.nimbusds.jose.JOSEException;
-import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.KeySourceException;
 import com.nimbusds.jose.jwk.JWKSet;
-import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
-import com.nimbusds.jose.jwk.source.JWKSource;
 import com.nimbusds.jose.proc.BadJOSEException;
-import com.nimbusds.jose.proc.JWSKeySelector;
-import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.BadJWSException;
 import com.nimbusds.jose.proc.SecurityContext;
 import com.nimbusds.jwt.JWTClaimsSet;
-import com.nimbusds.jwt.proc.ConfigurableJWTProcessor;
-import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import com.nimbusds.jwt.proc.BadJWTException;
+import com.oracle.idcs.oauth.util.EventLog;
 
 import java.text.ParseException;
-import java.util.logging.Logger;
+import java.util.Collections;
+import java.util.function.BooleanSupplier;
 
 /**
  * Validates access tokens sent to sales insight
  */
 public class AccessTokenValidator {
 
-    private static boolean isSafe = false;
-    private static final ConfigurableJWTProcessor JWT_PROCESSOR = new DefaultJWTProcessor();
-    private  static final Logger LOGGER = Logger.getLogger("IDCS_GTW_LOGGER");
+    private  static final EventLog LOGGER = EventLog.get("IDCS_GTW_LOGGER");
+    private static volatile IssuerRegistry issuers;
+    private static RejectCache rejectCache;
+
+    /**
+     * The signing key of the issuer could not be loaded, the token may well be valid
+     */
+    public static class SigningKeyUnavailableException extends InvalidTokenException {
+        public SigningKeyUnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The signature could not be verified with the keys loaded, eg: during a key rollover, until the reload interval
+     * lets the new key in. The same token may then pass
+     */
+    public static class SignatureRejectedException extends InvalidTokenException {
+        public SignatureRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The token names a loaded key but does not verify with it, eg: forged. Only new keys may change that
+     */
+    public static class InvalidSignatureException extends SignatureRejectedException {
+        public InvalidSignatureException(String message) {
+            super(message);
+        }
+    }
 
     public void init(ResourceServerConfig rsc) {
-        if (!AccessTokenValidator.isSafe) {
-            try {
-                JWKSet jwk = JWKUtil.getJWK(rsc);
-                JWKSource keySource = new ImmutableJWKSet(jwk);
-                JWSKeySelector keySelector = new JWSVerificationKeySelector(JWSAlgorithm.RS256, keySource);
-                JWT_PROCESSOR.setJWSKeySelector(keySelector);
-                AccessTokenValidator.isSafe = true;
-                LOGGER.info("Signing Key from IDCS successfully loaded!");
-            } catch (Exception ex) {
-                LOGGER.severe("Error loading Signing Key from IDCS: " + ex);
-                AccessTokenValidator.isSafe = false;
+        // Signing keys are loaded per issuer, with its first token
+        if (AccessTokenValidator.issuers == null) {
+            synchronized (AccessTokenValidator.class) {
+                if (AccessTokenValidator.issuers == null) {
+                    AccessTokenValidator.rejectCache = new RejectCache(rsc.REJECT_CACHE_TTL_MS, rsc.REJECT_CACHE_MAX_ENTRIES);
+                    AccessTokenValidator.issuers = new IssuerRegistry(rsc);
+                }
             }
         }
     }
 
-    //checks if the token is valid
+    //checks if the token is valid, cheap checks and recently rejected tokens first, then the signature
     public JWTClaimsSet validate(ResourceServerConfig rsc, String accessToken) {
-        if (AccessTokenValidator.isSafe) {
+        String rejected = rejectCache == null ? null : rejectCache.get(accessToken);
+        if (rejected != null) {
+            LOGGER.fine("token.rejected.cached");
+            throw new InvalidTokenException(rejected);
+        }
+        IssuerRegistry.IssuerValidator validator;
+        try {
+            validator = TokenPreValidator.check(rsc, issuers, accessToken);
+        } catch (TokenPreValidator.NotYetValidException ex) {
+            // Will become valid, do not remember it
+            throw ex;
+        } catch (InvalidTokenException ex) {
+            remember(accessToken, ex, null);
+            throw ex;
+        }
+        // Taken before verifying, keys loaded while verifying then make the rejection void straight away
+        JWKSet keys = validator.getKeys();
+        try {
+            return verify(validator, accessToken);
+        } catch (InvalidSignatureException ex) {
+            // An RSA verification each time otherwise, holds as long as the same keys are loaded
+            remember(accessToken, ex, () -> keys != null && validator.getKeys() == keys);
+            throw ex;
+        } catch (SigningKeyUnavailableException | SignatureRejectedException ex) {
+            // May pass once the keys load, do not remember it
+            throw ex;
+        } catch (InvalidTokenException ex) {
+            remember(accessToken, ex, null);
+            throw ex;
+        }
+    }
+
+    private static void remember(String accessToken, InvalidTokenException ex, BooleanSupplier holds) {
+        if (rejectCache != null) {
+            rejectCache.put(accessToken, ex.getMessage(), holds);
+        }
+    }
 
-            try {
-                SecurityContext ctx = null;
-                JWTClaimsSet claimsSet = JWT_PROCESSOR.process(accessToken, ctx);
+    private JWTClaimsSet verify(IssuerRegistry.IssuerValidator validator, String accessToken) {
+        IdentityDomain domain = validator.getDomain();
+        try {
+            SecurityContext ctx = null;
+            JWTClaimsSet claimsSet = validator.getJwtProcessor().process(accessToken, ctx);
 
-                //VALIDATE AUDIENCE
-                if (claimsSet.getAudience().indexOf(rsc.SCOPE_ID) >= 0) {
+            //VALIDATE AUDIENCE
+            if (!Collections.disjoint(claimsSet.getAudience(), domain.AUDIENCES)) {
 
 
-                    //CORRECT AUDIENCE
-                    LOGGER.fine("Valid Audience found");
+                //CORRECT AUDIENCE
+                LOGGER.fine("token.audience.valid");
 
-                    return claimsSet;
-                } else {
-                    String message = "Incorrect audience, got " + claimsSet.getAudience() + " instead of expected " + rsc.SCOPE_ID;
-                    LOGGER.severe(message);
-                    throw new InvalidTokenException(message);
-                }
-            } catch (JOSEException ex) {
-
-                LOGGER.severe("Invalid Token Exception" + ex.getMessage());
-                throw new InvalidTokenException(ex.getMessage());
-            } catch (BadJOSEException ex) {
-                LOGGER.severe("Bad Token Exception " + ex.getMessage());
-                throw new InvalidTokenException(ex.getMessage());
-                //BadJWEException, BadJWSException, BadJWTException
-                //Bad JSON Web Encryption (JWE) exception. Used to indicate a JWE-protected object that couldn't be successfully decrypted or its integrity has been compromised.
-                //Bad JSON Web Signature (JWS) exception. Used to indicate an invalid signature or hash-based message authentication code (HMAC).
-                //Bad JSON Web Token (JWT) exception.
-            } catch (ParseException ex) {
-                LOGGER.severe(ex.getLocalizedMessage());
-                throw new InvalidTokenException(ex.getMessage());
+                return claimsSet;
+            } else {
+                String message = "Incorrect audience, got " + claimsSet.getAudience() + " instead of expected " + domain.AUDIENCES;
+                LOGGER.severe("token.audience.invalid", "audiences", String.join(",", claimsSet.getAudience()));
+                throw new InvalidTokenException(message);
             }
-        } else {
-            LOGGER.severe("Resource Server application is not able to validate tokens");
-            throw new InvalidTokenException("Resource Server application is not able to validate tokens");
+        } catch (KeySourceException ex) {
+
+            LOGGER.severe("token.key.unavailable", "domain", domain.NAME);
+            throw new SigningKeyUnavailableException("Resource Server application is not able to validate tokens");
+        } catch (JOSEException ex) {
+
+            LOGGER.severe("token.signature.invalid", "error", ex.getMessage());
+            throw new SignatureRejectedException(ex.getMessage());
+        } catch (BadJWSException ex) {
+            // Signed with another key than the one it names
+            LOGGER.severe("token.signature.invalid", "error", ex.getMessage());
+            throw new InvalidSignatureException(ex.getMessage());
+        } catch (BadJWTException ex) {
+            // Claims, eg: expired
+            LOGGER.severe("token.claims.invalid", "error", ex.getMessage());
+            throw new InvalidTokenException(ex.getMessage());
+        } catch (BadJOSEException ex) {
+            // No matching key, or a signature the keys loaded do not verify
+            LOGGER.severe("token.signature.rejected", "error", ex.getMessage());
+            throw new SignatureRejectedException(ex.getMessage());
+        } catch (ParseException ex) {
+            LOGGER.severe("token.parse.failed", "error", ex.getLocalizedMessage());
+            throw new InvalidTokenException(ex.getMessage());
         }
     }
 }
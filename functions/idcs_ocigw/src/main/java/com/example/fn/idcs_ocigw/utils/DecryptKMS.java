@@ -6,17 +6,22 @@ package com.example.fn.idcs_ocigw.utils;
 
 
 import java.util.Base64;
+import com.oracle.bmc.ClientConfiguration;
 import com.oracle.bmc.auth.AbstractAuthenticationDetailsProvider;
 import com.oracle.bmc.auth.ResourcePrincipalAuthenticationDetailsProvider;
 import com.oracle.bmc.keymanagement.KmsCryptoClient;
 import com.oracle.bmc.keymanagement.model.DecryptDataDetails;
 import com.oracle.bmc.keymanagement.requests.DecryptRequest;
 import com.oracle.bmc.keymanagement.responses.DecryptResponse;
-import java.util.logging.Logger;
+import com.oracle.idcs.oauth.util.Deadline;
+import com.oracle.idcs.oauth.util.EventLog;
 
 
 public class DecryptKMS {
-    private  static final Logger LOGGER = Logger.getLogger("IDCS_GTW_LOGGER");
+    private  static final EventLog LOGGER = EventLog.get("IDCS_GTW_LOGGER");
+    // KMS timeouts, shortened to what is left of the invocation
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 60000;
 
     private DecryptKMS()
     {
@@ -24,18 +29,23 @@ public class DecryptKMS {
     }
     public static String decodeKMSString(String kmsEndpoint,String kmsKeyOCID,String encryptedText)  {
 
-        LOGGER.info("Decrypting key");
+        LOGGER.info("kms.decrypt");
         AbstractAuthenticationDetailsProvider provider = null;
 
         provider = ResourcePrincipalAuthenticationDetailsProvider.builder().build();
 
-        KmsCryptoClient cryptoClient = KmsCryptoClient.builder().endpoint(kmsEndpoint).build(provider);
+        Deadline deadline = Deadline.current();
+        ClientConfiguration configuration = ClientConfiguration.builder()
+                .connectionTimeoutMillis(deadline.timeoutMs(CONNECT_TIMEOUT_MS, "calling KMS"))
+                .readTimeoutMillis(deadline.timeoutMs(READ_TIMEOUT_MS, "calling KMS"))
+                .build();
+        KmsCryptoClient cryptoClient = KmsCryptoClient.builder().endpoint(kmsEndpoint).configuration(configuration).build(provider);
         DecryptDataDetails decryptDataDetails = DecryptDataDetails.builder().keyId(kmsKeyOCID).ciphertext(encryptedText).build();
         DecryptRequest decryptRequest = DecryptRequest.builder().decryptDataDetails(decryptDataDetails).build();
         DecryptResponse decryptResponse = cryptoClient.decrypt(decryptRequest);
         String decryptedDEK = decryptResponse.getDecryptedData().getPlaintext();
         String plainText=  new String (Base64.getDecoder().decode(decryptedDEK.getBytes()));
-        LOGGER.info("Key Decrypted");
+        LOGGER.info("kms.decrypted");
         return plainText;
     }
 
@@ -0,0 +1,125 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import com.fnproject.fn.api.RuntimeContext;
+import com.nimbusds.jwt.JWTParser;
+import com.oracle.bmc.Region;
+import com.oracle.idcs.oauth.SecurityHelper;
+import com.oracle.idcs.oauth.util.DeadlineExceededException;
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exchanges a validated user token for a Fusion token with the IDCS assertion of the asserter library, so that the
+ * backend function gets a token ready to use and neither decodes nor asserts anything.
+ *
+ * Fusion tokens are cached per principal until shortly before they expire. The authorizer runs on few containers, so
+ * a principal's token is reused far more often than in the backend containers. The cache is keyed by the issuer and
+ * tenant of the user token as well as its subject, users of different domains or tenants may share a subject.
+ *
+ * Only created when gateway_token_exchange is on, the asserter and the OCI Secrets client are not loaded otherwise.
+ */
+public class FusionTokenExchange {
+
+    private static final EventLog LOGGER = EventLog.get("IDCS_GTW_LOGGER");
+    private static final String TOKEN_BEARER_PREFIX = "Bearer ";
+
+    private final RuntimeContext ctx;
+    private final Region region;
+    private final long marginMs;
+    private final int maxEntries;
+    private final Map<String, FusionToken> tokens = new ConcurrentHashMap<>();
+
+    /**
+     * Fusion token of one principal
+     */
+    public static class FusionToken {
+        private final String token;
+        private final long expiresAt;
+
+        FusionToken(String token, long expiresAt) {
+            this.token = token;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        /**
+         * @return expiration time of the token, in ms since the epoch, 0 if not known
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    /**
+     * @param ctx : Configuration of the asserter (IDCS_URL, CLIENT_ID, V_KEYSTORE...)
+     * @param regionId : Region of the Vault holding the keystore and its passphrases
+     * @param marginMs : A cached token is not handed out when it expires within this time
+     * @param maxEntries : Principals cached at most, new ones are not cached when full
+     */
+    public FusionTokenExchange(RuntimeContext ctx, String regionId, long marginMs, int maxEntries) {
+        this.ctx = ctx;
+        this.region = Region.fromRegionId(regionId);
+        this.marginMs = marginMs;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @param issuer : Issuer of the validated user token
+     * @param tenant : Tenant of the validated user token
+     * @param principal : Subject of the validated user token
+     * @param userToken : Validated user token, without the Bearer prefix
+     * @return the Fusion token of the principal
+     * @throws DeadlineExceededException : The invocation budget was spent asserting
+     * @throws Exception : The assertion failed
+     */
+    public FusionToken exchange(String issuer, String tenant, String principal, String userToken) throws Exception {
+        long now = System.currentTimeMillis();
+        String key = issuer + "|" + tenant + "|" + principal;
+        FusionToken cached = tokens.get(key);
+        if (cached != null && cached.expiresAt - marginMs > now) {
+            LOGGER.fine("exchange.cache.hit");
+            return cached;
+        }
+
+        // Same thread, the asserter sees the deadline of this invocation
+        String token = new SecurityHelper(ctx)
+                .setOciRegion(region)
+                .extractSubFromJwtToken(TOKEN_BEARER_PREFIX + userToken)
+                .getAssertedAccessToken();
+        FusionToken exchanged = new FusionToken(token, expiresAt(token));
+        LOGGER.info("exchange.asserted", "principal", principal);
+        if (exchanged.expiresAt == 0) {
+            return exchanged;
+        }
+
+        if (tokens.size() >= maxEntries) {
+            tokens.values().removeIf(expired -> expired.expiresAt - marginMs <= now);
+        }
+        if (tokens.size() < maxEntries || tokens.containsKey(key)) {
+            tokens.put(key, exchanged);
+        }
+        return exchanged;
+    }
+
+    private static long expiresAt(String token) {
+        try {
+            Date exp = JWTParser.parse(token).getJWTClaimsSet().getExpirationTime();
+            if (exp != null) {
+                return exp.getTime();
+            }
+        } catch (java.text.ParseException e) {
+            LOGGER.warning("exchange.exp.unreadable", "error", e.getMessage());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * One identity domain whose tokens the authorizer accepts : the iss value of its tokens, where to get its signing
+ * keys and the audiences its tokens may be issued for.
+ */
+public class IdentityDomain {
+
+    public  final String NAME;
+    public  final String ISSUER;
+    public  final String IDCS_URL;
+    public  final String JWK_URL;
+    public  final String TOKEN_URL;
+    public  final String CLIENT_ID;
+    public  final Set<String> AUDIENCES;
+
+    private final Supplier<String> clientSecret;
+    private volatile String decodedClientSecret;
+
+    /**
+     * @param audiences : Comma separated
+     * @param clientSecret : Called once, when the secret is first needed, eg: to decrypt it with KMS
+     */
+    public IdentityDomain(String name, String issuer, String idcsUrl, String audiences, String clientId, Supplier<String> clientSecret) {
+        NAME = name;
+        ISSUER = issuer;
+        IDCS_URL = idcsUrl;
+        JWK_URL = idcsUrl + "/admin/v1/SigningCert/jwk";
+        TOKEN_URL = idcsUrl + "/oauth2/v1/token";
+        CLIENT_ID = clientId;
+        Set<String> audienceSet = new LinkedHashSet<>();
+        for (String audience : Arrays.asList(audiences.split(","))) {
+            if (!audience.trim().isEmpty()) {
+                audienceSet.add(audience.trim());
+            }
+        }
+        AUDIENCES = Collections.unmodifiableSet(audienceSet);
+        this.clientSecret = clientSecret;
+    }
+
+    public String getClientSecret() {
+        String secret = decodedClientSecret;
+        if (secret == null) {
+            synchronized (this) {
+                if (decodedClientSecret == null) {
+                    decodedClientSecret = clientSecret.get().trim();
+                }
+                secret = decodedClientSecret;
+            }
+        }
+        return secret;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.proc.ConfigurableJWTProcessor;
+import com.nimbusds.jwt.proc.DefaultJWTClaimsVerifier;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The identity domains whose tokens are accepted, keyed by the iss claim of their tokens. Built once per container
+ * and never modified, so looking up the issuer of a token takes no lock.
+ *
+ * A single domain configured without idcs_app_issuer (deployments from before several domains were supported) keeps
+ * accepting tokens whatever their iss, their signature is still checked against the keys of that domain.
+ */
+public class IssuerRegistry {
+
+    private static final EventLog LOGGER = EventLog.get("IDCS_GTW_LOGGER");
+
+    private final Map<String, IssuerValidator> validators;
+    // Set when the issuer is not checked
+    private final IssuerValidator onlyDomain;
+
+    /**
+     * Validates the tokens of one identity domain, with its own signing keys
+     */
+    public static class IssuerValidator {
+        private final IdentityDomain domain;
+        private final RefreshingJWKSource keySource;
+        private final ConfigurableJWTProcessor<SecurityContext> jwtProcessor = new DefaultJWTProcessor<>();
+
+        IssuerValidator(ResourceServerConfig rsc, IdentityDomain domain) {
+            this.domain = domain;
+            this.keySource = new RefreshingJWKSource(rsc, domain);
+            jwtProcessor.setJWSKeySelector(new JWSVerificationKeySelector<>(JWSAlgorithm.RS256, keySource));
+            // exp and nbf allowed the same skew as in the pre-checks
+            DefaultJWTClaimsVerifier<SecurityContext> claimsVerifier = new DefaultJWTClaimsVerifier<>();
+            claimsVerifier.setMaxClockSkew((int) rsc.CLOCK_SKEW_S);
+            jwtProcessor.setJWTClaimsSetVerifier(claimsVerifier);
+        }
+
+        public IdentityDomain getDomain() {
+            return domain;
+        }
+
+        /**
+         * @return the signing keys of the domain loaded last, null before the first token
+         */
+        public JWKSet getKeys() {
+            return keySource.getKeys();
+        }
+
+        public ConfigurableJWTProcessor<SecurityContext> getJwtProcessor() {
+            return jwtProcessor;
+        }
+    }
+
+    public IssuerRegistry(ResourceServerConfig rsc) {
+        Map<String, IssuerValidator> byIssuer = new HashMap<>();
+        for (IdentityDomain domain : rsc.DOMAINS) {
+            if (byIssuer.containsKey(domain.ISSUER)) {
+                // Tokens cannot tell which of the two domains issued them
+                LOGGER.severe("config.domain.ignored", "domain", domain.NAME, "issuer", domain.ISSUER,
+                        "usedBy", byIssuer.get(domain.ISSUER).domain.NAME);
+                continue;
+            }
+            byIssuer.put(domain.ISSUER, new IssuerValidator(rsc, domain));
+        }
+        validators = Collections.unmodifiableMap(byIssuer);
+        onlyDomain = rsc.CHECK_ISSUER ? null : validators.get(rsc.ISSUER);
+    }
+
+    /**
+     * @return the validator of the domain issuing tokens with this iss, null if not trusted
+     */
+    public IssuerValidator get(String issuer) {
+        if (onlyDomain != null) {
+            return onlyDomain;
+        }
+        return issuer == null ? null : validators.get(issuer);
+    }
+}
@@ -7,21 +7,35 @@ package com.example.fn.idcs_ocigw.utils;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.nimbusds.jose.jwk.JWKSet;
+import com.oracle.idcs.oauth.util.Deadline;
+import com.oracle.idcs.oauth.util.DeadlineExceededException;
+import com.oracle.idcs.oauth.util.EventLog;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.net.Proxy;
-import java.net.URL;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
-import java.util.logging.Logger;
 
 public class JWKUtil {
 
+    // One client per proxy setting, kept for the life of the container so IDCS connections are reused.
+    // HTTP/2 is negotiated over ALPN, through the proxy too, with a fall back to HTTP/1.1
+    private static final Map<String, HttpClient> CLIENTS = new ConcurrentHashMap<>();
+    // Request timeout, shortened to what is left of the invocation
+    private static final long REQUEST_TIMEOUT_MS = 30000;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final EventLog LOGGER = EventLog.get(JWKUtil.class.getName());
 
     private JWKUtil()
     {
@@ -33,18 +47,28 @@ public class JWKUtil {
      * @return Identity Cloud Services signing key
      */
     public static JWKSet getJWK(ResourceServerConfig resourceServerConfig) throws Exception{
-        String jwk;
-        String authURL = resourceServerConfig.JWK_URL;
-        Response httpResponse;
+        return getJWK(resourceServerConfig, resourceServerConfig.DOMAINS.get(0));
+    }
+
+    /**
+     * Retrieve the signing key of one identity domain in JWK (JSON Web Key) format
+     * @return signing key of the domain
+     */
+    public static JWKSet getJWK(ResourceServerConfig resourceServerConfig, IdentityDomain domain) throws Exception{
+        String authURL = domain.JWK_URL;
 
         //HEADERS
         Map<String, String> requestOptions = new HashMap<>();
 
-        requestOptions.put("Authorization", "Bearer "  + getBearer(resourceServerConfig,
+        requestOptions.put("Authorization", "Bearer "  + getBearer(resourceServerConfig, domain,
                                                             "urn:opc:idm:__myscopes__"));
-        httpResponse = doHttpRequest( resourceServerConfig, authURL, "GET", null, requestOptions);
-        jwk = httpResponse.getResponseBodyAsString("UTF-8");
-        return JWKSet.parse(jwk);
+        // Parsed as it arrives, the connection goes back to the pool once read
+        try (Response httpResponse = doHttpRequest( resourceServerConfig, authURL, "GET", null, requestOptions);
+             InputStream in = httpResponse.getInputStream()) {
+            return JWKSet.load(in);
+        } catch (HttpTimeoutException e) {
+            throw timedOut(e, authURL);
+        }
     }
 
     /**
@@ -53,30 +77,43 @@ public class JWKUtil {
      * @throws Exception
      */
     public static String getBearer(ResourceServerConfig resourceServerConfig, String scope) throws Exception{
+        return getBearer(resourceServerConfig, resourceServerConfig.DOMAINS.get(0), scope);
+    }
+
+    /**
+     * Gets an Access token from one identity domain using the client_credentials flow
+     * @return Access token
+     * @throws Exception
+     */
+    public static String getBearer(ResourceServerConfig resourceServerConfig, IdentityDomain domain, String scope) throws Exception{
         String bearer = "";
-        String url = resourceServerConfig.TOKEN_URL;
-        Response httpResponse;
+        String url = domain.TOKEN_URL;
 
         //HEADER
         Map<String, String> requestOptions = new HashMap<>();
-        String authzHdrVal = resourceServerConfig.CLIENT_ID + ":" + resourceServerConfig.CLIENT_SECRET;
+        String authzHdrVal = domain.CLIENT_ID + ":" + domain.getClientSecret();
         requestOptions.put("Authorization", "Basic "  + Base64.getEncoder().encodeToString(authzHdrVal.getBytes(StandardCharsets.UTF_8)));
 
         //BODY
         String postBody = "grant_type=client_credentials"+"&scope=" + scope;
 
         //REQUEST
-        httpResponse = doHttpRequest( resourceServerConfig,url, "POST", postBody, requestOptions);
-        bearer = httpResponse.getResponseBodyAsString("UTF-8");
-
-        ObjectMapper mapper = new ObjectMapper();
-        JsonNode root=mapper.readTree(bearer);
-        bearer=root.get("access_token").asText();
+        try (Response httpResponse = doHttpRequest( resourceServerConfig,url, "POST", postBody, requestOptions);
+             InputStream in = httpResponse.getInputStream()) {
+            JsonNode root = MAPPER.readTree(in);
+            bearer=root.get("access_token").asText();
+        } catch (HttpTimeoutException e) {
+            throw timedOut(e, url);
+        }
 
 
         return bearer;
     }
 
+    /**
+     * @return the response, to be closed by the caller (reading the whole body also does). The request timeout
+     * bounds the whole exchange, reading the body included
+     */
     public static Response doHttpRequest(ResourceServerConfig resourceServerConfig, final String urlStr,
                                          final String requestMethod, final String body,
                                          final Map<String, String> header) throws Exception {
@@ -90,47 +127,72 @@ public class JWKUtil {
                                          final String requestMethod, final String body,
                                          final Map<String, String> header,
                                          boolean useProxy, String proxyHost, int proxyPort) throws Exception {
-        HttpURLConnection conn;
+        HttpResponse<InputStream> response;
+        long start = System.currentTimeMillis();
+        long timeoutMs;
         try {
-            URL url = new URL(urlStr);
-            String completeUrl = (body != null) ? urlStr+"?"+body : urlStr;
-            Logger.getLogger(JWKUtil.class.getName()).log(Level.INFO, "Request URL: "+completeUrl);
-            if (useProxy) {
-                Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxyHost, proxyPort));
-                conn = (HttpURLConnection) url.openConnection(proxy);
-            } else {
-                conn = (HttpURLConnection) url.openConnection();
-            }
-            conn.setDoOutput(true);
-            conn.setDoInput(true);
-            conn.setInstanceFollowRedirects(true);
-            if (requestMethod != null) {
-                conn.setRequestMethod(requestMethod);
+            // Neither the body nor the headers are logged, they carry the client credentials
+            LOGGER.fine("idcs.request", "method", requestMethod, "url", urlStr);
+            HttpClient client = CLIENTS.computeIfAbsent(useProxy ? proxyHost + ":" + proxyPort : "",
+                    key -> buildClient(useProxy, proxyHost, proxyPort));
+
+            // Only POST and PUT carry the body
+            boolean hasBody = body != null
+                && requestMethod != null
+                && !"GET".equals(requestMethod)
+                && !"DELETE".equals(requestMethod);
+            timeoutMs = Deadline.current().timeoutMs(REQUEST_TIMEOUT_MS, "calling IDCS");
+            HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(urlStr))
+                .timeout(Duration.ofMillis(timeoutMs))
+                .method(requestMethod == null ? "GET" : requestMethod,
+                    hasBody ? HttpRequest.BodyPublishers.ofString(body) : HttpRequest.BodyPublishers.noBody());
+            if (hasBody) {
+                // Form post, as HttpURLConnection used to default to
+                request.header("Content-Type", "application/x-www-form-urlencoded");
             }
             if (header != null) {
                 for (String key : header.keySet()) {
-                    conn.setRequestProperty(key, header.get(key));
-                    Logger.getLogger(JWKUtil.class.getName()).log(Level.INFO, "Header: "+key+": "+header.get(key));
+                    request.setHeader(key, header.get(key));
                 }
             }
 
-            // If use POST or PUT must use this
-            OutputStreamWriter wr = null;
-            if (body != null
-                && requestMethod != null
-                && !"GET".equals(requestMethod)
-                && !"DELETE".equals(requestMethod)) {
-                wr = new OutputStreamWriter(conn.getOutputStream());
-                wr.write(body);
-                wr.flush();
-            }
-
-            conn.connect();
+            response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            LOGGER.fine("idcs.response", "version", response.version(), "status", response.statusCode());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Exception(e);
+        } catch (DeadlineExceededException e) {
+            throw e;
+        } catch (HttpTimeoutException e) {
+            throw timedOut(e, urlStr);
         } catch (Exception e) {
-            Logger.getLogger(AccessTokenValidator.class.getName()).log(Level.SEVERE, "HTTP UTIL: exception :" + e.getMessage(), e);
+            LOGGER.log(Level.SEVERE, "idcs.request.failed", e, "url", urlStr);
             throw new Exception(e);
         }
-        return new Response(conn);
+        // At least 1ms, the body of a response that only just made it is then aborted straight away
+        return new Response(response, Math.max(1, timeoutMs - (System.currentTimeMillis() - start)));
 
     }
+
+    /**
+     * @return a DeadlineExceededException if the invocation ran out of time rather than the call
+     */
+    private static Exception timedOut(HttpTimeoutException e, String urlStr) {
+        if (Deadline.current().isExpired()) {
+            return new DeadlineExceededException("Invocation time budget spent waiting for IDCS");
+        }
+        LOGGER.log(Level.SEVERE, "idcs.request.failed", e, "url", urlStr);
+        return new Exception(e);
+    }
+
+    private static HttpClient buildClient(boolean useProxy, String proxyHost, int proxyPort) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(10));
+        if (useProxy) {
+            builder.proxy(ProxySelector.of(new InetSocketAddress(proxyHost, proxyPort)));
+        }
+        return builder.build();
+    }
 }
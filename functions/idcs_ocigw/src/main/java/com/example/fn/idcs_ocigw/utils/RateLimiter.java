@@ -0,0 +1,90 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket per key (principal and tenant), so that one client flooding the API is denied by the authorizer
+ * before using up the Fusion quota and the concurrency of the backend function.
+ *
+ * Each bucket is a single AtomicLong, the time at which it will be full again (GCRA form of the token bucket), updated
+ * with compare and set, no lock. A bucket past that time by more than the idle time is full and unused, sweeps drop
+ * it without changing anything for its key.
+ */
+public class RateLimiter {
+
+    private static final EventLog LOGGER = EventLog.get("IDCS_GTW_LOGGER");
+    private static final long ORIGIN = System.nanoTime();
+
+    private final long intervalUs;      // Time for one token to come back
+    private final long capacityUs;      // Time for the whole bucket to come back
+    private final long idleUs;
+    private final int maxBuckets;
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    /**
+     * @param ratePerSecond : Requests per second a key gets in the long run, 0 or less disables the limiter
+     * @param burst : Requests a key may send at once
+     * @param idleMs : Buckets unused (and full) for this long are dropped
+     * @param maxBuckets : Keys tracked at most, requests of new keys are let through when full
+     */
+    public RateLimiter(double ratePerSecond, int burst, long idleMs, int maxBuckets) {
+        this.intervalUs = ratePerSecond > 0 ? Math.max(1, (long) (1_000_000 / ratePerSecond)) : 0;
+        this.capacityUs = intervalUs * Math.max(1, burst);
+        this.idleUs = idleMs * 1000;
+        this.maxBuckets = maxBuckets;
+    }
+
+    public boolean isEnabled() {
+        return intervalUs > 0;
+    }
+
+    /**
+     * Takes a token from the bucket of the key
+     * @return 0 if the request may go, else the ms after which it would
+     */
+    public long acquire(String key) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        long now = (System.nanoTime() - ORIGIN) / 1000;
+        sweep(now);
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxBuckets) {
+                LOGGER.warning("ratelimit.full", "keys", buckets.size());
+                return 0;
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        while (true) {
+            long fullAt = bucket.get();
+            long next = Math.max(fullAt, now) + intervalUs;
+            if (next - now > capacityUs) {
+                // Rounded up, retrying earlier is denied again
+                return (next - now - capacityUs + 999) / 1000;
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private void sweep(long now) {
+        long due = nextSweep.get();
+        if (now < due || !nextSweep.compareAndSet(due, now + idleUs)) {
+            return;
+        }
+        int before = buckets.size();
+        buckets.values().removeIf(bucket -> bucket.get() < now - idleUs);
+        LOGGER.fine("ratelimit.swept", "dropped", before - buckets.size());
+    }
+}
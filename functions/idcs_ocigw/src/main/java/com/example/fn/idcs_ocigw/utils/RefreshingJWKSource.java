@@ -0,0 +1,100 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.oracle.idcs.oauth.util.DeadlineExceededException;
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.util.List;
+
+/**
+ * Signing keys of one identity domain, loaded from IDCS when its first token is validated and reloaded when they
+ * get older than JWK_REFRESH_MS, or when a token is signed with a key not in the set (key rollover).
+ *
+ * Reads only touch a volatile field. A reload is done by one thread at a time, at most every JWK_MIN_REFRESH_MS,
+ * and if it fails the keys already loaded are kept.
+ */
+public class RefreshingJWKSource implements JWKSource<SecurityContext> {
+
+    private static final EventLog LOGGER = EventLog.get("IDCS_GTW_LOGGER");
+
+    private final ResourceServerConfig rsc;
+    private final IdentityDomain domain;
+    private volatile JWKSet jwkSet;
+    private volatile long loadedAt;
+    // Guarded by this
+    private long lastAttempt;
+
+    public RefreshingJWKSource(ResourceServerConfig rsc, IdentityDomain domain) {
+        this.rsc = rsc;
+        this.domain = domain;
+    }
+
+    @Override
+    public List<JWK> get(JWKSelector jwkSelector, SecurityContext context) throws KeySourceException {
+        JWKSet keys = jwkSet;
+        if (keys == null || System.currentTimeMillis() - loadedAt > rsc.JWK_REFRESH_MS) {
+            keys = reload(keys);
+        }
+        List<JWK> matches = jwkSelector.select(keys);
+        if (matches.isEmpty()) {
+            // Maybe signed with a key IDCS rolled over to since the last load
+            JWKSet reloaded = reload(keys);
+            if (reloaded != keys) {
+                matches = jwkSelector.select(reloaded);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the keys loaded last, a new instance on every reload, null before the first one
+     */
+    public JWKSet getKeys() {
+        return jwkSet;
+    }
+
+    /**
+     * @param seen : Keys the caller found wanting, null if none were loaded
+     * @return the newest keys
+     */
+    private synchronized JWKSet reload(JWKSet seen) throws KeySourceException {
+        if (jwkSet != seen) {
+            // Reloaded by another thread meanwhile
+            return jwkSet;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastAttempt < rsc.JWK_MIN_REFRESH_MS) {
+            if (seen == null) {
+                throw new KeySourceException("Signing Key of IDCS domain " + domain.NAME + " not available");
+            }
+            return seen;
+        }
+        lastAttempt = now;
+        try {
+            JWKSet loaded = JWKUtil.getJWK(rsc, domain);
+            loadedAt = now;
+            jwkSet = loaded;
+            LOGGER.info("jwk.loaded", "domain", domain.NAME);
+            return loaded;
+        } catch (DeadlineExceededException ex) {
+            // Not a key problem, the next invocation loads it again
+            lastAttempt = 0;
+            throw ex;
+        } catch (Exception ex) {
+            LOGGER.severe("jwk.load.failed", "domain", domain.NAME, "error", ex);
+            if (seen == null) {
+                throw new KeySourceException("Signing Key of IDCS domain " + domain.NAME + " not available", ex);
+            }
+            return seen;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Remembers recently rejected tokens for a short while, so that a client retrying the same bad token (a stale tab
+ * polling, a misconfigured script) is denied from memory instead of being parsed and verified again.
+ *
+ * Tokens are keyed by their SHA-256, only the rejection message is kept. A rejection may also hold only while a
+ * condition does, eg: while the signing keys it was checked against are the ones loaded.
+ */
+public class RejectCache {
+
+    private final long ttlMs;
+    private final int maxEntries;
+    private final Map<String, Rejection> rejections = new ConcurrentHashMap<>();
+
+    private static class Rejection {
+        final String message;
+        final long expiresAt;
+        final BooleanSupplier holds;
+
+        Rejection(String message, long expiresAt, BooleanSupplier holds) {
+            this.message = message;
+            this.expiresAt = expiresAt;
+            this.holds = holds;
+        }
+    }
+
+    /**
+     * @param ttlMs : How long a rejection is remembered, 0 disables the cache
+     * @param maxEntries : Rejections kept at most, new ones are not cached when full
+     */
+    public RejectCache(long ttlMs, int maxEntries) {
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the message the token was rejected with, null if it was not recently rejected
+     */
+    public String get(String token) {
+        if (ttlMs <= 0) {
+            return null;
+        }
+        String key = key(token);
+        Rejection rejection = rejections.get(key);
+        if (rejection == null) {
+            return null;
+        }
+        if (rejection.expiresAt < System.currentTimeMillis() || (rejection.holds != null && !rejection.holds.getAsBoolean())) {
+            rejections.remove(key, rejection);
+            return null;
+        }
+        return rejection.message;
+    }
+
+    public void put(String token, String message) {
+        put(token, message, null);
+    }
+
+    /**
+     * @param holds : Rejection forgotten as soon as it returns false, null if it holds until the ttl
+     */
+    public void put(String token, String message, BooleanSupplier holds) {
+        if (ttlMs <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (rejections.size() >= maxEntries) {
+            rejections.values().removeIf(rejection -> rejection.expiresAt < now);
+            if (rejections.size() >= maxEntries) {
+                // A storm of distinct bad tokens, they are rejected by the pre-checks cheaply enough
+                return;
+            }
+        }
+        rejections.put(key(token), new Rejection(message, now + ttlMs, holds));
+    }
+
+    private static String key(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -5,8 +5,14 @@ Licensed under the Universal Permissive License v 1.0 as shown at https://oss.or
 package com.example.fn.idcs_ocigw.utils;
 
 import com.fnproject.fn.api.RuntimeContext;
+import com.oracle.idcs.oauth.util.Deadline;
+import com.oracle.idcs.oauth.util.EventLog;
 
-import java.util.logging.Logger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
 
 /**
  * It contains the resource server configuration and constants
@@ -31,40 +37,135 @@ public class ResourceServerConfig {
     public  final String PROXY_HOST;
     public  final int PROXY_PORT;
     public  final String DEBUG_LEVEL;
+    //FRACTION OF THE CALLS WHOSE INFO EVENTS ARE LOGGED, SEE EventLog
+    public  final double LOG_INFO_SAMPLE_RATE;
+    public  final int LOG_QUEUE_CAPACITY;
+    //TIME BUDGET OF AN INVOCATION, SAME AS THE TIMEOUT IN func.yaml
+    public  final long INVOCATION_BUDGET_MS;
+    //TOKEN PRE-CHECKS
+    public  final long CLOCK_SKEW_S;
+    public  final long REJECT_CACHE_TTL_MS;
+    public  final int REJECT_CACHE_MAX_ENTRIES;
+    //IDENTITY DOMAINS WHOSE TOKENS ARE ACCEPTED, THE ONE ABOVE FIRST
+    public  final String ISSUER;
+    //FALSE FOR A SINGLE DOMAIN WITHOUT idcs_app_issuer, WHOSE TOKENS WERE NEVER CHECKED FOR iss
+    public  final boolean CHECK_ISSUER;
+    public  final List<IdentityDomain> DOMAINS;
+    public  final long JWK_REFRESH_MS;
+    public  final long JWK_MIN_REFRESH_MS;
+    //FUSION TOKEN ASSERTED BY THE AUTHORIZER FOR THE BACKEND, WITH THE ASSERTER CONFIGURATION (IDCS_URL, CLIENT_ID...)
+    public  final boolean TOKEN_EXCHANGE;
+    public  final String TOKEN_EXCHANGE_REGION;
+    public  final long TOKEN_EXCHANGE_MARGIN_S;
+    public  final int TOKEN_EXCHANGE_MAX_ENTRIES;
+    //SCOPES REQUIRED PER ROUTE, SEE RoutePolicy
+    public  final String ROUTE_SCOPES;
+    //REQUESTS PER PRINCIPAL AND TENANT, SEE RateLimiter
+    public  final double RATE_LIMIT_PER_S;
+    public  final int RATE_LIMIT_BURST;
+    public  final long RATE_LIMIT_IDLE_MS;
+    public  final int RATE_LIMIT_MAX_KEYS;
     private static final String NOT_SET_DEFAULT="NOTSET";
 
 
     /**
      * Gets defaults out of Oracle Functions Configuration
      */
-    private  static final Logger LOGGER = Logger.getLogger("IDCS_GTW_LOGGER");
+    private  static final EventLog LOGGER = EventLog.get("IDCS_GTW_LOGGER");
 
-    public ResourceServerConfig(RuntimeContext ctx)   {
-        // Get config variables from Functions Configuration
-        HAS_PROXY = Boolean.parseBoolean(ctx.getConfigurationByKey("idcs_proxy").orElse("false"));
-        PROXY_HOST = ctx.getConfigurationByKey("idcs_proxy_host").orElse("");
-        PROXY_PORT = Integer.parseInt(ctx.getConfigurationByKey("idcs_proxy_port").orElse("80"));
+    /**
+     * Decrypts a secret of the configuration, eg: with KMS
+     */
+    @FunctionalInterface
+    interface SecretDecoder {
+        String decode(String kmsEndpoint, String kmsKeyOCID, String encryptedText);
+    }
 
-        IDCS_URL = ctx.getConfigurationByKey("idcs_app_url").orElse(NOT_SET_DEFAULT);
-        SCOPE_ID = ctx.getConfigurationByKey("idcs_app_scopeid").orElse(NOT_SET_DEFAULT);
-        CLIENT_ID = ctx.getConfigurationByKey("idcs_app_clientid").orElse(NOT_SET_DEFAULT);
+    public ResourceServerConfig(RuntimeContext ctx)   {
+        this(ctx::getConfigurationByKey, DecryptKMS::decodeKMSString);
+    }
 
-        DEBUG_LEVEL = ctx.getConfigurationByKey("debug_level").orElse("INFO");
+    /**
+     * @param config : Functions Configuration, by key
+     * @param secrets : Decrypts the client secrets
+     */
+    ResourceServerConfig(Function<String, Optional<String>> config, SecretDecoder secrets)   {
+        // Get config variables from Functions Configuration
+        HAS_PROXY = Boolean.parseBoolean(config.apply("idcs_proxy").orElse("false"));
+        PROXY_HOST = config.apply("idcs_proxy_host").orElse("");
+        PROXY_PORT = Integer.parseInt(config.apply("idcs_proxy_port").orElse("80"));
+
+        IDCS_URL = config.apply("idcs_app_url").orElse(NOT_SET_DEFAULT);
+        SCOPE_ID = config.apply("idcs_app_scopeid").orElse(NOT_SET_DEFAULT);
+        CLIENT_ID = config.apply("idcs_app_clientid").orElse(NOT_SET_DEFAULT);
+
+        DEBUG_LEVEL = config.apply("debug_level").orElse("INFO");
+        LOG_INFO_SAMPLE_RATE = Double.parseDouble(config.apply("log_info_sample_rate").orElse("1"));
+        LOG_QUEUE_CAPACITY = Integer.parseInt(config.apply("log_queue_capacity").orElse("10000"));
+        INVOCATION_BUDGET_MS = Long.parseLong(config.apply("invocation_budget_ms").orElse("120000"));
+        // Same skew as the signature validation
+        CLOCK_SKEW_S = Long.parseLong(config.apply("token_clock_skew_s").orElse("60"));
+        REJECT_CACHE_TTL_MS = Long.parseLong(config.apply("token_reject_cache_ttl_ms").orElse("60000"));
+        REJECT_CACHE_MAX_ENTRIES = Integer.parseInt(config.apply("token_reject_cache_max_entries").orElse("1000"));
         JWK_URL = IDCS_URL+"/admin/v1/SigningCert/jwk";
         TOKEN_URL=IDCS_URL+"/oauth2/v1/token";
 
         // KMS Key for IDCS Client Secret
-        KMS_ENDPOINT = ctx.getConfigurationByKey("kms_endpoint").orElse(NOT_SET_DEFAULT);
-        KMS_IDCS_SECRET_KEY= ctx.getConfigurationByKey("kms_idcs_secret_key").orElse(NOT_SET_DEFAULT);
+        KMS_ENDPOINT = config.apply("kms_endpoint").orElse(NOT_SET_DEFAULT);
+        KMS_IDCS_SECRET_KEY= config.apply("kms_idcs_secret_key").orElse(NOT_SET_DEFAULT);
 
         String decodedClientSecret="";
 
-        // Decode the client Secret using KMS
-        decodedClientSecret=DecryptKMS.decodeKMSString(KMS_ENDPOINT,KMS_IDCS_SECRET_KEY,ctx.getConfigurationByKey("idcs_app_secret").orElse(NOT_SET_DEFAULT));
+        // Decode the client Secret using KMS, within the same budget as an invocation
+        try (Deadline.Scope scope = Deadline.after(INVOCATION_BUDGET_MS).enter()) {
+            decodedClientSecret=secrets.decode(KMS_ENDPOINT,KMS_IDCS_SECRET_KEY,config.apply("idcs_app_secret").orElse(NOT_SET_DEFAULT));
+        }
         decodedClientSecret=decodedClientSecret.trim();
 
         CLIENT_SECRET = decodedClientSecret;
 
-        LOGGER.info("IDCS Configuration Data read : IDCS_URL=[" + IDCS_URL + "] SCOPE_AUD=[" + SCOPE_ID +"] CLIENT_ID=["+CLIENT_ID+"], DEBUG_LEVEL=["+DEBUG_LEVEL+"]");
+        // Each identity domain must issue its tokens with its own iss
+        ISSUER = config.apply("idcs_app_issuer").orElse("https://identity.oraclecloud.com/");
+        JWK_REFRESH_MS = Long.parseLong(config.apply("jwk_refresh_ms").orElse("3600000"));
+        JWK_MIN_REFRESH_MS = Long.parseLong(config.apply("jwk_min_refresh_ms").orElse("60000"));
+        List<IdentityDomain> domains = new ArrayList<>();
+        domains.add(new IdentityDomain("default", ISSUER, IDCS_URL, SCOPE_ID, CLIENT_ID, () -> CLIENT_SECRET));
+        for (String name : config.apply("idcs_domains").orElse("").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            String prefix = "idcs_" + name + "_";
+            // Secrets of the other domains are decoded when their signing key is first needed
+            String encryptedSecret = config.apply(prefix + "app_secret").orElse(NOT_SET_DEFAULT);
+            IdentityDomain domain = new IdentityDomain(name,
+                    config.apply(prefix + "issuer").orElse(NOT_SET_DEFAULT),
+                    config.apply(prefix + "app_url").orElse(NOT_SET_DEFAULT),
+                    config.apply(prefix + "app_scopeid").orElse(NOT_SET_DEFAULT),
+                    config.apply(prefix + "app_clientid").orElse(NOT_SET_DEFAULT),
+                    () -> secrets.decode(KMS_ENDPOINT, KMS_IDCS_SECRET_KEY, encryptedSecret));
+            domains.add(domain);
+            LOGGER.info("config.domain", "name", name, "issuer", domain.ISSUER, "idcsUrl", domain.IDCS_URL,
+                    "audiences", String.join(",", domain.AUDIENCES), "clientId", domain.CLIENT_ID);
+        }
+        DOMAINS = Collections.unmodifiableList(domains);
+        CHECK_ISSUER = config.apply("idcs_app_issuer").isPresent() || DOMAINS.size() > 1;
+        if (!CHECK_ISSUER) {
+            // Tokens of any issuer signed by the IDCS domain are accepted
+            LOGGER.warning("config.issuer.unchecked");
+        }
+
+        TOKEN_EXCHANGE = Boolean.parseBoolean(config.apply("gateway_token_exchange").orElse("false"));
+        TOKEN_EXCHANGE_REGION = config.apply("token_exchange_region").orElse("us-phoenix-1");
+        TOKEN_EXCHANGE_MARGIN_S = Long.parseLong(config.apply("token_exchange_margin_s").orElse("60"));
+        TOKEN_EXCHANGE_MAX_ENTRIES = Integer.parseInt(config.apply("token_exchange_max_entries").orElse("1000"));
+        ROUTE_SCOPES = config.apply("route_scopes").orElse("");
+        RATE_LIMIT_PER_S = Double.parseDouble(config.apply("rate_limit_per_s").orElse("0"));
+        RATE_LIMIT_BURST = Integer.parseInt(config.apply("rate_limit_burst").orElse("20"));
+        RATE_LIMIT_IDLE_MS = Long.parseLong(config.apply("rate_limit_idle_ms").orElse("600000"));
+        RATE_LIMIT_MAX_KEYS = Integer.parseInt(config.apply("rate_limit_max_keys").orElse("10000"));
+
+        LOGGER.info("config.read", "issuer", ISSUER, "idcsUrl", IDCS_URL, "audiences", SCOPE_ID, "clientId", CLIENT_ID,
+                "debugLevel", DEBUG_LEVEL, "tokenExchange", TOKEN_EXCHANGE);
     }
 }
@@ -6,53 +6,66 @@ Licensed under the Universal Permissive License v 1.0 as shown at https://oss.or
 package com.example.fn.idcs_ocigw.utils;
 
 
-import java.io.BufferedReader;
+import com.oracle.idcs.oauth.util.TimedInputStream;
+
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-
-public class Response {
-    private final HttpURLConnection connection;
-    private static final int NOTFOUND_SC=404;
-    Response(final HttpURLConnection connection) {
-        this.connection = connection;
+import java.net.http.HttpResponse;
+
+/**
+ * Response of an IDCS call. Its body must be read or the response closed, for the connection to go back to the pool
+ */
+public class Response implements Closeable {
+    private final HttpResponse<InputStream> response;
+    private final InputStream body;
+    private static final int ERROR_SC=400;
+
+    /**
+     * @param readTimeoutMs : Time left to read the body, the request timeout stops at the headers
+     */
+    Response(final HttpResponse<InputStream> response, long readTimeoutMs) {
+        this.response = response;
+        this.body = new TimedInputStream(response.body(), readTimeoutMs);
     }
 
-    public void close()  {
-        connection.disconnect();
+    @Override
+    public void close() throws IOException {
+        body.close();
     }
 
     public String getHeader(final String name) {
-        return connection.getHeaderField(name);
+        return response.headers().firstValue(name).orElse(null);
     }
 
+    /**
+     * @throws IOException : On error statuses, as HttpURLConnection did
+     * @return the body, reads throw an HttpTimeoutException once the request timeout is spent
+     */
     public InputStream getInputStream() throws IOException {
-        return connection.getInputStream();
+        if (response.statusCode() >= ERROR_SC) {
+            body.close();
+            throw new IOException("Server returned HTTP response code: " + response.statusCode() + " for URL: " + response.uri());
+        }
+        return body;
     }
 
     public int getStatus() {
-        try {
-            return connection.getResponseCode();
-        } catch (IOException e) {
-            return NOTFOUND_SC;
-        }
+        return response.statusCode();
     }
 
 
+    /**
+     * Reads the whole body, line breaks included, and closes it
+     */
     public String getResponseBodyAsString(final String encoding)
         throws Exception {
         if (encoding==null)
         {
             throw new IllegalArgumentException("Encoding is null");
         }
-        StringBuilder sb = new StringBuilder();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(
-            connection.getInputStream(), encoding));
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-            sb.append(line);
+        try (InputStream in = getInputStream()) {
+            return new String(in.readAllBytes(), encoding);
         }
-        return sb.toString();
     }
 }
@@ -0,0 +1,106 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Scopes a token must have to call a route, so that a request bound to fail at Fusion for lack of scope is denied by
+ * the authorizer instead of invoking the backend function.
+ *
+ * Compiled once from a list of rules separated by ';', eg:
+ * GET /opportunities/**=urn:opc:resource:fa:read ; PATCH /opportunities/{optyid}=urn:opc:resource:fa:read urn:opc:resource:fa:write
+ * Each rule is a method (or *), a path pattern and the scopes required, all of them. In a path pattern * or {name}
+ * matches one path segment and ** any number of them. The first rule matching a request applies, requests matching
+ * none only need a valid token.
+ */
+public class RoutePolicy {
+
+    private final List<Rule> rules;
+
+    private static class Rule {
+        final String method;
+        final Pattern path;
+        final Set<String> scopes;
+
+        Rule(String method, Pattern path, Set<String> scopes) {
+            this.method = method;
+            this.path = path;
+            this.scopes = scopes;
+        }
+    }
+
+    private RoutePolicy(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * @param policy : Rules, empty for no policy
+     * @throws IllegalArgumentException : A rule cannot be parsed
+     */
+    public static RoutePolicy compile(String policy) {
+        List<Rule> rules = new ArrayList<>();
+        for (String rule : policy.split(";")) {
+            rule = rule.trim();
+            if (rule.isEmpty()) {
+                continue;
+            }
+            int equals = rule.indexOf('=');
+            String[] route = equals < 0 ? new String[0] : rule.substring(0, equals).trim().split("\\s+");
+            if (route.length != 2 || !route[1].startsWith("/")) {
+                throw new IllegalArgumentException("Route scope rule [" + rule + "] must be METHOD /path=scope ...");
+            }
+            Set<String> scopes = new LinkedHashSet<>(Arrays.asList(rule.substring(equals + 1).trim().split("\\s+")));
+            scopes.remove("");
+            if (scopes.isEmpty()) {
+                throw new IllegalArgumentException("Route scope rule [" + rule + "] has no scope");
+            }
+            rules.add(new Rule(route[0].toUpperCase(), toRegex(route[1]), Collections.unmodifiableSet(scopes)));
+        }
+        return new RoutePolicy(Collections.unmodifiableList(rules));
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @param method : Http method of the request
+     * @param path : Path of the request, without query string
+     * @param granted : Scopes of the token
+     * @return the scopes required for the route that the token does not have, empty if it may call it
+     */
+    public Set<String> missingScopes(String method, String path, Collection<String> granted) {
+        for (Rule rule : rules) {
+            if ((rule.method.equals("*") || rule.method.equalsIgnoreCase(method)) && rule.path.matcher(path).matches()) {
+                Set<String> missing = new LinkedHashSet<>(rule.scopes);
+                missing.removeAll(granted);
+                return missing;
+            }
+        }
+        return Collections.emptySet();
+    }
+
+    private static Pattern toRegex(String pathPattern) {
+        StringBuilder regex = new StringBuilder();
+        for (String segment : pathPattern.substring(1).split("/", -1)) {
+            if (segment.equals("**")) {
+                regex.append("(/.*)?");
+            } else if (segment.equals("*") || (segment.startsWith("{") && segment.endsWith("}"))) {
+                regex.append("/[^/]+");
+            } else {
+                regex.append('/').append(Pattern.quote(segment));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
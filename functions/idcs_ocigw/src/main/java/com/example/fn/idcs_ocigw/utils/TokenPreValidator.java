@@ -0,0 +1,117 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Set;
+
+/**
+ * Checks that cost no crypto, run before the signature is verified : three segments, RS256 header, exp/nbf with the
+ * allowed clock skew, a trusted issuer and one of its audiences, read from the decoded (not yet trusted) token.
+ * A token failing here would fail the full validation anyway, so expired tokens of stale browser tabs, tokens for
+ * another audience and garbage are rejected without an RSA verification.
+ */
+public class TokenPreValidator {
+
+    private static final EventLog LOGGER = EventLog.get("IDCS_GTW_LOGGER");
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String EXPECTED_ALG = "RS256";
+
+    /**
+     * Not yet valid tokens become valid, their rejection is not worth caching
+     */
+    public static class NotYetValidException extends InvalidTokenException {
+        public NotYetValidException(String message) {
+            super(message);
+        }
+    }
+
+    private TokenPreValidator()
+    {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @param rsc : CLOCK_SKEW_S is the allowed skew on exp and nbf
+     * @param issuers : Trusted issuers, the audience must be one of the issuer domain
+     * @param accessToken : Token without the Bearer prefix
+     * @return the validator of the token issuer
+     * @throws InvalidTokenException : The token cannot pass the full validation
+     */
+    public static IssuerRegistry.IssuerValidator check(ResourceServerConfig rsc, IssuerRegistry issuers, String accessToken) {
+        String[] segments = accessToken.split("\\.", -1);
+        if (segments.length != 3 || segments[0].isEmpty() || segments[1].isEmpty() || segments[2].isEmpty()) {
+            throw new InvalidTokenException("Malformed token, expected a signed JWT");
+        }
+
+        JsonNode header = decode(segments[0]);
+        String alg = header.path("alg").asText();
+        if (!EXPECTED_ALG.equals(alg)) {
+            throw new InvalidTokenException("Unexpected token algorithm " + alg);
+        }
+
+        JsonNode claims = decode(segments[1]);
+        long now = System.currentTimeMillis() / 1000;
+        JsonNode exp = claims.get("exp");
+        if (exp == null || !exp.canConvertToLong()) {
+            throw new InvalidTokenException("Missing token expiration time");
+        }
+        if (exp.asLong() + rsc.CLOCK_SKEW_S < now) {
+            throw new InvalidTokenException("Expired JWT");
+        }
+        JsonNode nbf = claims.get("nbf");
+        if (nbf != null && nbf.canConvertToLong() && nbf.asLong() - rsc.CLOCK_SKEW_S > now) {
+            throw new NotYetValidException("JWT before use time");
+        }
+
+        JsonNode iss = claims.get("iss");
+        IssuerRegistry.IssuerValidator validator = issuers.get(iss != null && iss.isTextual() ? iss.asText() : null);
+        if (validator == null) {
+            String message = "Untrusted issuer " + iss;
+            LOGGER.fine("token.issuer.untrusted", "issuer", iss);
+            throw new InvalidTokenException(message);
+        }
+
+        Set<String> audiences = validator.getDomain().AUDIENCES;
+        if (!hasAudience(claims.get("aud"), audiences)) {
+            String message = "Incorrect audience, got " + claims.get("aud") + " instead of expected " + audiences;
+            LOGGER.fine("token.audience.invalid", "audiences", claims.get("aud"));
+            throw new InvalidTokenException(message);
+        }
+        return validator;
+    }
+
+    private static boolean hasAudience(JsonNode aud, Set<String> expected) {
+        if (aud == null) {
+            return false;
+        }
+        if (aud.isArray()) {
+            for (JsonNode value : aud) {
+                if (expected.contains(value.asText())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return expected.contains(aud.asText());
+    }
+
+    private static JsonNode decode(String segment) {
+        try {
+            JsonNode node = MAPPER.readTree(Base64.getUrlDecoder().decode(segment));
+            if (node == null || !node.isObject()) {
+                throw new InvalidTokenException("Malformed token, segment is not a JSON object");
+            }
+            return node;
+        } catch (IllegalArgumentException | IOException e) {
+            throw new InvalidTokenException("Malformed token, " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import com.nimbusds.jose.jwk.RSAKey;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AccessTokenValidatorTest {
+
+    private static final RSAKey CURRENT = FakeIdcs.newKey("current");
+    private static FakeIdcs idcs;
+    private static ResourceServerConfig rsc;
+    private static AccessTokenValidator validator;
+
+    @BeforeClass
+    public static void startIdcs() throws Exception {
+        idcs = new FakeIdcs();
+        idcs.published.add(CURRENT);
+        rsc = idcs.config();
+        validator = new AccessTokenValidator();
+        validator.init(rsc);
+    }
+
+    @AfterClass
+    public static void stopIdcs() {
+        idcs.close();
+    }
+
+    @Test
+    public void acceptsATokenSignedWithAPublishedKey() {
+        String token = FakeIdcs.sign(CURRENT, FakeIdcs.ISSUER, FakeIdcs.AUDIENCE, 300);
+        assertEquals("user@example.com", validator.validate(rsc, token).getSubject());
+    }
+
+    @Test
+    public void keyRolloverRejectionsAreNotCached() {
+        RSAKey next = FakeIdcs.newKey("next");
+        String token = FakeIdcs.sign(next, FakeIdcs.ISSUER, FakeIdcs.AUDIENCE, 300);
+        try {
+            validator.validate(rsc, token);
+            fail("Expected no matching key");
+        } catch (AccessTokenValidator.SignatureRejectedException e) {
+            // IDCS does not publish the key yet
+        }
+
+        idcs.published.add(next);
+        assertEquals("user@example.com", validator.validate(rsc, token).getSubject());
+    }
+
+    @Test
+    public void forgedSignaturesAreRejected() {
+        RSAKey forged = FakeIdcs.newKey("current");
+        try {
+            validator.validate(rsc, FakeIdcs.sign(forged, FakeIdcs.ISSUER, FakeIdcs.AUDIENCE, 300));
+            fail("Expected an invalid signature");
+        } catch (AccessTokenValidator.SignatureRejectedException e) {
+            // Same kid, another key
+        }
+    }
+
+    @Test
+    public void forgedSignaturesAreCachedUntilNewKeysLoad() {
+        // Keys loaded
+        validator.validate(rsc, FakeIdcs.sign(CURRENT, FakeIdcs.ISSUER, FakeIdcs.AUDIENCE, 300));
+        String forged = FakeIdcs.sign(FakeIdcs.newKey("current"), FakeIdcs.ISSUER, FakeIdcs.AUDIENCE, 300);
+        try {
+            validator.validate(rsc, forged);
+            fail("Expected an invalid signature");
+        } catch (AccessTokenValidator.InvalidSignatureException e) {
+            // Verified against the published key
+        }
+        try {
+            validator.validate(rsc, forged);
+            fail("Expected a cached rejection");
+        } catch (InvalidTokenException e) {
+            assertEquals(InvalidTokenException.class, e.getClass());
+        }
+
+        try {
+            // Unknown key, the keys are loaded again
+            validator.validate(rsc, FakeIdcs.sign(FakeIdcs.newKey("unknown"), FakeIdcs.ISSUER, FakeIdcs.AUDIENCE, 300));
+            fail("Expected no matching key");
+        } catch (AccessTokenValidator.SignatureRejectedException e) {
+            assertEquals(AccessTokenValidator.SignatureRejectedException.class, e.getClass());
+        }
+        try {
+            validator.validate(rsc, forged);
+            fail("Expected an invalid signature");
+        } catch (AccessTokenValidator.InvalidSignatureException e) {
+            // Verified again against the keys just loaded
+        }
+    }
+
+    @Test
+    public void expiredTokensAreCached() {
+        String token = FakeIdcs.sign(CURRENT, FakeIdcs.ISSUER, FakeIdcs.AUDIENCE, -3600);
+        for (int i = 0; i < 2; i++) {
+            try {
+                validator.validate(rsc, token);
+                fail("Expected an expired token");
+            } catch (InvalidTokenException e) {
+                assertEquals(InvalidTokenException.class, e.getClass());
+                assertEquals("Expired JWT", e.getMessage());
+            }
+        }
+    }
+}
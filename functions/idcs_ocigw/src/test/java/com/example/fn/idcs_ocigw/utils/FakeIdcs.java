@@ -0,0 +1,117 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Identity domain for the tests : serves a client_credentials token and the public part of the signing keys, and
+ * signs user tokens with them.
+ */
+class FakeIdcs implements AutoCloseable {
+
+    static final String ISSUER = "https://identity.oraclecloud.com/";
+    static final String AUDIENCE = "urn:test:fusion";
+
+    private final HttpServer server;
+    final List<RSAKey> published = new CopyOnWriteArrayList<>();
+
+    FakeIdcs() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/oauth2/v1/token", exchange -> reply(exchange, "{\"access_token\":\"app-token\"}"));
+        server.createContext("/admin/v1/SigningCert/jwk", exchange -> {
+            List<JWK> keys = new ArrayList<>();
+            for (RSAKey key : published) {
+                keys.add(key.toPublicJWK());
+            }
+            reply(exchange, new JWKSet(keys).toString());
+        });
+        server.start();
+    }
+
+    static RSAKey newKey(String kid) {
+        try {
+            return new RSAKeyGenerator(2048).keyID(kid).generate();
+        } catch (JOSEException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String sign(RSAKey key, String issuer, String audience, long expiresInS) {
+        try {
+            JWTClaimsSet claims = new JWTClaimsSet.Builder()
+                    .issuer(issuer)
+                    .audience(audience)
+                    .subject("user@example.com")
+                    .expirationTime(new Date(System.currentTimeMillis() + expiresInS * 1000))
+                    .build();
+            SignedJWT jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(key.getKeyID()).build(), claims);
+            jwt.sign(new RSASSASigner(key));
+            return jwt.serialize();
+        } catch (JOSEException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param extra : Configuration overriding the defaults of the tests, key then value
+     */
+    ResourceServerConfig config(String... extra) {
+        return configAt("http://127.0.0.1:" + server.getAddress().getPort(), extra);
+    }
+
+    /**
+     * @param idcsUrl : Where the identity domain is, never called by the checks made without network
+     * @param extra : Configuration overriding the defaults of the tests, key then value
+     */
+    static ResourceServerConfig configAt(String idcsUrl, String... extra) {
+        Map<String, String> config = new HashMap<>();
+        config.put("idcs_app_url", idcsUrl);
+        config.put("idcs_app_scopeid", AUDIENCE);
+        config.put("idcs_app_clientid", "client");
+        config.put("jwk_min_refresh_ms", "0");
+        for (int i = 0; i + 1 < extra.length; i += 2) {
+            config.put(extra[i], extra[i + 1]);
+        }
+        return new ResourceServerConfig(key -> Optional.ofNullable(config.get(key)), (endpoint, key, secret) -> "secret");
+    }
+
+    private static void reply(HttpExchange exchange, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
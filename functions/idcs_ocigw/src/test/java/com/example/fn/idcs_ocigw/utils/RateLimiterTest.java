@@ -0,0 +1,81 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test
+    public void disabledLimiterLetsEverythingThrough() {
+        RateLimiter limiter = new RateLimiter(0, 1, 60000, 10);
+        assertFalse(limiter.isEnabled());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.acquire("alice|t1"));
+        }
+    }
+
+    @Test
+    public void letsTheBurstThroughThenDenies() {
+        RateLimiter limiter = new RateLimiter(1, 3, 60000, 10);
+        assertEquals(0, limiter.acquire("alice|t1"));
+        assertEquals(0, limiter.acquire("alice|t1"));
+        assertEquals(0, limiter.acquire("alice|t1"));
+        long retryAfterMs = limiter.acquire("alice|t1");
+        // One token comes back per second
+        assertTrue(retryAfterMs > 900 && retryAfterMs <= 1000);
+    }
+
+    @Test
+    public void deniedRequestsDoNotTakeTokens() {
+        RateLimiter limiter = new RateLimiter(1, 1, 60000, 10);
+        assertEquals(0, limiter.acquire("alice|t1"));
+        long first = limiter.acquire("alice|t1");
+        long second = limiter.acquire("alice|t1");
+        assertTrue(first > 0);
+        assertTrue(second > 0 && second <= first);
+    }
+
+    @Test
+    public void tokensComeBackOverTime() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(20, 1, 60000, 10);
+        assertEquals(0, limiter.acquire("alice|t1"));
+        assertTrue(limiter.acquire("alice|t1") > 0);
+        Thread.sleep(100);
+        assertEquals(0, limiter.acquire("alice|t1"));
+    }
+
+    @Test
+    public void keysHaveTheirOwnBucket() {
+        RateLimiter limiter = new RateLimiter(1, 1, 60000, 10);
+        assertEquals(0, limiter.acquire("alice|t1"));
+        assertTrue(limiter.acquire("alice|t1") > 0);
+        assertEquals(0, limiter.acquire("alice|t2"));
+        assertEquals(0, limiter.acquire("bob|t1"));
+    }
+
+    @Test
+    public void newKeysAreNotLimitedWhenFull() {
+        RateLimiter limiter = new RateLimiter(1, 1, 60000, 1);
+        assertEquals(0, limiter.acquire("alice|t1"));
+        assertEquals(0, limiter.acquire("bob|t1"));
+        assertEquals(0, limiter.acquire("bob|t1"));
+        assertTrue(limiter.acquire("alice|t1") > 0);
+    }
+
+    @Test
+    public void idleBucketsAreDropped() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(20, 1, 10, 1);
+        assertEquals(0, limiter.acquire("alice|t1"));
+        Thread.sleep(100);
+        // The full bucket of alice was swept, bob takes its place and is limited
+        assertEquals(0, limiter.acquire("bob|t1"));
+        assertTrue(limiter.acquire("bob|t1") > 0);
+    }
+}
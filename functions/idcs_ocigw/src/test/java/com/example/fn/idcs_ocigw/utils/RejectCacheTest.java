@@ -0,0 +1,70 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RejectCacheTest {
+
+    @Test
+    public void remembersRejectedTokens() {
+        RejectCache cache = new RejectCache(60000, 10);
+        cache.put("a.b.c", "Expired JWT");
+        assertEquals("Expired JWT", cache.get("a.b.c"));
+        assertNull(cache.get("a.b.d"));
+    }
+
+    @Test
+    public void forgetsThemAfterTheTtl() throws InterruptedException {
+        RejectCache cache = new RejectCache(50, 10);
+        cache.put("a.b.c", "Expired JWT");
+        Thread.sleep(100);
+        assertNull(cache.get("a.b.c"));
+    }
+
+    @Test
+    public void forgetsRejectionsThatNoLongerHold() {
+        RejectCache cache = new RejectCache(60000, 10);
+        AtomicBoolean holds = new AtomicBoolean(true);
+        cache.put("a.b.c", "Invalid signature", holds::get);
+        assertEquals("Invalid signature", cache.get("a.b.c"));
+        holds.set(false);
+        assertNull(cache.get("a.b.c"));
+        holds.set(true);
+        assertNull(cache.get("a.b.c"));
+    }
+
+    @Test
+    public void zeroTtlDisablesTheCache() {
+        RejectCache cache = new RejectCache(0, 10);
+        cache.put("a.b.c", "Expired JWT");
+        assertNull(cache.get("a.b.c"));
+    }
+
+    @Test
+    public void newRejectionsAreDroppedWhenFull() {
+        RejectCache cache = new RejectCache(60000, 2);
+        cache.put("1", "bad");
+        cache.put("2", "bad");
+        cache.put("3", "bad");
+        assertEquals("bad", cache.get("1"));
+        assertEquals("bad", cache.get("2"));
+        assertNull(cache.get("3"));
+    }
+
+    @Test
+    public void expiredRejectionsMakeRoom() throws InterruptedException {
+        RejectCache cache = new RejectCache(50, 1);
+        cache.put("1", "bad");
+        Thread.sleep(100);
+        cache.put("2", "bad");
+        assertEquals("bad", cache.get("2"));
+    }
+}
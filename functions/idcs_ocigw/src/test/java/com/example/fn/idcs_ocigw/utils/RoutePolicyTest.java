@@ -0,0 +1,85 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoutePolicyTest {
+
+    private static final String READ = "urn:opc:resource:fa:read";
+    private static final String WRITE = "urn:opc:resource:fa:write";
+    private static final RoutePolicy POLICY = RoutePolicy.compile(
+            "PATCH /opportunities/{optyid}=" + READ + " " + WRITE + " ; GET /opportunities/**=" + READ);
+
+    private static List<String> scopes(String... scopes) {
+        return Arrays.asList(scopes);
+    }
+
+    @Test
+    public void emptyPolicyAllowsEverything() {
+        RoutePolicy policy = RoutePolicy.compile(" ; ");
+        assertTrue(policy.isEmpty());
+        assertTrue(policy.missingScopes("DELETE", "/anything", scopes()).isEmpty());
+    }
+
+    @Test
+    public void reportsTheMissingScopesInRuleOrder() {
+        assertEquals(new LinkedHashSet<>(scopes(READ, WRITE)), POLICY.missingScopes("PATCH", "/opportunities/1", scopes()));
+        assertEquals(Collections.singleton(WRITE), POLICY.missingScopes("patch", "/opportunities/1", scopes(READ)));
+        assertTrue(POLICY.missingScopes("PATCH", "/opportunities/1", scopes(WRITE, READ)).isEmpty());
+    }
+
+    @Test
+    public void singleSegmentWildcardsDoNotCrossSlashes() {
+        // No rule for PATCH of a deeper path, only a valid token is needed
+        assertTrue(POLICY.missingScopes("PATCH", "/opportunities/1/notes", scopes()).isEmpty());
+        assertTrue(POLICY.missingScopes("PATCH", "/opportunities", scopes()).isEmpty());
+    }
+
+    @Test
+    public void doubleWildcardMatchesAnyDepth() {
+        assertEquals(Collections.singleton(READ), POLICY.missingScopes("GET", "/opportunities", scopes()));
+        assertEquals(Collections.singleton(READ), POLICY.missingScopes("GET", "/opportunities/1/notes", scopes()));
+        assertTrue(POLICY.missingScopes("GET", "/opportunitiesX", scopes()).isEmpty());
+    }
+
+    @Test
+    public void firstMatchingRuleApplies() {
+        RoutePolicy policy = RoutePolicy.compile("* /opportunities/summary=" + WRITE + ";GET /opportunities/*=" + READ);
+        assertEquals(Collections.singleton(WRITE), policy.missingScopes("GET", "/opportunities/summary", scopes(READ)));
+        assertTrue(policy.missingScopes("GET", "/opportunities/1", scopes(READ)).isEmpty());
+    }
+
+    @Test
+    public void literalSegmentsAreNotRegexes() {
+        RoutePolicy policy = RoutePolicy.compile("GET /a.b=" + READ);
+        assertFalse(policy.missingScopes("GET", "/a.b", scopes()).isEmpty());
+        assertTrue(policy.missingScopes("GET", "/axb", scopes()).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRulesWithoutMethod() {
+        RoutePolicy.compile("/opportunities=" + READ);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRulesWithoutScope() {
+        RoutePolicy.compile("GET /opportunities= ");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRelativePaths() {
+        RoutePolicy.compile("GET opportunities=" + READ);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.fn.idcs_ocigw.utils;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TokenPreValidatorTest {
+
+    private static final String NO_IDCS = "http://127.0.0.1:9";
+    private static final String RS256 = "{\"alg\":\"RS256\",\"kid\":\"k\"}";
+
+    private static String token(String header, String claims) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(header.getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".c2lnbmF0dXJl";
+    }
+
+    private static String claims(String iss, String aud, long expInS) {
+        long now = System.currentTimeMillis() / 1000;
+        return "{\"iss\":\"" + iss + "\",\"aud\":" + aud + ",\"exp\":" + (now + expInS) + "}";
+    }
+
+    private static String reject(ResourceServerConfig rsc, String token) {
+        try {
+            TokenPreValidator.check(rsc, new IssuerRegistry(rsc), token);
+            fail("Expected " + token + " to be rejected");
+            return null;
+        } catch (InvalidTokenException e) {
+            return e.getMessage();
+        }
+    }
+
+    private static ResourceServerConfig withIssuer() {
+        return FakeIdcs.configAt(NO_IDCS, "idcs_app_issuer", FakeIdcs.ISSUER);
+    }
+
+    @Test
+    public void acceptsAWellFormedToken() {
+        ResourceServerConfig rsc = withIssuer();
+        IssuerRegistry.IssuerValidator validator = TokenPreValidator.check(rsc, new IssuerRegistry(rsc),
+                token(RS256, claims(FakeIdcs.ISSUER, "[\"other\",\"" + FakeIdcs.AUDIENCE + "\"]", 300)));
+        assertEquals("default", validator.getDomain().NAME);
+    }
+
+    @Test
+    public void rejectsMalformedTokens() {
+        ResourceServerConfig rsc = withIssuer();
+        assertTrue(reject(rsc, "a.b").startsWith("Malformed token"));
+        assertTrue(reject(rsc, "a..c").startsWith("Malformed token"));
+        assertTrue(reject(rsc, "!!.e30.c2ln").startsWith("Malformed token"));
+        assertTrue(reject(rsc, token("[]", "{}")).startsWith("Malformed token"));
+    }
+
+    @Test
+    public void rejectsOtherAlgorithms() {
+        String token = token("{\"alg\":\"none\"}", claims(FakeIdcs.ISSUER, "\"" + FakeIdcs.AUDIENCE + "\"", 300));
+        assertEquals("Unexpected token algorithm none", reject(withIssuer(), token));
+    }
+
+    @Test
+    public void rejectsExpiredTokensPastTheSkew() {
+        ResourceServerConfig rsc = withIssuer();
+        String aud = "\"" + FakeIdcs.AUDIENCE + "\"";
+        assertEquals("Expired JWT", reject(rsc, token(RS256, claims(FakeIdcs.ISSUER, aud, -120))));
+        assertEquals("Missing token expiration time", reject(rsc, token(RS256, "{\"iss\":\"" + FakeIdcs.ISSUER + "\"}")));
+        // Within the default 60s skew
+        TokenPreValidator.check(rsc, new IssuerRegistry(rsc), token(RS256, claims(FakeIdcs.ISSUER, aud, -30)));
+    }
+
+    @Test
+    public void notYetValidTokensAreNotCacheable() {
+        long now = System.currentTimeMillis() / 1000;
+        String token = token(RS256, "{\"iss\":\"" + FakeIdcs.ISSUER + "\",\"aud\":\"" + FakeIdcs.AUDIENCE
+                + "\",\"exp\":" + (now + 600) + ",\"nbf\":" + (now + 300) + "}");
+        ResourceServerConfig rsc = withIssuer();
+        try {
+            TokenPreValidator.check(rsc, new IssuerRegistry(rsc), token);
+            fail("Expected a not yet valid token");
+        } catch (TokenPreValidator.NotYetValidException e) {
+            assertEquals("JWT before use time", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsOtherAudiences() {
+        String token = token(RS256, claims(FakeIdcs.ISSUER, "\"urn:other\"", 300));
+        assertTrue(reject(withIssuer(), token).startsWith("Incorrect audience"));
+    }
+
+    @Test
+    public void checksTheIssuerOnceConfigured() {
+        String token = token(RS256, claims("https://other/", "\"" + FakeIdcs.AUDIENCE + "\"", 300));
+        assertTrue(withIssuer().CHECK_ISSUER);
+        assertTrue(reject(withIssuer(), token).startsWith("Untrusted issuer"));
+    }
+
+    @Test
+    public void legacySingleDomainAcceptsAnyIssuer() {
+        ResourceServerConfig rsc = FakeIdcs.configAt(NO_IDCS);
+        assertFalse(rsc.CHECK_ISSUER);
+        IssuerRegistry issuers = new IssuerRegistry(rsc);
+        String aud = "\"" + FakeIdcs.AUDIENCE + "\"";
+        assertEquals("default", TokenPreValidator.check(rsc, issuers, token(RS256, claims("https://other/", aud, 300))).getDomain().NAME);
+        // The audience is still checked
+        assertTrue(reject(rsc, token(RS256, claims("https://other/", "\"urn:other\"", 300))).startsWith("Incorrect audience"));
+    }
+
+    @Test
+    public void otherDomainsTurnTheIssuerCheckOn() {
+        ResourceServerConfig rsc = FakeIdcs.configAt(NO_IDCS, "idcs_domains", "tenant2",
+                "idcs_tenant2_issuer", "https://tenant2/", "idcs_tenant2_app_scopeid", "urn:tenant2");
+        assertTrue(rsc.CHECK_ISSUER);
+        assertEquals("tenant2", TokenPreValidator.check(rsc, new IssuerRegistry(rsc),
+                token(RS256, claims("https://tenant2/", "\"urn:tenant2\"", 300))).getDomain().NAME);
+        assertTrue(reject(rsc, token(RS256, claims("https://other/", "\"urn:tenant2\"", 300))).startsWith("Untrusted issuer"));
+    }
+}
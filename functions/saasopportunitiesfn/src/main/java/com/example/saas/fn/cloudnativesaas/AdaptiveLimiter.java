@@ -0,0 +1,87 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AIMD concurrency limiter (bulkhead) for outbound calls.
+ * The limit grows by one every "limit" successful calls and is cut by backoffRatio whenever a call is dropped
+ * (timeout, 429, 5xx) or its latency exceeds tolerance times the smoothed baseline latency.
+ * Calls over the limit are refused straight away instead of queueing up threads in the container.
+ */
+public class AdaptiveLimiter {
+
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+    private static final double BACKOFF_RATIO = 0.7;
+    // Weight of a new sample in the baseline latency, kept low so the baseline follows the backend slowly
+    private static final double BASELINE_SMOOTHING = 0.05;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile double limit;
+    private double baselineLatencyMs = 0;
+
+    public AdaptiveLimiter(String name, int initialLimit, int minLimit, int maxLimit, double latencyTolerance) {
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * @return true if the call may proceed, in which case release() must be called once it completes
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                // Answered with a 503 and logged by the caller, one event per rejected call here only when tracing
+                LOGGER.fine("limiter.rejected", "name", name, "inFlight", current, "limit", (int) limit);
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param latencyMs : How long the call took
+     * @param dropped : true if the backend signalled overload (timeout, 429, 5xx)
+     */
+    public void release(long latencyMs, boolean dropped) {
+        inFlight.decrementAndGet();
+        synchronized (this) {
+            boolean slow = baselineLatencyMs > 0 && latencyMs > baselineLatencyMs * latencyTolerance;
+            if (dropped || slow) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                LOGGER.fine("limiter.decreased", "name", name, "limit", limit, "dropped", dropped, "latencyMs", latencyMs);
+            } else {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            if (!dropped) {
+                baselineLatencyMs = baselineLatencyMs == 0
+                        ? latencyMs
+                        : baselineLatencyMs + BASELINE_SMOOTHING * (latencyMs - baselineLatencyMs);
+            }
+        }
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
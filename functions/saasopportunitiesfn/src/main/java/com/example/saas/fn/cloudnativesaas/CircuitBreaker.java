@@ -0,0 +1,85 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Simple consecutive-failure circuit breaker.
+ * CLOSED  : calls flow, consecutive failures are counted
+ * OPEN    : calls are refused until openMs has elapsed
+ * HALF OPEN : a single trial call is let through, its outcome closes or re-opens the breaker
+ */
+public class CircuitBreaker {
+
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMs;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean trialInProgress = new AtomicBoolean(false);
+    private volatile long openedAt = 0;
+
+    public CircuitBreaker(String name, int failureThreshold, long openMs) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+    }
+
+    /**
+     * @return true if the call may proceed, false if the breaker is open
+     */
+    public boolean allowRequest() {
+        if (openedAt == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() - openedAt < openMs) {
+            return false;
+        }
+        // Half open, only one caller gets to probe the backend
+        return trialInProgress.compareAndSet(false, true);
+    }
+
+    public void recordSuccess() {
+        consecutiveFailures.set(0);
+        if (openedAt != 0) {
+            LOGGER.info("breaker.closed", "name", name);
+            openedAt = 0;
+        }
+        trialInProgress.set(false);
+    }
+
+    public void recordFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (openedAt != 0 || failures >= failureThreshold) {
+            if (openedAt == 0) {
+                LOGGER.severe("breaker.opened", "name", name, "failures", failures);
+            }
+            openedAt = System.currentTimeMillis();
+        }
+        trialInProgress.set(false);
+    }
+
+    /**
+     * Gives back the trial of a call that ended without an outcome (deadline reached, unexpected error), so that the
+     * next call may probe the backend. Every call let through must end with recordSuccess, recordFailure or this.
+     */
+    public void abandon() {
+        trialInProgress.set(false);
+    }
+
+    /**
+     * @return milliseconds until a trial call will be allowed, 0 if the breaker is closed
+     */
+    public long remainingOpenMs() {
+        long opened = openedAt;
+        return opened == 0 ? 0 : Math.max(0, openMs - (System.currentTimeMillis() - opened));
+    }
+}
@@ -0,0 +1,215 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.example.saas.fn.cloudnativesaas.exceptions.NotFoundException;
+import com.example.saas.fn.cloudnativesaas.model.Opportunity;
+import com.oracle.idcs.oauth.util.Deadline;
+import com.oracle.idcs.oauth.util.EventLog;
+import com.oracle.idcs.oauth.util.OutboundExecutor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Per user read cache of single opportunities, filled in the background with the rows of every list response.
+ * Users nearly always open one of the rows they just listed, so that detail request is then served from memory.
+ *
+ * At most concurrency prefetches call Fusion at a time and a bounded number wait, extra prefetches are dropped rather
+ * than queued. They run on virtual threads when the runtime has them, on a pool of concurrency threads otherwise.
+ * Hits, misses and wasted prefetches (expired or evicted without ever being read) are counted and logged.
+ *
+ * Prefetches get a budget of their own from the list request, capped by the deadline of its invocation : the container
+ * may be frozen soon after the response is sent, those not done within the budget are given up rather than holding
+ * Fusion calls open for the rest of the invocation. Their failures are kept out of the circuit breaker and the read
+ * limiter shared with the requests of the users.
+ */
+public class DetailPrefetcher {
+
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+    // Counters are logged every this many lookups
+    private static final int STATS_INTERVAL = 100;
+
+    private final long ttlMs;
+    private final long budgetMs;
+    private final Map<String, Entry> entries;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor;
+    // Prefetches queued or running, beyond which they are dropped
+    private final Semaphore pending;
+    // Prefetches calling Fusion at the same time
+    private final Semaphore running;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    private static class Entry {
+        final Opportunity opportunity;
+        final long expiresAt;
+        final boolean prefetch;
+        volatile boolean read = false;
+
+        Entry(Opportunity opportunity, long expiresAt, boolean prefetch) {
+            this.opportunity = opportunity;
+            this.expiresAt = expiresAt;
+            this.prefetch = prefetch;
+        }
+    }
+
+    /**
+     * @param concurrency : Prefetches calling Fusion at the same time
+     * @param ttlMs : How long a cached row is served
+     * @param maxEntries : Rows cached at most
+     * @param budgetMs : Prefetches not done this long after the list request are given up
+     */
+    public DetailPrefetcher(int concurrency, long ttlMs, int maxEntries, long budgetMs) {
+        this.ttlMs = ttlMs;
+        this.budgetMs = budgetMs;
+        // Least recently used entries are dropped first
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    countIfWasted(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        });
+        this.executor = OutboundExecutor.newExecutor("opportunity-prefetch", concurrency);
+        this.pending = new Semaphore(concurrency + maxEntries);
+        this.running = new Semaphore(concurrency);
+    }
+
+    /**
+     * Queues background fetches of the listed opportunities not already cached, returns immediately
+     */
+    public void prefetch(String principal, String jwtToken, String fusionURL, List<Opportunity> listed) {
+        Deadline invocation = Deadline.after(budgetMs).min(Deadline.current());
+        for (Opportunity opportunity : listed) {
+            String optyId = opportunity.getOptyNumber();
+            if (optyId == null) {
+                continue;
+            }
+            String key = key(principal, optyId);
+            Entry entry = entries.get(key);
+            if ((entry != null && entry.expiresAt > System.currentTimeMillis()) || !inFlight.add(key)) {
+                continue;
+            }
+            if (!pending.tryAcquire()) {
+                inFlight.remove(key);
+                dropped.incrementAndGet();
+                continue;
+            }
+            try {
+                executor.execute(() -> fetch(invocation, key, principal, jwtToken, fusionURL, optyId));
+            } catch (RejectedExecutionException e) {
+                pending.release();
+                inFlight.remove(key);
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the cached opportunity, null if it has to be fetched from Fusion
+     */
+    public Opportunity get(String principal, String optyId) {
+        String key = key(principal, optyId);
+        Entry entry = entries.get(key);
+        Opportunity opportunity = null;
+        if (entry != null && entry.expiresAt > System.currentTimeMillis()) {
+            entry.read = true;
+            opportunity = entry.opportunity;
+            hits.incrementAndGet();
+        } else {
+            if (entry != null && entries.remove(key, entry)) {
+                countIfWasted(entry);
+            }
+            misses.incrementAndGet();
+        }
+        if ((hits.get() + misses.get()) % STATS_INTERVAL == 0) {
+            logStats();
+        }
+        return opportunity;
+    }
+
+    /**
+     * Caches a row the function fetched or updated itself, eg: the response of a PATCH
+     */
+    public void put(String principal, Opportunity opportunity) {
+        if (opportunity.getOptyNumber() != null) {
+            entries.put(key(principal, opportunity.getOptyNumber()),
+                    new Entry(opportunity, System.currentTimeMillis() + ttlMs, false));
+        }
+    }
+
+    public void invalidate(String principal, String optyId) {
+        entries.remove(key(principal, optyId));
+    }
+
+    private void fetch(Deadline invocation, String key, String principal, String jwtToken, String fusionURL, String optyId) {
+        boolean acquired = false;
+        try (Deadline.Scope scope = invocation.enter()) {
+            // Waiting is cheap on a virtual thread, a pool of concurrency threads never waits here
+            running.acquire();
+            acquired = true;
+            if (invocation.isExpired()) {
+                expired.incrementAndGet();
+                return;
+            }
+            Opportunity opportunity = SaaSHelper.prefetchSingleOpty(principal, jwtToken, fusionURL, optyId);
+            long now = System.currentTimeMillis();
+            // Never overwrite a fresher row put meanwhile, eg: by a PATCH
+            entries.compute(key, (k, current) ->
+                    current != null && current.expiresAt > now ? current : new Entry(opportunity, now + ttlMs, true));
+            prefetched.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (NotFoundException e) {
+            // Remembered by the SaaSHelper not found cache
+            LOGGER.fine("prefetch.notfound", "optyId", optyId);
+        } catch (Exception e) {
+            // The detail request will simply go to Fusion
+            LOGGER.log(Level.FINE, "prefetch.failed", e, "optyId", optyId);
+        } finally {
+            if (acquired) {
+                running.release();
+            }
+            pending.release();
+            inFlight.remove(key);
+        }
+    }
+
+    private void countIfWasted(Entry entry) {
+        if (entry.prefetch && !entry.read) {
+            wasted.incrementAndGet();
+        }
+    }
+
+    private void logStats() {
+        long h = hits.get();
+        long total = h + misses.get();
+        LOGGER.info("prefetch.stats", "hits", h, "misses", misses.get(), "hitRatePercent", total == 0 ? 0 : 100 * h / total,
+                "prefetched", prefetched.get(), "wasted", wasted.get(), "dropped", dropped.get(), "expired", expired.get());
+    }
+
+    private static String key(String principal, String optyId) {
+        return principal + "|" + optyId;
+    }
+}
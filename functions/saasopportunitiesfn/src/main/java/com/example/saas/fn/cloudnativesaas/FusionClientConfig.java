@@ -0,0 +1,115 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.fnproject.fn.api.RuntimeContext;
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Settings used by SaaSHelper when calling Fusion, read from the Oracle Functions configuration.
+ * Like ResourceServerConfig in the authorizer function, every value has a default so nothing here is mandatory.
+ */
+public class FusionClientConfig {
+
+    // Timeouts (milliseconds)
+    public final int CONNECT_TIMEOUT_MS;
+    public final int QUERY_TIMEOUT_MS;
+    public final int SINGLE_QUERY_TIMEOUT_MS;
+    public final int UPDATE_TIMEOUT_MS;
+
+    // Retries, only ever applied to GETs
+    public final int MAX_RETRIES;
+    public final int RETRY_BASE_DELAY_MS;
+    public final int RETRY_MAX_DELAY_MS;
+
+    // Circuit breaker
+    public final int BREAKER_FAILURE_THRESHOLD;
+    public final int BREAKER_OPEN_MS;
+
+    // Adaptive concurrency limits, separate bulkheads for reads and PATCHes
+    public final int READ_LIMIT_INITIAL;
+    public final int READ_LIMIT_MAX;
+    public final int WRITE_LIMIT_INITIAL;
+    public final int WRITE_LIMIT_MAX;
+    public final int LIMIT_MIN;
+    public final double LIMIT_LATENCY_TOLERANCE;
+    public final int LIMIT_RETRY_AFTER_SECONDS;
+
+    // Identical concurrent GETs (same user and URL) share one call
+    public final boolean COALESCE_READS;
+
+    // Hedged GETs
+    public final boolean HEDGE_ENABLED;
+    public final double HEDGE_PERCENTILE;
+    public final int HEDGE_MIN_DELAY_MS;
+    public final double HEDGE_BUDGET_PERCENT;
+
+    // HTTP/2 (negotiated over ALPN, HTTP/1.1 otherwise) through the JDK http client
+    public final boolean HTTP2_ENABLED;
+
+    // Negative (404) cache for single opportunity lookups
+    public final int NOT_FOUND_CACHE_TTL_MS;
+    public final int NOT_FOUND_CACHE_MAX_ENTRIES;
+
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+
+    public FusionClientConfig(RuntimeContext ctx) {
+        this(ctx::getConfigurationByKey);
+    }
+
+    private FusionClientConfig(Function<String, Optional<String>> config) {
+        CONNECT_TIMEOUT_MS = intValue(config, "fusion_connect_timeout_ms", 5000);
+        QUERY_TIMEOUT_MS = intValue(config, "fusion_query_timeout_ms", 20000);
+        SINGLE_QUERY_TIMEOUT_MS = intValue(config, "fusion_single_timeout_ms", 10000);
+        UPDATE_TIMEOUT_MS = intValue(config, "fusion_update_timeout_ms", 20000);
+
+        MAX_RETRIES = intValue(config, "fusion_max_retries", 2);
+        RETRY_BASE_DELAY_MS = intValue(config, "fusion_retry_base_delay_ms", 200);
+        RETRY_MAX_DELAY_MS = intValue(config, "fusion_retry_max_delay_ms", 2000);
+
+        BREAKER_FAILURE_THRESHOLD = intValue(config, "fusion_breaker_failures", 5);
+        BREAKER_OPEN_MS = intValue(config, "fusion_breaker_open_ms", 30000);
+
+        READ_LIMIT_INITIAL = intValue(config, "fusion_read_limit", 10);
+        READ_LIMIT_MAX = intValue(config, "fusion_read_limit_max", 40);
+        WRITE_LIMIT_INITIAL = intValue(config, "fusion_write_limit", 4);
+        WRITE_LIMIT_MAX = intValue(config, "fusion_write_limit_max", 10);
+        LIMIT_MIN = intValue(config, "fusion_limit_min", 1);
+        LIMIT_LATENCY_TOLERANCE = config.apply("fusion_limit_latency_tolerance").map(String::trim).map(Double::parseDouble).orElse(2.0);
+        LIMIT_RETRY_AFTER_SECONDS = intValue(config, "fusion_limit_retry_after_s", 1);
+
+        COALESCE_READS = config.apply("fusion_coalesce_reads").map(String::trim).map(Boolean::parseBoolean).orElse(true);
+
+        HEDGE_ENABLED = config.apply("fusion_hedge_enabled").map(String::trim).map(Boolean::parseBoolean).orElse(false);
+        HEDGE_PERCENTILE = config.apply("fusion_hedge_percentile").map(String::trim).map(Double::parseDouble).orElse(95.0);
+        HEDGE_MIN_DELAY_MS = intValue(config, "fusion_hedge_min_delay_ms", 50);
+        HEDGE_BUDGET_PERCENT = config.apply("fusion_hedge_budget_percent").map(String::trim).map(Double::parseDouble).orElse(5.0);
+
+        HTTP2_ENABLED = config.apply("fusion_http2_enabled").map(String::trim).map(Boolean::parseBoolean).orElse(false);
+
+        NOT_FOUND_CACHE_TTL_MS = intValue(config, "not_found_cache_ttl_ms", 30000);
+        NOT_FOUND_CACHE_MAX_ENTRIES = intValue(config, "not_found_cache_max_entries", 1000);
+
+        LOGGER.info("fusion.config.read", "connectTimeout", CONNECT_TIMEOUT_MS, "queryTimeout", QUERY_TIMEOUT_MS,
+                "singleTimeout", SINGLE_QUERY_TIMEOUT_MS, "updateTimeout", UPDATE_TIMEOUT_MS, "maxRetries", MAX_RETRIES,
+                "breakerFailures", BREAKER_FAILURE_THRESHOLD, "breakerOpenMs", BREAKER_OPEN_MS,
+                "readLimit", READ_LIMIT_INITIAL + "/" + READ_LIMIT_MAX, "writeLimit", WRITE_LIMIT_INITIAL + "/" + WRITE_LIMIT_MAX,
+                "coalesceReads", COALESCE_READS, "hedge", HEDGE_ENABLED, "http2", HTTP2_ENABLED);
+    }
+
+    /**
+     * @return configuration with every value defaulted, used when SaaSHelper is called before being initialised
+     */
+    public static FusionClientConfig defaults() {
+        return new FusionClientConfig(key -> Optional.empty());
+    }
+
+    private static int intValue(Function<String, Optional<String>> config, String key, int defaultValue) {
+        return config.apply(key).map(String::trim).map(Integer::parseInt).orElse(defaultValue);
+    }
+}
@@ -0,0 +1,23 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.fnproject.fn.api.InputEvent;
+
+/**
+ * Full OAuth flow (full_oauth=true) : exchanges the token of the request for a Fusion token with an IDCS assertion.
+ *
+ * The function only refers to this interface. The implementation, SecurityHelper and the OCI SDK (auth, Secrets) it
+ * needs are loaded when the flow is enabled, not in the default deployment that reuses the incoming token.
+ */
+public interface FusionTokenAsserter {
+
+    /**
+     * @param rawInput : Request, its Fn-Http-H-Authorization header names the principal asserted
+     * @return the Fusion token of the principal
+     * @throws Exception : The assertion failed
+     */
+    String assertToken(InputEvent rawInput) throws Exception;
+}
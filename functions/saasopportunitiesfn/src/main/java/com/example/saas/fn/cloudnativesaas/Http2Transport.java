@@ -0,0 +1,239 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.oracle.idcs.oauth.util.EventLog;
+import com.oracle.idcs.oauth.util.TimedInputStream;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sends the requests built by SaaSHelper with the JDK http client, which negotiates HTTP/2 over ALPN and falls back
+ * to HTTP/1.1 when Fusion (or a proxy in between) does not offer it. With HTTP/2, the parallel pages of an export,
+ * prefetches and hedged requests of a container are multiplexed over one TLS connection per host instead of each
+ * holding a pooled connection.
+ *
+ * Requests keep being built with the Apache RequestBuilder, so retries, coalescing and hedging work unchanged.
+ * Aborting the Apache request (as the hedger does for the loser) makes send() give up, and closes the response body
+ * whenever it arrives, which resets the stream or closes the HTTP/1.1 connection. The exchange itself is not
+ * cancelled: on JDK 11 that does nothing, and later JDKs drop the response without closing its connection. Until the
+ * response headers arrive, an aborted request still runs, at most until its timeout.
+ */
+public class Http2Transport {
+
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+    // Set by the JDK client itself, it refuses them as request headers
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList(
+            "connection", "content-length", "expect", "host", "upgrade"));
+
+    private final HttpClient client;
+
+    /**
+     * Response status, headers and body stream, the stream is already inflated when Fusion sent gzip
+     */
+    public static final class Exchange implements Closeable {
+        private final HttpResponse<InputStream> response;
+        private final InputStream body;
+
+        private Exchange(HttpResponse<InputStream> response, long readTimeoutMs) throws IOException {
+            this.response = response;
+            boolean gzip = response.headers().firstValue(HttpHeaders.CONTENT_ENCODING)
+                    .map(encoding -> encoding.trim().equalsIgnoreCase("gzip")).orElse(false);
+            // The request timeout stops at the headers, the body gets what is left of it
+            InputStream raw = readTimeoutMs > 0 ? new TimedInputStream(response.body(), readTimeoutMs) : response.body();
+            // Unlike the Apache client, the JDK client does not inflate gzip payloads
+            this.body = gzip ? new GZIPInputStream(raw) : raw;
+        }
+
+        public int getStatus() {
+            return response.statusCode();
+        }
+
+        public String getHeader(String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        public HttpClient.Version getVersion() {
+            return response.version();
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    /**
+     * Keeps hold of the response body for abort(), which would otherwise never see a body arriving after it
+     */
+    private static final class AbortableBody implements HttpResponse.BodyHandler<InputStream> {
+        private InputStream body;
+        private boolean aborted;
+
+        @Override
+        public HttpResponse.BodySubscriber<InputStream> apply(HttpResponse.ResponseInfo info) {
+            HttpResponse.BodySubscriber<InputStream> subscriber = HttpResponse.BodySubscribers.ofInputStream();
+            // Completes as soon as the headers are in, before the body is read
+            subscriber.getBody().thenAccept(this::received);
+            return subscriber;
+        }
+
+        private void received(InputStream in) {
+            boolean close;
+            synchronized (this) {
+                body = in;
+                close = aborted;
+            }
+            if (close) {
+                closeQuietly(in);
+            }
+        }
+
+        void abort() {
+            InputStream in;
+            synchronized (this) {
+                aborted = true;
+                in = body;
+            }
+            if (in != null) {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * @param connectTimeoutMs : Applies to new connections, HTTP/2 ones are then shared by all requests to the host
+     */
+    public Http2Transport(int connectTimeoutMs) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+    }
+
+    /**
+     * Sends a request built by SaaSHelper. The socket timeout of its RequestConfig is used as the timeout of the
+     * whole exchange, headers and body.
+     *
+     * @return the exchange, to be closed by the caller once the body is read
+     * @throws java.net.http.HttpTimeoutException : No response within the timeout
+     * @throws IOException : Connection failures, and requests aborted before completing
+     */
+    public Exchange send(HttpUriRequest request) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request.getURI())
+                .method(request.getMethod(), bodyOf(request));
+        for (Header header : request.getAllHeaders()) {
+            if (!RESTRICTED_HEADERS.contains(header.getName().toLowerCase())) {
+                builder.header(header.getName(), header.getValue());
+            }
+        }
+        long start = System.currentTimeMillis();
+        int timeoutMs = responseTimeoutMs(request);
+        if (timeoutMs > 0) {
+            builder.timeout(Duration.ofMillis(timeoutMs));
+        }
+
+        AbortableBody body = new AbortableBody();
+        // Only what this thread waits on is ever cancelled, see the class comment
+        CompletableFuture<HttpResponse<InputStream>> future = new CompletableFuture<>();
+        client.sendAsync(builder.build(), body).whenComplete((response, error) -> {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(response);
+            }
+        });
+        if (request instanceof HttpRequestBase) {
+            HttpRequestBase abortable = (HttpRequestBase) request;
+            abortable.setCancellable(() -> cancel(future, body));
+            if (abortable.isAborted()) {
+                // Aborted before the cancellable was registered
+                cancel(future, body);
+            }
+        }
+        try {
+            HttpResponse<InputStream> response = future.get();
+            LOGGER.fine("fusion.http.version", "version", response.version());
+            // At least 1ms, the body of a response that only just made it is then aborted straight away
+            return new Exchange(response, timeoutMs > 0 ? Math.max(1, timeoutMs - (System.currentTimeMillis() - start)) : 0);
+        } catch (CancellationException e) {
+            throw new IOException("SaaS request aborted", e);
+        } catch (InterruptedException e) {
+            cancel(future, body);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for SaaS", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return the socket timeout of the RequestConfig of a request built by SaaSHelper, 0 if there is none
+     */
+    static int responseTimeoutMs(HttpUriRequest request) {
+        if (request instanceof Configurable && ((Configurable) request).getConfig() != null) {
+            RequestConfig requestConfig = ((Configurable) request).getConfig();
+            return Math.max(0, requestConfig.getSocketTimeout());
+        }
+        return 0;
+    }
+
+    private static HttpRequest.BodyPublisher bodyOf(HttpUriRequest request) throws IOException {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                return HttpRequest.BodyPublishers.ofByteArray(EntityUtils.toByteArray(entity));
+            }
+        }
+        return HttpRequest.BodyPublishers.noBody();
+    }
+
+    private static boolean cancel(CompletableFuture<HttpResponse<InputStream>> future, AbortableBody body) {
+        future.cancel(true);
+        // Now or once the response arrives, closing the body ends the exchange
+        body.abort();
+        return true;
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "fusion.abort.close.failed", e);
+        }
+    }
+}
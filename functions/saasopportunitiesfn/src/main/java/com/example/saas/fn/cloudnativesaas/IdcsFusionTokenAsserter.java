@@ -0,0 +1,40 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.RuntimeContext;
+import com.oracle.bmc.Region;
+import com.oracle.idcs.oauth.SecurityHelper;
+
+/**
+ * FusionTokenAsserter of the asserter library : the only class of the function linked to SecurityHelper and the OCI SDK,
+ * created by the function when full_oauth=true. The OCI SDK is only packed with the function when built with
+ * FULL_OAUTH=true (or mvn -Pfull-oauth).
+ */
+class IdcsFusionTokenAsserter implements FusionTokenAsserter {
+
+    private final RuntimeContext ctx;
+
+    IdcsFusionTokenAsserter(RuntimeContext ctx) {
+        try {
+            // Fails the function start rather than its first request
+            Class.forName("com.oracle.bmc.secrets.SecretsClient", false, getClass().getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("full_oauth=true needs the OCI SDK, build the function with FULL_OAUTH=true", e);
+        }
+        this.ctx = ctx;
+    }
+
+    @Override
+    public String assertToken(InputEvent rawInput) throws Exception {
+        SecurityHelper idcsSecurityHelper = new SecurityHelper(ctx)                       // Initialize SecurityHelper with RuntimeContext
+                                            .setOciRegion(Region.US_PHOENIX_1)            // Specify the OCI region, used to retrieve Secrets.
+                                            .extractSubFromJwtTokenHeader(rawInput);      // Extracts the subject from Token in Fn-Http-H-Authorization.
+
+        // Get OAuth Access token with JWT Assertion using the principal extracted from Fn-Http-H-Access-Token Header
+        return idcsSecurityHelper.getAssertedAccessToken();
+    }
+}
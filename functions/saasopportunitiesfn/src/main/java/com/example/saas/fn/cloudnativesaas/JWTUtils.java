@@ -7,12 +7,11 @@ import com.example.saas.fn.cloudnativesaas.exceptions.NoBearerTokenException;
 import com.fnproject.fn.api.InputEvent;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.oracle.idcs.oauth.util.EventLog;
 
 import java.util.Optional;
 
 import java.util.Base64;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import com.example.saas.fn.cloudnativesaas.exceptions.ObjectMapperException;
 
 /**
@@ -20,7 +19,8 @@ import com.example.saas.fn.cloudnativesaas.exceptions.ObjectMapperException;
  */
 public class JWTUtils {
     private static final String TOKEN_BEARER_PREFIX="Bearer ";
-    private static final Logger LOGGER = Logger.getLogger("CLOUDNATIVESAAS");
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+    private static final ObjectMapper MAPPER = new ObjectMapper();
 
     private JWTUtils()
     {
@@ -33,35 +33,49 @@ public class JWTUtils {
         Optional<String> optionalToken=rawInput.getHeaders().get("Fn-Http-H-Authorization");
         if (!optionalToken.isPresent())
         {
-            LOGGER.info("No bearer token found in get JWT method");
+            LOGGER.info("token.missing");
             throw new NoBearerTokenException("No Bearer token");
         }
         String jwtToken=optionalToken.get().substring(TOKEN_BEARER_PREFIX.length());
         return jwtToken.trim();
     }
 
-    public static String getJWTUsername(InputEvent rawInput) throws ObjectMapperException
+    /**
+     * Decodes the payload of a JWT, without checking its signature
+     */
+    public static JsonNode getJWTClaims(String jwtToken) throws ObjectMapperException
     {
         try {
-           String username="";
-            String jwtToken=getJWTToken(rawInput);
-            String[] splitString = jwtToken.split("\\.");
-            // String base64EncodedHeader = splitString[0];   // Not used but left for reference
-            String base64EncodedBody = splitString[1];
-            // String base64EncodedSignature = splitString[2]; // Not used but left for reference
-            byte[] decodedJWT = Base64.getDecoder().decode(base64EncodedBody);
-
-                String jsonBody = new String(decodedJWT, "utf-8");
-                ObjectMapper mapper = new ObjectMapper();
-                JsonNode root=mapper.readTree(jsonBody);
-                username=root.get("sub").asText();
-                LOGGER.log(Level.INFO,"Username extracted = {} ",username);
-            return username;
+            String base64EncodedBody = jwtToken.split("\\.")[1];
+            byte[] decodedJWT = Base64.getUrlDecoder().decode(base64EncodedBody);
+            return MAPPER.readTree(new String(decodedJWT, "utf-8"));
         } catch (Exception e)
         {
             throw new ObjectMapperException(e.getMessage());
         }
+    }
 
+    /**
+     * Key of the user in the per user caches : the same sub may belong to different users in other domains or tenants
+     *
+     * @param claims : Payload of the user's token, see getJWTClaims
+     */
+    public static String getCacheKey(JsonNode claims)
+    {
+        return String.join("|", claims.path("iss").asText(), claims.path("tenant").asText(), claims.path("sub").asText());
+    }
+
+    public static String getJWTUsername(InputEvent rawInput) throws ObjectMapperException
+    {
+        try {
+            return getJWTClaims(getJWTToken(rawInput)).get("sub").asText();
+        } catch (ObjectMapperException e)
+        {
+            throw e;
+        } catch (Exception e)
+        {
+            throw new ObjectMapperException(e.getMessage());
+        }
     }
 
 }
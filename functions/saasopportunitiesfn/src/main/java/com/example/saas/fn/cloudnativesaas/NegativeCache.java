@@ -0,0 +1,69 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short lived cache of lookups Fusion answered with 404, keyed by user and OptyId.
+ * Only the fact that the lookup failed is stored, so entries cost a key and a timestamp.
+ */
+public class NegativeCache {
+
+    private final long ttlMs;
+    private final int maxEntries;
+    private final Map<String, Long> expiries = new ConcurrentHashMap<>();
+
+    public NegativeCache(long ttlMs, int maxEntries) {
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return true if Fusion recently returned 404 for this user and OptyId
+     */
+    public boolean isNotFound(String principal, String optyId) {
+        if (ttlMs <= 0) {
+            return false;
+        }
+        String key = key(principal, optyId);
+        Long expiry = expiries.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry < System.currentTimeMillis()) {
+            expiries.remove(key, expiry);
+            return false;
+        }
+        return true;
+    }
+
+    public void putNotFound(String principal, String optyId) {
+        if (ttlMs <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (expiries.size() >= maxEntries) {
+            expiries.values().removeIf(expiry -> expiry < now);
+            if (expiries.size() >= maxEntries) {
+                // Still full of live entries, not worth evicting them for this one
+                return;
+            }
+        }
+        expiries.put(key(principal, optyId), now + ttlMs);
+    }
+
+    /**
+     * Drops the entry, used once the opportunity is known to exist (eg: successful PATCH)
+     */
+    public void invalidate(String principal, String optyId) {
+        expiries.remove(key(principal, optyId));
+    }
+
+    private static String key(String principal, String optyId) {
+        return principal + "|" + optyId;
+    }
+}
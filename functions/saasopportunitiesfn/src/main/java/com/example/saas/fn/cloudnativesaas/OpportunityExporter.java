@@ -0,0 +1,286 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.example.saas.fn.cloudnativesaas.exceptions.BadRequestException;
+import com.example.saas.fn.cloudnativesaas.exceptions.NotFoundException;
+import com.example.saas.fn.cloudnativesaas.exceptions.ServiceUnavailableException;
+import com.example.saas.fn.cloudnativesaas.exceptions.UnAuthorizedException;
+import com.example.saas.fn.cloudnativesaas.model.Opportunity;
+import com.example.saas.fn.cloudnativesaas.model.OpportunityJson;
+import com.example.saas.fn.cloudnativesaas.model.OpportunityList;
+import com.oracle.idcs.oauth.util.Deadline;
+import com.oracle.idcs.oauth.util.EventLog;
+import com.oracle.idcs.oauth.util.OutboundExecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Exports WON, LOST and OPEN opportunities as NDJSON or CSV, one chunk per invocation.
+ *
+ * Up to window Fusion pages are fetched concurrently and written in order as they arrive. A chunk ends when Fusion
+ * has no more rows, when the function deadline (less a margin) is reached or when the chunk reaches its maximum
+ * size (OCI Functions caps response bodies). Unless it is the last one, the chunk comes with a continuation token
+ * the client passes back to get the next one.
+ */
+public class OpportunityExporter {
+
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+    public static final String FORMAT_NDJSON = "ndjson";
+    public static final String FORMAT_CSV = "csv";
+    private static final String CT_NDJSON = "application/x-ndjson";
+    private static final String CT_CSV = "text/csv";
+    private static final String TOKEN_PREFIX = "offset:";
+    private static final String CSV_HEADER = "OptyNumber,TargetPartyName,Name,DescriptionText,StatusCode,"
+            + "PrimaryContactPartyName,PrimaryContactFormattedPhoneNumber,PrimaryContactEmailAddress\n";
+    // Offset pagination needs a stable order
+    private static final String ORDER_BY = "OptyNumber:asc";
+
+    private final int window;
+    private final int pageSize;
+    private final int maxBytes;
+    private final long deadlineMarginMs;
+    private final ExecutorService executor;
+
+    /**
+     * One chunk of the export
+     */
+    public static class Chunk {
+        private final byte[] body;
+        private final String contentType;
+        private final String continuation;
+        private final int rows;
+
+        Chunk(byte[] body, String contentType, String continuation, int rows) {
+            this.body = body;
+            this.contentType = contentType;
+            this.continuation = continuation;
+            this.rows = rows;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return token for the next chunk, null if this was the last one
+         */
+        public String getContinuation() {
+            return continuation;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+    }
+
+    public OpportunityExporter(int window, int pageSize, int maxBytes, long deadlineMarginMs) {
+        this.window = window;
+        this.pageSize = pageSize;
+        this.maxBytes = maxBytes;
+        this.deadlineMarginMs = deadlineMarginMs;
+        // The window bounds the pages in flight, whichever threads run them
+        this.executor = OutboundExecutor.newExecutor("opportunity-export", window);
+    }
+
+    /**
+     * @param jwtToken
+     * @param fusionURL
+     * @param format : ndjson or csv
+     * @param continuation : Token returned with the previous chunk, null for the first one
+     * @param deadline : Time by which the function must have answered
+     * @return the chunk
+     */
+    public Chunk export(String jwtToken, String fusionURL, String format, String continuation, Instant deadline)
+            throws UnAuthorizedException, NotFoundException, IOException, BadRequestException, ServiceUnavailableException {
+        boolean csv = FORMAT_CSV.equalsIgnoreCase(format);
+        if (!csv && !FORMAT_NDJSON.equalsIgnoreCase(format)) {
+            throw new BadRequestException("format must be " + FORMAT_NDJSON + " or " + FORMAT_CSV);
+        }
+        int startOffset = parseContinuation(continuation);
+        long stopAt = deadline.toEpochMilli() - deadlineMarginMs;
+        long start = System.currentTimeMillis();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (csv && startOffset == 0) {
+            out.write(CSV_HEADER.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Pages in flight, oldest first, written strictly in that order
+        Deque<Future<OpportunityList>> pages = new ArrayDeque<>();
+        int nextPageOffset = startOffset;
+        for (int i = 0; i < window; i++) {
+            pages.add(fetch(jwtToken, fusionURL, nextPageOffset));
+            nextPageOffset += pageSize;
+        }
+
+        int offset = startOffset;       // Offset of the next row to write
+        int rows = 0;
+        boolean complete = false;
+        try {
+            while (!complete) {
+                OpportunityList page;
+                try {
+                    page = pages.peekFirst().get(Math.max(0, stopAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    LOGGER.info("export.deadline", "offset", offset);
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    if (rows > 0) {
+                        // Hand back what we have, the client retries from the failed page
+                        LOGGER.warning("export.page.failed", "offset", offset, "error", e.getCause().getLocalizedMessage());
+                        break;
+                    }
+                    throw rethrow(e.getCause());
+                }
+                pages.removeFirst();
+
+                boolean full = false;
+                for (Opportunity opportunity : page.getItems()) {
+                    byte[] row = csv ? csvRow(opportunity) : ndjsonRow(opportunity);
+                    if (out.size() + row.length > maxBytes) {
+                        full = true;
+                        break;
+                    }
+                    out.write(row);
+                    offset++;
+                    rows++;
+                }
+                if (full) {
+                    break;
+                }
+                if (!page.isHasMore() || page.getItems().isEmpty()) {
+                    complete = true;
+                } else if (page.getItems().size() < pageSize) {
+                    // Fusion capped the page size, the next page does not start where we thought it would
+                    LOGGER.info("export.page.short", "rows", page.getItems().size(), "pageSize", pageSize);
+                    break;
+                } else {
+                    pages.add(fetch(jwtToken, fusionURL, nextPageOffset));
+                    nextPageOffset += pageSize;
+                }
+            }
+        } finally {
+            // Pages past the end of this chunk are not needed
+            for (Future<OpportunityList> pending : pages) {
+                pending.cancel(true);
+            }
+        }
+
+        if (rows == 0 && !complete) {
+            // Nothing fetched in time, a token pointing where we started would only loop the client
+            throw new ServiceUnavailableException("Export could not read any opportunity before the function deadline", 1);
+        }
+        String next = complete ? null : Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((TOKEN_PREFIX + offset).getBytes(StandardCharsets.UTF_8));
+        LOGGER.info("export.chunk", "rows", rows, "bytes", out.size(), "ms", System.currentTimeMillis() - start, "complete", complete);
+        return new Chunk(out.toByteArray(), csv ? CT_CSV : CT_NDJSON, next, rows);
+    }
+
+    private Future<OpportunityList> fetch(String jwtToken, String fusionURL, int offset) {
+        // Pages are fetched on other threads, still within the invocation deadline
+        Deadline deadline = Deadline.current();
+        return executor.submit(() -> {
+            try (Deadline.Scope scope = deadline.enter()) {
+                return SaaSHelper.queryOptysPage(jwtToken, fusionURL, SaaSHelper.DEFAULT_STATUS_QUERY, ORDER_BY, offset, pageSize);
+            }
+        });
+    }
+
+    private static int parseContinuation(String continuation) throws BadRequestException {
+        if (continuation == null || continuation.isEmpty()) {
+            return 0;
+        }
+        try {
+            String token = new String(Base64.getUrlDecoder().decode(continuation), StandardCharsets.UTF_8);
+            if (token.startsWith(TOKEN_PREFIX)) {
+                int offset = Integer.parseInt(token.substring(TOKEN_PREFIX.length()));
+                if (offset >= 0) {
+                    return offset;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Falls through to the BadRequestException, NumberFormatException included
+        }
+        throw new BadRequestException("Invalid continuation token");
+    }
+
+    private static byte[] ndjsonRow(Opportunity opportunity) throws IOException {
+        byte[] json = OpportunityJson.MAPPER.writeValueAsBytes(opportunity);
+        byte[] row = new byte[json.length + 1];
+        System.arraycopy(json, 0, row, 0, json.length);
+        row[json.length] = '\n';
+        return row;
+    }
+
+    private static byte[] csvRow(Opportunity opportunity) {
+        StringBuilder row = new StringBuilder(256);
+        String[] values = {opportunity.getOptyNumber(), opportunity.getTargetPartyName(), opportunity.getName(),
+                opportunity.getDescriptionText(), opportunity.getStatusCode(), opportunity.getPrimaryContactPartyName(),
+                opportunity.getPrimaryContactFormattedPhoneNumber(), opportunity.getPrimaryContactEmailAddress()};
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                row.append(',');
+            }
+            appendCsv(row, values[i]);
+        }
+        return row.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendCsv(StringBuilder row, String value) {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            row.append(value);
+            return;
+        }
+        row.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    /**
+     * Unwraps a page failure back into the exceptions the function maps to http status codes
+     */
+    private static IOException rethrow(Throwable cause)
+            throws UnAuthorizedException, NotFoundException, BadRequestException, ServiceUnavailableException {
+        if (cause instanceof UnAuthorizedException) {
+            throw (UnAuthorizedException) cause;
+        }
+        if (cause instanceof NotFoundException) {
+            throw (NotFoundException) cause;
+        }
+        if (cause instanceof BadRequestException) {
+            throw (BadRequestException) cause;
+        }
+        if (cause instanceof ServiceUnavailableException) {
+            throw (ServiceUnavailableException) cause;
+        }
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new IOException(cause);
+    }
+}
@@ -0,0 +1,349 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.example.saas.fn.cloudnativesaas.exceptions.BadRequestException;
+import com.example.saas.fn.cloudnativesaas.exceptions.NotFoundException;
+import com.example.saas.fn.cloudnativesaas.exceptions.ServiceUnavailableException;
+import com.example.saas.fn.cloudnativesaas.exceptions.UnAuthorizedException;
+import com.example.saas.fn.cloudnativesaas.model.Opportunity;
+import com.example.saas.fn.cloudnativesaas.model.OpportunityList;
+import com.oracle.idcs.oauth.util.Deadline;
+import com.oracle.idcs.oauth.util.DeadlineExceededException;
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Optional in-container copy of the opportunities each user can see, answering list requests locally.
+ *
+ * The first list request of a user pages through the default (WON, LOST, OPEN) query. Once the copy is older than
+ * the staleness bound, the next request fetches only the rows changed since the highest LastUpdateDate seen
+ * (q=LastUpdateDate >= watermark). A periodic full reload drops rows deleted in Fusion, which a delta cannot see.
+ * Functions do not run between invocations, so syncs happen on the request path rather than on a timer.
+ *
+ * A sync pages for at most the load budget, and stops early enough to leave Fusion as long again to answer the
+ * request. A load that does not fit carries on from where it stopped on the next request, and Fusion answers in the
+ * meantime. A failed sync is not retried for a while, with the wait doubling on each failure in a row.
+ *
+ * Copies are per user because Fusion applies data visibility per user.
+ */
+public class OpportunityMirror {
+
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+    private static final Set<String> DEFAULT_STATUSES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("WON", "LOST", "OPEN")));
+    private static final Map<String, Function<Opportunity, String>> SORT_FIELDS = new HashMap<>();
+    // Fusion writes offsets as +00:00, OffsetDateTime.toString() would write Z
+    private static final DateTimeFormatter WATERMARK_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssxxx");
+    // Wait after the first failed sync, doubled for each further failure up to the full reload interval
+    private static final long RETRY_BASE_MS = 1000;
+
+    static {
+        SORT_FIELDS.put("OptyNumber", Opportunity::getOptyNumber);
+        SORT_FIELDS.put("Name", Opportunity::getName);
+        SORT_FIELDS.put("TargetPartyName", Opportunity::getTargetPartyName);
+        SORT_FIELDS.put("StatusCode", Opportunity::getStatusCode);
+        SORT_FIELDS.put("PrimaryContactPartyName", Opportunity::getPrimaryContactPartyName);
+        SORT_FIELDS.put("LastUpdateDate", Opportunity::getLastUpdateDate);
+    }
+
+    private final long stalenessMs;
+    private final long fullReloadMs;
+    private final long loadBudgetMs;
+    private final int pageSize;
+    private final int maxRows;
+    private final Map<String, Store> stores;
+    // Kept in step with the mirrored rows when search is enabled, may be null
+    private final OpportunitySearchIndex searchIndex;
+
+    /**
+     * Rows of one user, replaced wholesale on full loads and upserted on deltas
+     */
+    private static class Store {
+        final String principal;
+        volatile Map<String, Opportunity> rows = new ConcurrentHashMap<>();
+        volatile long lastSyncAt = 0;
+        long lastFullLoadAt = 0;
+        OffsetDateTime watermark;
+        // Too many rows to mirror, requests for this user go to Fusion
+        volatile boolean overflow = false;
+        // Full load that ran out of budget, carried on by the next sync
+        Map<String, Opportunity> loading;
+        int loadingOffset;
+        OffsetDateTime loadingWatermark;
+        long loadingStartedAt;
+        // Failed syncs in a row, no sync is tried before retryAt
+        int failures = 0;
+        volatile long retryAt = 0;
+
+        Store(String principal) {
+            this.principal = principal;
+        }
+    }
+
+    public OpportunityMirror(long stalenessMs, long fullReloadMs, long loadBudgetMs, int pageSize, int maxRows, int maxPrincipals,
+                             OpportunitySearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+        this.stalenessMs = stalenessMs;
+        this.fullReloadMs = fullReloadMs;
+        this.loadBudgetMs = loadBudgetMs;
+        this.pageSize = pageSize;
+        this.maxRows = maxRows;
+        // Least recently used users are dropped first
+        this.stores = Collections.synchronizedMap(new LinkedHashMap<String, Store>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Store> eldest) {
+                return size() > maxPrincipals;
+            }
+        });
+    }
+
+    /**
+     * Answers a list request from the mirror, syncing it first if it is older than the staleness bound
+     *
+     * @param principal : Key of the user whose copy is used (issuer, tenant and sub)
+     * @param jwtToken : Token of that user, used for any sync
+     * @param fusionURL
+     * @param statuses : StatusCodes to return, empty for WON, LOST and OPEN
+     * @param orderBy : Field[:asc|:desc], null to sort by OptyNumber
+     * @param offset
+     * @param limit
+     * @return the page, or null if the mirror cannot serve this request or user and Fusion must be queried instead,
+     * which includes while the user's copy is still loading or after a failed sync
+     */
+    public OpportunityList list(String principal, String jwtToken, String fusionURL, Set<String> statuses, String orderBy, int offset, int limit)
+            throws UnAuthorizedException {
+        if (!DEFAULT_STATUSES.containsAll(statuses) || !isSortable(orderBy)) {
+            // Only WON, LOST and OPEN rows are mirrored, sorted on the fields of the model
+            return null;
+        }
+        Store store = stores.computeIfAbsent(principal, Store::new);
+        if (!sync(store, jwtToken, fusionURL) || store.overflow) {
+            return null;
+        }
+
+        Set<String> wanted = statuses.isEmpty() ? DEFAULT_STATUSES : statuses;
+        List<Opportunity> matches = store.rows.values().stream()
+                .filter(o -> wanted.contains(o.getStatusCode()))
+                .sorted(comparator(orderBy))
+                .collect(Collectors.toList());
+
+        OpportunityList page = new OpportunityList();
+        int from = Math.min(Math.max(offset, 0), matches.size());
+        int to = Math.min(from + Math.max(limit, 0), matches.size());
+        page.setItems(matches.subList(from, to));
+        page.setCount(to - from);
+        page.setOffset(from);
+        page.setLimit(limit);
+        page.setHasMore(to < matches.size());
+        return page;
+    }
+
+    /**
+     * Applies a row the function fetched or updated outside a sync (single GET, PATCH) to the user's copy, if any
+     */
+    public void upsert(String principal, Opportunity opportunity) {
+        Store store = stores.get(principal);
+        if (store != null && opportunity.getOptyNumber() != null) {
+            apply(store, opportunity);
+        }
+    }
+
+    /**
+     * @return true once the copy is within the staleness bound, false if it is still loading or the sync failed
+     */
+    private boolean sync(Store store, String jwtToken, String fusionURL) throws UnAuthorizedException {
+        if (System.currentTimeMillis() - store.lastSyncAt < stalenessMs) {
+            return true;
+        }
+        if (System.currentTimeMillis() < store.retryAt) {
+            return false;
+        }
+        // One sync per user at a time, concurrent requests wait for it and then find the copy fresh
+        synchronized (store) {
+            long now = System.currentTimeMillis();
+            if (now - store.lastSyncAt < stalenessMs) {
+                return true;
+            }
+            if (now < store.retryAt) {
+                return false;
+            }
+            if (store.overflow && now - store.lastFullLoadAt < fullReloadMs) {
+                // Do not page through everything again until the next full reload is due
+                store.lastSyncAt = now;
+                return true;
+            }
+            // Leaves as long again in the invocation for Fusion to answer this request
+            Deadline pause = Deadline.after(loadBudgetMs).min(Deadline.current().minus(loadBudgetMs));
+            boolean synced;
+            try {
+                if (store.loading != null || store.watermark == null || now - store.lastFullLoadAt >= fullReloadMs) {
+                    synced = fullLoad(store, jwtToken, fusionURL, pause);
+                } else {
+                    synced = deltaLoad(store, jwtToken, fusionURL, pause);
+                }
+            } catch (IOException | ServiceUnavailableException | BadRequestException | NotFoundException | DeadlineExceededException e) {
+                store.failures++;
+                long wait = Math.min(fullReloadMs, RETRY_BASE_MS << Math.min(store.failures - 1, 20));
+                store.retryAt = System.currentTimeMillis() + wait;
+                LOGGER.warning("mirror.sync.failed", "retryInMs", wait, "error", e.getMessage());
+                return false;
+            }
+            store.failures = 0;
+            if (synced) {
+                store.lastSyncAt = System.currentTimeMillis();
+            }
+            return synced;
+        }
+    }
+
+    /**
+     * Pages through the default query, from where the previous attempt stopped if it ran out of budget
+     *
+     * @return false if the budget ran out before the last page
+     */
+    private boolean fullLoad(Store store, String jwtToken, String fusionURL, Deadline pause)
+            throws UnAuthorizedException, NotFoundException, IOException, BadRequestException, ServiceUnavailableException {
+        if (store.loading == null) {
+            store.loading = new ConcurrentHashMap<>();
+            store.loadingOffset = 0;
+            store.loadingWatermark = null;
+            store.loadingStartedAt = System.currentTimeMillis();
+        }
+        OpportunityList page;
+        do {
+            if (pause.isExpired()) {
+                LOGGER.info("mirror.load.paused", "rows", store.loading.size());
+                return false;
+            }
+            page = SaaSHelper.queryOptysPage(jwtToken, fusionURL, SaaSHelper.DEFAULT_STATUS_QUERY, "OptyNumber:asc", store.loadingOffset, pageSize);
+            for (Opportunity opportunity : page.getItems()) {
+                store.loading.put(opportunity.getOptyNumber(), opportunity);
+                store.loadingWatermark = later(store.loadingWatermark, opportunity.getLastUpdateDate());
+            }
+            store.loadingOffset += page.getItems().size();
+            if (store.loading.size() > maxRows) {
+                LOGGER.info("mirror.overflow", "maxRows", maxRows);
+                store.overflow = true;
+                store.rows = new ConcurrentHashMap<>();
+                store.lastFullLoadAt = store.loadingStartedAt;
+                store.loading = null;
+                return true;
+            }
+        } while (page.isHasMore() && !page.getItems().isEmpty());
+
+        Map<String, Opportunity> rows = store.loading;
+        store.loading = null;
+        if (searchIndex != null) {
+            for (String optyNumber : store.rows.keySet()) {
+                if (!rows.containsKey(optyNumber)) {
+                    searchIndex.remove(store.principal, optyNumber);
+                }
+            }
+            searchIndex.index(store.principal, rows.values());
+        }
+        store.rows = rows;
+        store.watermark = store.loadingWatermark != null ? store.loadingWatermark : OffsetDateTime.now();
+        store.lastFullLoadAt = store.loadingStartedAt;
+        store.overflow = false;
+        LOGGER.info("mirror.loaded", "rows", rows.size(), "ms", System.currentTimeMillis() - store.loadingStartedAt);
+        return true;
+    }
+
+    /**
+     * Applies the rows changed since the watermark, which moves up page by page so a paused delta carries on from there
+     *
+     * @return false if the budget ran out before the last page
+     */
+    private boolean deltaLoad(Store store, String jwtToken, String fusionURL, Deadline pause)
+            throws UnAuthorizedException, NotFoundException, IOException, BadRequestException, ServiceUnavailableException {
+        long start = System.currentTimeMillis();
+        // >= rather than > as LastUpdateDate has second precision, rows seen twice are simply upserted again
+        String query = "LastUpdateDate >= '" + WATERMARK_FORMAT.format(store.watermark) + "'";
+        int offset = 0;
+        int changed = 0;
+        OpportunityList page;
+        do {
+            if (pause.isExpired()) {
+                LOGGER.fine("mirror.delta.paused", "rows", changed);
+                return false;
+            }
+            page = SaaSHelper.queryOptysPage(jwtToken, fusionURL, query, "LastUpdateDate:asc", offset, pageSize);
+            for (Opportunity opportunity : page.getItems()) {
+                apply(store, opportunity);
+                store.watermark = later(store.watermark, opportunity.getLastUpdateDate());
+                changed++;
+            }
+            offset += page.getItems().size();
+        } while (page.isHasMore() && !page.getItems().isEmpty());
+        LOGGER.fine("mirror.delta.applied", "rows", changed, "ms", System.currentTimeMillis() - start);
+        return true;
+    }
+
+    private void apply(Store store, Opportunity opportunity) {
+        // The delta is not filtered on status so rows leaving WON/LOST/OPEN are seen and dropped
+        if (DEFAULT_STATUSES.contains(opportunity.getStatusCode())) {
+            store.rows.put(opportunity.getOptyNumber(), opportunity);
+            if (searchIndex != null) {
+                searchIndex.index(store.principal, opportunity);
+            }
+        } else {
+            store.rows.remove(opportunity.getOptyNumber());
+            if (searchIndex != null) {
+                searchIndex.remove(store.principal, opportunity.getOptyNumber());
+            }
+        }
+    }
+
+    private static OffsetDateTime later(OffsetDateTime current, String lastUpdateDate) {
+        if (lastUpdateDate == null) {
+            return current;
+        }
+        try {
+            OffsetDateTime candidate = OffsetDateTime.parse(lastUpdateDate);
+            return current == null || candidate.isAfter(current) ? candidate : current;
+        } catch (DateTimeParseException e) {
+            LOGGER.fine("mirror.date.unparseable", "lastUpdateDate", lastUpdateDate);
+            return current;
+        }
+    }
+
+    private static boolean isSortable(String orderBy) {
+        if (orderBy == null || orderBy.isEmpty()) {
+            return true;
+        }
+        String[] parts = orderBy.split(":");
+        return parts.length <= 2 && SORT_FIELDS.containsKey(parts[0])
+                && (parts.length == 1 || parts[1].equalsIgnoreCase("asc") || parts[1].equalsIgnoreCase("desc"));
+    }
+
+    private static Comparator<Opportunity> comparator(String orderBy) {
+        String field = "OptyNumber";
+        boolean descending = false;
+        if (orderBy != null && !orderBy.isEmpty()) {
+            String[] parts = orderBy.split(":");
+            field = parts[0];
+            descending = parts.length > 1 && parts[1].equalsIgnoreCase("desc");
+        }
+        Function<Opportunity, String> key = SORT_FIELDS.getOrDefault(field, Opportunity::getOptyNumber);
+        Comparator<Opportunity> comparator = Comparator.comparing(key, Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER));
+        return descending ? comparator.reversed() : comparator;
+    }
+}
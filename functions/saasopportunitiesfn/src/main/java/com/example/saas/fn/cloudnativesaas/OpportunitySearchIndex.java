@@ -0,0 +1,222 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.example.saas.fn.cloudnativesaas.model.Opportunity;
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory token/prefix inverted index over the opportunities the function has loaded, per user.
+ * Indexed fields : Name, TargetPartyName, PrimaryContactPartyName and DescriptionText.
+ *
+ * Every query token is matched as a prefix (type-ahead) and results must match all query tokens.
+ * Posting lists are sorted int arrays of document ids. A changed opportunity gets a new id and its old id is
+ * marked deleted, so posting lists only ever grow at the end; the index is rebuilt once half of it is deleted.
+ */
+public class OpportunitySearchIndex {
+
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+
+    private final int maxDocs;
+    private final Map<String, UserIndex> indexes;
+
+    public OpportunitySearchIndex(int maxDocs, int maxPrincipals) {
+        this.maxDocs = maxDocs;
+        // Least recently used users are dropped first
+        this.indexes = Collections.synchronizedMap(new LinkedHashMap<String, UserIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, UserIndex> eldest) {
+                return size() > maxPrincipals;
+            }
+        });
+    }
+
+    /**
+     * Adds or replaces opportunities in the user's index
+     */
+    public void index(String principal, Collection<Opportunity> opportunities) {
+        if (opportunities.isEmpty()) {
+            return;
+        }
+        UserIndex index = indexes.computeIfAbsent(principal, p -> new UserIndex());
+        index.lock.writeLock().lock();
+        try {
+            for (Opportunity opportunity : opportunities) {
+                index.add(opportunity);
+            }
+            if (index.deleted.cardinality() * 2 > index.docs.size()) {
+                index.compact();
+            }
+            while (index.byOptyNumber.size() > maxDocs) {
+                // Oldest documents go first
+                index.remove(index.docs.get(index.deleted.nextClearBit(0)).getOptyNumber());
+            }
+        } finally {
+            index.lock.writeLock().unlock();
+        }
+    }
+
+    public void index(String principal, Opportunity opportunity) {
+        index(principal, Collections.singletonList(opportunity));
+    }
+
+    /**
+     * Drops an opportunity from the user's index (eg: it left the WON/LOST/OPEN statuses)
+     */
+    public void remove(String principal, String optyNumber) {
+        UserIndex index = indexes.get(principal);
+        if (index == null) {
+            return;
+        }
+        index.lock.writeLock().lock();
+        try {
+            index.remove(optyNumber);
+        } finally {
+            index.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param principal : User whose index is searched
+     * @param text : Free text, every word is matched as a prefix
+     * @param limit : Maximum number of results
+     * @return matching opportunities, most recently indexed first
+     */
+    public List<Opportunity> search(String principal, String text, int limit) {
+        List<Opportunity> results = new ArrayList<>();
+        UserIndex index = indexes.get(principal);
+        List<String> tokens = tokenize(text);
+        if (index == null || tokens.isEmpty()) {
+            return results;
+        }
+        index.lock.readLock().lock();
+        try {
+            BitSet matches = null;
+            for (String token : tokens) {
+                BitSet tokenMatches = new BitSet(index.docs.size());
+                NavigableMap<String, Postings> prefixed = index.postings.subMap(token, true, token + Character.MAX_VALUE, false);
+                for (Postings postings : prefixed.values()) {
+                    for (int i = 0; i < postings.size; i++) {
+                        tokenMatches.set(postings.ids[i]);
+                    }
+                }
+                if (matches == null) {
+                    matches = tokenMatches;
+                } else {
+                    matches.and(tokenMatches);
+                }
+                if (matches.isEmpty()) {
+                    return results;
+                }
+            }
+            matches.andNot(index.deleted);
+            for (int id = matches.previousSetBit(index.docs.size() - 1); id >= 0 && results.size() < limit; id = matches.previousSetBit(id - 1)) {
+                results.add(index.docs.get(id));
+            }
+        } finally {
+            index.lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    static List<String> tokenize(String text) {
+        if (text == null) {
+            return Collections.emptyList();
+        }
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String token : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return new ArrayList<>(tokens);
+    }
+
+    /**
+     * Growable sorted int array of document ids
+     */
+    private static class Postings {
+        int[] ids = new int[4];
+        int size = 0;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    /**
+     * Index of one user, guarded by its read/write lock
+     */
+    private static class UserIndex {
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        List<Opportunity> docs = new ArrayList<>();
+        Map<String, Integer> byOptyNumber = new HashMap<>();
+        TreeMap<String, Postings> postings = new TreeMap<>();
+        BitSet deleted = new BitSet();
+
+        void add(Opportunity opportunity) {
+            if (opportunity.getOptyNumber() == null) {
+                return;
+            }
+            remove(opportunity.getOptyNumber());
+            int id = docs.size();
+            docs.add(opportunity);
+            byOptyNumber.put(opportunity.getOptyNumber(), id);
+            for (String field : new String[]{opportunity.getName(), opportunity.getTargetPartyName(),
+                    opportunity.getPrimaryContactPartyName(), opportunity.getDescriptionText()}) {
+                for (String token : tokenize(field)) {
+                    postings.computeIfAbsent(token, t -> new Postings()).add(id);
+                }
+            }
+        }
+
+        void remove(String optyNumber) {
+            Integer previous = byOptyNumber.remove(optyNumber);
+            if (previous != null) {
+                deleted.set(previous);
+            }
+        }
+
+        /**
+         * Rebuilds the index without the deleted documents
+         */
+        void compact() {
+            List<Opportunity> live = new ArrayList<>(byOptyNumber.size());
+            for (int id = deleted.nextClearBit(0); id < docs.size(); id = deleted.nextClearBit(id + 1)) {
+                live.add(docs.get(id));
+            }
+            docs = new ArrayList<>(live.size());
+            byOptyNumber = new HashMap<>();
+            postings = new TreeMap<>();
+            deleted = new BitSet();
+            for (Opportunity opportunity : live) {
+                add(opportunity);
+            }
+            LOGGER.fine("search.compacted", "docs", docs.size());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.example.saas.fn.cloudnativesaas.exceptions.BadRequestException;
+import com.example.saas.fn.cloudnativesaas.exceptions.NotFoundException;
+import com.example.saas.fn.cloudnativesaas.exceptions.ServiceUnavailableException;
+import com.example.saas.fn.cloudnativesaas.exceptions.UnAuthorizedException;
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses identical concurrent reads into one Fusion call. The first caller for a key does the call, callers
+ * arriving while it is in flight wait for and share its result, or its exception.
+ *
+ * Keys must include the credentials of the caller (see SaaSHelper), so that results are never shared between users,
+ * and nothing is kept once the call completes.
+ */
+public class RequestCoalescer {
+
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * A Fusion call, as made by SaaSHelper
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+        T call() throws UnAuthorizedException, NotFoundException, BadRequestException, ServiceUnavailableException, IOException;
+    }
+
+    /**
+     * @param key : Identifies identical requests, eg: credentials, method and full URL
+     * @param timeoutMs : How long a caller waits for a call made by another one
+     * @param call : Makes the call when no identical one is in flight
+     * @return the result of the call, shared with any concurrent identical caller
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, long timeoutMs, Call<T> call)
+            throws UnAuthorizedException, NotFoundException, BadRequestException, ServiceUnavailableException, IOException {
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            LOGGER.fine("fusion.coalesced", "total", coalesced.incrementAndGet());
+            return (T) await(leader, timeoutMs);
+        }
+        try {
+            T result = call.call();
+            mine.complete(result);
+            return result;
+        } catch (UnAuthorizedException | NotFoundException | BadRequestException | ServiceUnavailableException | IOException | RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private static Object await(CompletableFuture<Object> leader, long timeoutMs)
+            throws UnAuthorizedException, NotFoundException, BadRequestException, ServiceUnavailableException, IOException {
+        try {
+            return leader.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new BadRequestException("Timed out waiting for an identical SaaS call after " + timeoutMs + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for an identical SaaS call", e);
+        } catch (ExecutionException e) {
+            // Same exception as the caller that made the call
+            Throwable cause = e.getCause();
+            if (cause instanceof UnAuthorizedException) {
+                throw (UnAuthorizedException) cause;
+            }
+            if (cause instanceof NotFoundException) {
+                throw (NotFoundException) cause;
+            }
+            if (cause instanceof BadRequestException) {
+                throw (BadRequestException) cause;
+            }
+            if (cause instanceof ServiceUnavailableException) {
+                throw (ServiceUnavailableException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.oracle.idcs.oauth.util.EventLog;
+import com.oracle.idcs.oauth.util.OutboundExecutor;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Hedges GETs against Fusion tail latency. A request that has not completed after the configured percentile of recent
+ * latencies is sent a second time on another pooled connection, the first response wins and the other request is
+ * aborted.
+ *
+ * Hedges are paid for from a budget : every request earns budgetPercent/100 of a hedge, so hedges add at most
+ * budgetPercent % extra calls to Fusion, whatever its latency does.
+ */
+public class RequestHedger {
+
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+    // Recent latencies kept for the percentile
+    private static final int WINDOW = 256;
+    // Hedges that can be saved up when Fusion is fast
+    private static final double MAX_BUDGET = 10;
+
+    private final double percentile;
+    private final long minDelayMs;
+    private final double budgetPerRequest;
+    private final long[] latencies = new long[WINDOW];
+    private int next = 0;
+    private int recorded = 0;
+    private double budget = 0;
+    private final ExecutorService executor;
+
+    /**
+     * Sends one request, as SaaSHelper does without hedging. The loser is aborted but may still run to its end, so an
+     * attempt must not change anything outside its result : SaaSHelper only buffers the body, and parses the winner.
+     */
+    @FunctionalInterface
+    public interface Attempt<T> {
+        T send(HttpUriRequest request) throws IOException;
+    }
+
+    /**
+     * @param percentile : eg: 95, requests slower than the p95 of recent requests are hedged
+     * @param minDelayMs : Never hedge before this delay
+     * @param budgetPercent : Maximum extra requests, in % of requests
+     * @param maxConcurrency : Threads available to run hedged requests, when virtual threads are not available
+     */
+    public RequestHedger(double percentile, long minDelayMs, double budgetPercent, int maxConcurrency) {
+        this.percentile = percentile;
+        this.minDelayMs = minDelayMs;
+        this.budgetPerRequest = budgetPercent / 100;
+        this.executor = OutboundExecutor.newExecutor("fusion-hedge", maxConcurrency);
+    }
+
+    /**
+     * Lets requests in flight complete, then releases the threads
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @param requests : Builds a new, identical request each time it is called
+     * @param attempt : Sends a request and reads its response
+     * @return the first response
+     * @throws IOException : if every request sent failed, the first failure
+     */
+    public <T> T execute(Supplier<HttpUriRequest> requests, Attempt<T> attempt) throws IOException {
+        long delay = delayMs();
+        synchronized (this) {
+            budget = Math.min(MAX_BUDGET, budget + budgetPerRequest);
+        }
+        CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+        HttpUriRequest primary = requests.get();
+        long start = System.currentTimeMillis();
+        Future<T> primaryFuture = completion.submit(() -> attempt.send(primary));
+        HttpUriRequest hedge = null;
+        Future<T> hedgeFuture = null;
+        HttpUriRequest winner = null;
+        IOException failure = null;
+        try {
+            Future<T> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null && takeHedge()) {
+                LOGGER.fine("fusion.hedge.sent", "afterMs", delay);
+                hedge = requests.get();
+                HttpUriRequest hedgeRequest = hedge;
+                hedgeFuture = completion.submit(() -> attempt.send(hedgeRequest));
+            }
+            int pending = hedgeFuture == null ? 1 : 2;
+            while (pending > 0) {
+                if (done == null) {
+                    done = completion.take();
+                }
+                pending--;
+                try {
+                    T result = done.get();
+                    winner = done == primaryFuture ? primary : hedge;
+                    // Latency as seen by the caller, hedged or not
+                    record(System.currentTimeMillis() - start);
+                    return result;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+                done = null;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for SaaS", e);
+        } finally {
+            // The loser, if still running
+            if (primary != winner) {
+                primary.abort();
+            }
+            if (hedge != null && hedge != winner) {
+                hedge.abort();
+            }
+        }
+    }
+
+    private synchronized boolean takeHedge() {
+        if (budget < 1) {
+            return false;
+        }
+        budget -= 1;
+        return true;
+    }
+
+    private synchronized void record(long latencyMs) {
+        latencies[next] = latencyMs;
+        next = (next + 1) % WINDOW;
+        recorded = Math.min(recorded + 1, WINDOW);
+    }
+
+    /**
+     * @return the configured percentile of recent latencies, but at least the minimum delay
+     */
+    private synchronized long delayMs() {
+        int size = recorded;
+        if (size < 10) {
+            // Not enough samples yet, do not hedge on guesswork
+            return Long.MAX_VALUE / 2;
+        }
+        long[] sorted = Arrays.copyOf(latencies, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.min(size - 1, Math.ceil(percentile / 100 * size) - 1);
+        return Math.max(minDelayMs, sorted[Math.max(0, index)]);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.fnproject.fn.api.Headers;
+import com.fnproject.fn.api.InputEvent;
+import com.fnproject.fn.api.OutputEvent;
+import com.fnproject.fn.api.httpgateway.HTTPGatewayContext;
+import com.oracle.idcs.oauth.util.EventLog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Negotiates gzip/deflate compression of the function response with the client (via API Gateway).
+ * The compressed bytes are written straight into the Fn output stream so the response is never held twice in memory.
+ */
+public class ResponseCompression {
+
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
+    private static final String ACCEPT_ENCODING_HEADER = "Fn-Http-H-Accept-Encoding";
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+    private static final int BUFFER_SIZE = 8192;
+
+    private ResponseCompression() {
+        throw new IllegalStateException("ResponseCompression is a utility class");
+    }
+
+    /**
+     * Builds the output event for a successful response, compressing it when the client accepts it and the
+     * body is at least minSize bytes long.
+     *
+     * @param rawInput    : Rawinput, used to read the Accept-Encoding header forwarded by the gateway
+     * @param hctx        : HTTPGatewayContext, used to set the Content-Encoding response header
+     * @param body        : Uncompressed response body
+     * @param contentType : Content type of the body
+     * @param minSize     : Smallest body (in bytes) worth compressing
+     * @return : Response to client
+     */
+    public static OutputEvent encode(InputEvent rawInput, HTTPGatewayContext hctx, byte[] body, String contentType, int minSize) {
+        String encoding = negotiate(rawInput.getHeaders().get(ACCEPT_ENCODING_HEADER));
+        hctx.setResponseHeader("Vary", "Accept-Encoding");
+        if (encoding == null || body.length < minSize) {
+            return OutputEvent.fromBytes(body, OutputEvent.Status.Success, contentType);
+        }
+        LOGGER.fine("response.compress", "bytes", body.length, "encoding", encoding);
+        hctx.setResponseHeader("Content-Encoding", encoding);
+        return new CompressedOutputEvent(body, contentType, encoding);
+    }
+
+    /**
+     * Picks the encoding to use from an Accept-Encoding header value, gzip preferred over deflate.
+     * Encodings explicitly refused with q=0 are never picked, not even through *.
+     *
+     * @param acceptEncoding
+     * @return gzip, deflate or null if the client does not accept either
+     */
+    static String negotiate(Optional<String> acceptEncoding) {
+        if (!acceptEncoding.isPresent()) {
+            return null;
+        }
+        Set<String> accepted = new HashSet<>();
+        Set<String> refused = new HashSet<>();
+        for (String token : acceptEncoding.get().split(",")) {
+            String[] parts = token.trim().split(";");
+            String name = parts[0].trim().toLowerCase();
+            if (parts.length > 1 && parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?")) {
+                refused.add(name);
+            } else {
+                accepted.add(name);
+            }
+        }
+        for (String encoding : new String[]{GZIP, DEFLATE}) {
+            // * stands for the encodings not listed, never for one the client refused
+            if (!refused.contains(encoding)
+                    && (accepted.contains(encoding) || (accepted.contains("*") && encoding.equals(GZIP)))) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * OutputEvent that compresses its body while Fn writes it to the response stream
+     */
+    private static class CompressedOutputEvent implements OutputEvent {
+        private final byte[] body;
+        private final String contentType;
+        private final String encoding;
+
+        CompressedOutputEvent(byte[] body, String contentType, String encoding) {
+            this.body = body;
+            this.contentType = contentType;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public Status getStatus() {
+            return Status.Success;
+        }
+
+        @Override
+        public Optional<String> getContentType() {
+            return Optional.of(contentType);
+        }
+
+        @Override
+        public Headers getHeaders() {
+            return Headers.emptyHeaders();
+        }
+
+        @Override
+        public void writeToOutput(OutputStream out) throws IOException {
+            DeflaterOutputStream compressed = encoding.equals(GZIP)
+                    ? new GZIPOutputStream(out, BUFFER_SIZE)
+                    : new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION), BUFFER_SIZE);
+            compressed.write(body);
+            // finish() rather than close(), Fn owns the underlying stream
+            compressed.finish();
+            compressed.flush();
+        }
+    }
+}
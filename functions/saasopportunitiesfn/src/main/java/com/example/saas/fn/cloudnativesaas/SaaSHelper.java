@@ -6,47 +6,181 @@ Licensed under the Universal Permissive License v 1.0 as shown at https://oss.or
 package com.example.saas.fn.cloudnativesaas;
 
 
+import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 
 import com.example.saas.fn.cloudnativesaas.exceptions.BadRequestException;
 import com.example.saas.fn.cloudnativesaas.exceptions.UnAuthorizedException;
 import com.example.saas.fn.cloudnativesaas.exceptions.NotFoundException;
+import com.example.saas.fn.cloudnativesaas.exceptions.ServiceUnavailableException;
+import com.example.saas.fn.cloudnativesaas.model.Opportunity;
+import com.example.saas.fn.cloudnativesaas.model.OpportunityJson;
+import com.example.saas.fn.cloudnativesaas.model.OpportunityList;
+import com.example.saas.fn.cloudnativesaas.model.OpportunitySummary;
+import com.example.saas.fn.cloudnativesaas.model.SummaryPage;
+import com.example.saas.fn.cloudnativesaas.model.UpdatedOpportunity;
+import com.oracle.idcs.oauth.util.Deadline;
+import com.oracle.idcs.oauth.util.EventLog;
+import com.oracle.idcs.oauth.util.TimedInputStream;
 
 import org.apache.http.util.EntityUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import static org.apache.http.HttpStatus.*;
 
 public class SaaSHelper {
     private static String REST_FRAMEWORK_CONTENT_TYPE ="REST-Framework-Version";
     private static String BEARER="Bearer ";
+    // Ask Fusion for a gzip payload, the http client transparently inflates it when reading the entity
+    private static String GZIP="gzip";
 
-    private static final Logger LOGGER = Logger.getLogger("CLOUDNATIVESAAS");
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
     public static final String OPTY_URI = "/salesApi/resources/latest/opportunities";
     // Provide a default query so that Fusion saas doesnt return the entire Opportunity payload (which is rather large).
     // Use for both single and multiple queries
     private static final String DEFAULT_QUERY_PARAMS = "?onlyData=true&fields=OptyNumber,TargetPartyName,Name,DescriptionText,OptyNumber,StatusCode,PrimaryContactPartyName,PrimaryContactFormattedPhoneNumber,PrimaryContactEmailAddress";
     // Default query is to only query back WON,LOST and OPEN optys
     private static final String DEFAULT_QUERY_PARAMS_FULL = "&q=StatusCode%20in%20('WON','LOST','OPEN')";
+    public static final String DEFAULT_STATUS_QUERY = "StatusCode in ('WON','LOST','OPEN')";
+    // Same fields plus LastUpdateDate, used by the paged loads of the opportunity mirror
+    private static final String SYNC_QUERY_PARAMS = DEFAULT_QUERY_PARAMS + ",LastUpdateDate";
     private static String UNAUTH_EXCEPTION_MSG="SaaS Returned UnAuthorized Exception";
     private static String NOTFOUND_EXCEPTION_MSG="SaaS Returned Not Found Exception";
-    private static String SAAS_GENERIC_ERROR="Error calling SaaS, got http code {} {}";
+    private static String SAAS_GENERIC_ERROR="Error calling SaaS, got http code %d %s";
+    private static String SAAS_TIMEOUT_ERROR="Timed out calling SaaS after %d ms";
+    private static String SAAS_UNAVAILABLE_ERROR="SaaS is currently unavailable, not calling it for another %d ms";
+    private static String SAAS_OVERLOADED_ERROR="Too many concurrent %s calls to SaaS, try again later";
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    // StatusCode values and Field[:asc|:desc] sort orders
+    private static final Pattern FUSION_NAME = Pattern.compile("[A-Za-z0-9_]+(:(asc|desc))?");
+
+    // One pooled client per container so keep-alive connections to Fusion are reused between invocations
+    private static FusionClientConfig config = FusionClientConfig.defaults();
+    private static CloseableHttpClient client = buildClient(config);
+    private static CircuitBreaker circuitBreaker = buildCircuitBreaker(config);
+    // Bulkheads, a slow PATCH backlog cannot starve reads and vice versa
+    private static AdaptiveLimiter readLimiter = buildReadLimiter(config);
+    private static AdaptiveLimiter writeLimiter = buildWriteLimiter(config);
+    // OptyIds Fusion recently answered 404 for, per user
+    private static NegativeCache notFoundCache = buildNotFoundCache(config);
+    // Identical GETs in flight, keyed by credentials and URL
+    private static final RequestCoalescer coalescer = new RequestCoalescer();
+    // Only set when fusion_hedge_enabled=true
+    private static RequestHedger hedger = buildHedger(config);
+    // Only set when fusion_http2_enabled=true, requests then go through the JDK client instead of the Apache one
+    private static Http2Transport http2 = buildHttp2(config);
+
+    /**
+     * Reads a successful (200) response body straight from the http stream. Readers of idempotent requests must only
+     * build their result : it may be shared with coalesced callers.
+     */
+    @FunctionalInterface
+    private interface ResponseReader<T> {
+        T read(InputStream in) throws IOException;
+    }
 
     private SaaSHelper()
     {
         throw new IllegalStateException("SaaSHelper is a utility class");
     }
 
+    /**
+     * Applies the function configuration (timeouts, retries, circuit breaker, concurrency limits) to all subsequent Fusion calls
+     *
+     * @param fusionClientConfig
+     */
+    public static synchronized void init(FusionClientConfig fusionClientConfig) {
+        CloseableHttpClient previous = client;
+        RequestHedger previousHedger = hedger;
+        config = fusionClientConfig;
+        client = buildClient(fusionClientConfig);
+        circuitBreaker = buildCircuitBreaker(fusionClientConfig);
+        readLimiter = buildReadLimiter(fusionClientConfig);
+        writeLimiter = buildWriteLimiter(fusionClientConfig);
+        notFoundCache = buildNotFoundCache(fusionClientConfig);
+        hedger = buildHedger(fusionClientConfig);
+        http2 = buildHttp2(fusionClientConfig);
+        if (previousHedger != null) {
+            previousHedger.shutdown();
+        }
+        try {
+            previous.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "fusion.client.close.failed", e);
+        }
+    }
+
+    private static CloseableHttpClient buildClient(FusionClientConfig fusionClientConfig) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(fusionClientConfig.CONNECT_TIMEOUT_MS)
+                .setConnectionRequestTimeout(fusionClientConfig.CONNECT_TIMEOUT_MS)
+                .build();
+        return HttpClients.custom()
+                .setDefaultRequestConfig(requestConfig)
+                .disableAutomaticRetries()      // Retries are handled in execute()
+                // Enough pooled connections for both bulkheads at their maximum, the limiters do the throttling
+                .setMaxConnPerRoute(fusionClientConfig.READ_LIMIT_MAX + fusionClientConfig.WRITE_LIMIT_MAX)
+                .setMaxConnTotal(fusionClientConfig.READ_LIMIT_MAX + fusionClientConfig.WRITE_LIMIT_MAX)
+                .build();
+    }
+
+    private static Http2Transport buildHttp2(FusionClientConfig fusionClientConfig) {
+        return fusionClientConfig.HTTP2_ENABLED ? new Http2Transport(fusionClientConfig.CONNECT_TIMEOUT_MS) : null;
+    }
+
+    private static CircuitBreaker buildCircuitBreaker(FusionClientConfig fusionClientConfig) {
+        return new CircuitBreaker("fusion", fusionClientConfig.BREAKER_FAILURE_THRESHOLD, fusionClientConfig.BREAKER_OPEN_MS);
+    }
+
+    private static AdaptiveLimiter buildReadLimiter(FusionClientConfig fusionClientConfig) {
+        return new AdaptiveLimiter("read", fusionClientConfig.READ_LIMIT_INITIAL, fusionClientConfig.LIMIT_MIN,
+                fusionClientConfig.READ_LIMIT_MAX, fusionClientConfig.LIMIT_LATENCY_TOLERANCE);
+    }
+
+    private static AdaptiveLimiter buildWriteLimiter(FusionClientConfig fusionClientConfig) {
+        return new AdaptiveLimiter("write", fusionClientConfig.WRITE_LIMIT_INITIAL, fusionClientConfig.LIMIT_MIN,
+                fusionClientConfig.WRITE_LIMIT_MAX, fusionClientConfig.LIMIT_LATENCY_TOLERANCE);
+    }
+
+    private static NegativeCache buildNotFoundCache(FusionClientConfig fusionClientConfig) {
+        return new NegativeCache(fusionClientConfig.NOT_FOUND_CACHE_TTL_MS, fusionClientConfig.NOT_FOUND_CACHE_MAX_ENTRIES);
+    }
+
+    private static RequestHedger buildHedger(FusionClientConfig fusionClientConfig) {
+        if (!fusionClientConfig.HEDGE_ENABLED) {
+            return null;
+        }
+        // Room for a primary and a hedge for every read the limiter lets through
+        return new RequestHedger(fusionClientConfig.HEDGE_PERCENTILE, fusionClientConfig.HEDGE_MIN_DELAY_MS,
+                fusionClientConfig.HEDGE_BUDGET_PERCENT, fusionClientConfig.READ_LIMIT_MAX * 2);
+    }
+
     /**
      * Queries opportunities (plural)
      *
@@ -59,56 +193,135 @@ public class SaaSHelper {
      * @throws IOException
      * @throws InterruptedException
      */
-    public static String queryOptys(String jwtToken, String fusionURL)
-            throws UnAuthorizedException, NotFoundException, IOException, BadRequestException {
-
-
-        LOGGER.info("Entered queryOptys_httpClient with fusionURL=" + fusionURL);
-        fusionURL = fusionURL + OPTY_URI + DEFAULT_QUERY_PARAMS + DEFAULT_QUERY_PARAMS_FULL + "&limit=10";
+    public static OpportunityList queryOptys(String jwtToken, String fusionURL)
+            throws UnAuthorizedException, NotFoundException, IOException, BadRequestException, ServiceUnavailableException {
+        return queryOptys(jwtToken, fusionURL, Collections.emptySet(), null, 0, 10);
+    }
 
-        String responseJson = "";
-        int status = 0;
+    /**
+     * Queries one page of opportunities, with the same parameters as the opportunity mirror answers
+     *
+     * @param jwtToken
+     * @param fusionURL
+     * @param statuses : StatusCodes to return, empty for WON, LOST and OPEN
+     * @param orderBy : Field[:asc|:desc], null for the Fusion order
+     * @param offset
+     * @param limit
+     * @return
+     * @throws BadRequestException : A status or the orderBy is not a plain Fusion name
+     */
+    public static OpportunityList queryOptys(String jwtToken, String fusionURL, Set<String> statuses, String orderBy, int offset, int limit)
+            throws UnAuthorizedException, NotFoundException, IOException, BadRequestException, ServiceUnavailableException {
+
+        LOGGER.info("fusion.optys.query", "fusionURL", fusionURL, "statuses", statuses, "orderBy", orderBy, "offset", offset, "limit", limit);
+        String query = DEFAULT_QUERY_PARAMS_FULL;
+        if (!statuses.isEmpty()) {
+            for (String status : statuses) {
+                checkName(status, "status");
+            }
+            query = "&q=" + encode("StatusCode in ('" + String.join("','", new TreeSet<>(statuses)) + "')");
+        }
+        if (orderBy != null && !orderBy.isEmpty()) {
+            checkName(orderBy, "orderBy");
+            query = query + "&orderBy=" + encode(orderBy);
+        }
+        if (offset > 0) {
+            query = query + "&offset=" + offset;
+        }
+        fusionURL = fusionURL + OPTY_URI + DEFAULT_QUERY_PARAMS + query + "&limit=" + limit;
 
         // Make REST Call to SaaS, ensuring we're using REST-Framework-Version 6
-        HttpClient client = HttpClients.custom().build();
-        HttpUriRequest request = RequestBuilder.get().setUri(fusionURL).
+        RequestBuilder request = RequestBuilder.get().setUri(fusionURL).
                 setHeader(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.toString()).
                 setHeader(REST_FRAMEWORK_CONTENT_TYPE, "6").
-                setHeader(HttpHeaders.AUTHORIZATION, BEARER + jwtToken).
-                build();
-        HttpResponse response = client.execute(request);
-        responseJson = EntityUtils.toString(response.getEntity());
-        status = response.getStatusLine().getStatusCode();
+                setHeader(HttpHeaders.ACCEPT_ENCODING, GZIP).
+                setHeader(HttpHeaders.AUTHORIZATION, BEARER + jwtToken);
+        OpportunityList opportunities = execute(request, config.QUERY_TIMEOUT_MS, true, OpportunityJson::readList);
+        LOGGER.finest("fusion.optys.returned", "count", opportunities.getCount());
+        return (opportunities);
 
-        LOGGER.info("Response Status from REST SaaS Call "+status);
-        if (status == SC_UNAUTHORIZED) {
 
-            LOGGER.log(Level.INFO,UNAUTH_EXCEPTION_MSG);
-            throw new UnAuthorizedException(UNAUTH_EXCEPTION_MSG);
+    }
+
+    /**
+     * Query parameters are passed on in the Fusion q and orderBy expressions, only names are let through
+     */
+    private static void checkName(String value, String parameter) throws BadRequestException {
+        if (!FUSION_NAME.matcher(value).matches()) {
+            throw new BadRequestException("Query parameter " + parameter + " is not valid");
         }
+    }
 
-        if (status == SC_NOT_FOUND) {
 
-            LOGGER.info(NOTFOUND_EXCEPTION_MSG);
-            throw new NotFoundException(NOTFOUND_EXCEPTION_MSG);
-        }
-        // Any other error message gets thrown with any response text
-        if (status != SC_OK) {
-            String errorMessage = String.format(SAAS_GENERIC_ERROR, status, responseJson);
-            LOGGER.info(errorMessage);
-            throw new BadRequestException(errorMessage);
-        }
-        LOGGER.finest("JSON Response from SaaS " + responseJson);
-        return (responseJson);
+    /**
+     * Queries one page of opportunities, including LastUpdateDate. Used to load and delta-sync the opportunity mirror.
+     *
+     * @param jwtToken
+     * @param fusionURL
+     * @param query : Fusion q expression, eg: LastUpdateDate >= '2020-01-01T00:00:00+00:00'
+     * @param orderBy : Fusion orderBy expression, eg: LastUpdateDate:asc
+     * @param offset
+     * @param limit
+     * @return
+     */
+    public static OpportunityList queryOptysPage(String jwtToken, String fusionURL, String query, String orderBy, int offset, int limit)
+            throws UnAuthorizedException, NotFoundException, IOException, BadRequestException, ServiceUnavailableException {
+
+        LOGGER.fine("fusion.optys.page", "query", query, "offset", offset, "limit", limit);
+        fusionURL = fusionURL + OPTY_URI + SYNC_QUERY_PARAMS + "&q=" + encode(query) + "&orderBy=" + encode(orderBy)
+                + "&offset=" + offset + "&limit=" + limit;
 
+        RequestBuilder request = RequestBuilder.get().setUri(fusionURL).
+                setHeader(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.toString()).
+                setHeader(REST_FRAMEWORK_CONTENT_TYPE, "6").
+                setHeader(HttpHeaders.ACCEPT_ENCODING, GZIP).
+                setHeader(HttpHeaders.AUTHORIZATION, BEARER + jwtToken);
+        return execute(request, config.QUERY_TIMEOUT_MS, true, OpportunityJson::readList);
+    }
 
+    /**
+     * Streams through every WON, LOST and OPEN opportunity page by page, keeping only running counts and revenue
+     * totals per group. Each page only asks Fusion for the groupBy fields and Revenue.
+     *
+     * @param jwtToken
+     * @param fusionURL
+     * @param groupBy : Fusion fields to group by, eg: StatusCode
+     * @param pageSize : Opportunities per Fusion page
+     * @return
+     */
+    public static OpportunitySummary summarizeOptys(String jwtToken, String fusionURL, List<String> groupBy, int pageSize)
+            throws UnAuthorizedException, NotFoundException, IOException, BadRequestException, ServiceUnavailableException {
+
+        LOGGER.info("fusion.optys.summarize", "fusionURL", fusionURL, "groupBy", groupBy);
+        long start = System.currentTimeMillis();
+        String pageURL = fusionURL + OPTY_URI + "?onlyData=true&fields=" + encode(String.join(",", groupBy) + ",Revenue")
+                + "&q=" + encode(DEFAULT_STATUS_QUERY) + "&orderBy=OptyNumber:asc&limit=" + pageSize + "&offset=";
+        OpportunitySummary summary = new OpportunitySummary(groupBy);
+        boolean hasMore = true;
+        for (int offset = 0; hasMore; offset += pageSize) {
+            RequestBuilder request = RequestBuilder.get().setUri(pageURL + offset).
+                    setHeader(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.toString()).
+                    setHeader(REST_FRAMEWORK_CONTENT_TYPE, "6").
+                    setHeader(HttpHeaders.ACCEPT_ENCODING, GZIP).
+                    setHeader(HttpHeaders.AUTHORIZATION, BEARER + jwtToken);
+            // Each call gets its own page, a coalesced or hedged page can then be shared or dropped safely
+            SummaryPage page = execute(request, config.QUERY_TIMEOUT_MS, true, in -> OpportunityJson.summarizePage(in, groupBy));
+            summary.merge(page.getSummary());
+            hasMore = page.isHasMore();
+        }
+        LOGGER.info("fusion.optys.summarized", "count", summary.getCount(), "ms", System.currentTimeMillis() - start);
+        return summary;
     }
 
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
 
     /**
      * queries single opportunity
      * <p>
      *
+     * @param principal : User the token belongs to, scopes the not found cache
      * @param jwtToken
      * @param fusionURL
      * @param optyId
@@ -117,97 +330,404 @@ public class SaaSHelper {
      * @throws UnAuthorizedException
      * @throws NotFoundException
      */
-    public static String querySingleOpty(String jwtToken, String fusionURL, String optyId) throws NotFoundException, IOException, BadRequestException, UnAuthorizedException {
+    public static Opportunity querySingleOpty(String principal, String jwtToken, String fusionURL, String optyId) throws NotFoundException, IOException, BadRequestException, UnAuthorizedException, ServiceUnavailableException {
+        return querySingleOpty(principal, jwtToken, fusionURL, optyId, Collections.emptyMap());
+    }
 
-        LOGGER.info("Entered querySingleOpty opty with fusionURL=" + fusionURL + " optyid=" + optyId);
+    /**
+     * queries single opportunity along with some of its child collections, expanded by Fusion in the same call
+     *
+     * @param principal : User the token belongs to, scopes the not found cache
+     * @param jwtToken
+     * @param fusionURL
+     * @param optyId
+     * @param expand : Fusion child collection name (eg: ChildRevenue) to the comma separated fields to return for it
+     * @return
+     */
+    public static Opportunity querySingleOpty(String principal, String jwtToken, String fusionURL, String optyId, Map<String, String> expand) throws NotFoundException, IOException, BadRequestException, UnAuthorizedException, ServiceUnavailableException {
+        return querySingleOpty(principal, jwtToken, fusionURL, optyId, expand, false);
+    }
+
+    /**
+     * queries single opportunity for a background prefetch : a single attempt that neither feeds the circuit breaker
+     * nor the read limiter, which are there for the requests of the users
+     *
+     * @param principal : User the token belongs to, scopes the not found cache
+     * @param jwtToken
+     * @param fusionURL
+     * @param optyId
+     * @return
+     */
+    public static Opportunity prefetchSingleOpty(String principal, String jwtToken, String fusionURL, String optyId) throws NotFoundException, IOException, BadRequestException, UnAuthorizedException, ServiceUnavailableException {
+        return querySingleOpty(principal, jwtToken, fusionURL, optyId, Collections.emptyMap(), true);
+    }
+
+    private static Opportunity querySingleOpty(String principal, String jwtToken, String fusionURL, String optyId, Map<String, String> expand, boolean background) throws NotFoundException, IOException, BadRequestException, UnAuthorizedException, ServiceUnavailableException {
+
+        LOGGER.info("fusion.opty.query", "fusionURL", fusionURL, "optyId", optyId, "expand", expand.keySet());
+        if (notFoundCache.isNotFound(principal, optyId)) {
+            LOGGER.info("fusion.opty.notfound.cached", "optyId", optyId);
+            throw new NotFoundException(NOTFOUND_EXCEPTION_MSG);
+        }
 
         fusionURL = fusionURL + OPTY_URI + "/" + optyId + DEFAULT_QUERY_PARAMS;
+        if (!expand.isEmpty()) {
+            // fields=<opportunity fields>;<Child>:<child fields>;... projects every child in the one call
+            StringBuilder childFields = new StringBuilder();
+            for (Map.Entry<String, String> child : expand.entrySet()) {
+                childFields.append(';').append(child.getKey()).append(':').append(child.getValue());
+            }
+            fusionURL = fusionURL + encode(childFields.toString()) + "&expand=" + encode(String.join(",", expand.keySet()));
+        }
         // Query single opty
-        LOGGER.info("Creating client with URL " + fusionURL);
+
 
         // Make REST Call to SaaS, ensuring we're using REST-Framework-Version 6
-        String responseJson = "";
-        int status = 0;
-        HttpClient client = HttpClients.custom().build();
-        HttpUriRequest request = RequestBuilder.get().setUri(fusionURL).
+        RequestBuilder request = RequestBuilder.get().setUri(fusionURL).
                 setHeader(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.toString()).
                 setHeader(REST_FRAMEWORK_CONTENT_TYPE, "6").
-                setHeader(HttpHeaders.AUTHORIZATION, BEARER + jwtToken).
-                build();
-        HttpResponse response = client.execute(request);
-        responseJson = EntityUtils.toString(response.getEntity());
-        status = response.getStatusLine().getStatusCode();
-
-
-        LOGGER.info("Response Status from REST Call " + status);
-        if (status == SC_UNAUTHORIZED) {
-
-            LOGGER.severe(UNAUTH_EXCEPTION_MSG);
-            throw new UnAuthorizedException(UNAUTH_EXCEPTION_MSG);
-        }
-        if (status == SC_NOT_FOUND) {
-            LOGGER.severe(NOTFOUND_EXCEPTION_MSG);
-            throw new NotFoundException(NOTFOUND_EXCEPTION_MSG);
-        }
-        // Any other error message gets thrown with any response text
-        if (status != SC_OK) {
-            String errorMessage = String.format(SAAS_GENERIC_ERROR, status, responseJson);
-            LOGGER.severe(errorMessage);
-            throw new BadRequestException(errorMessage);
+                setHeader(HttpHeaders.ACCEPT_ENCODING, GZIP).
+                setHeader(HttpHeaders.AUTHORIZATION, BEARER + jwtToken);
+        Opportunity opportunity;
+        try {
+            opportunity = background
+                    ? executeInBackground(request, config.SINGLE_QUERY_TIMEOUT_MS, OpportunityJson::readSingle)
+                    : execute(request, config.SINGLE_QUERY_TIMEOUT_MS, true, OpportunityJson::readSingle);
+        } catch (NotFoundException e) {
+            notFoundCache.putNotFound(principal, optyId);
+            throw e;
         }
-        LOGGER.fine("Response from SaaS " + responseJson);
-        return (responseJson);
+        LOGGER.fine("fusion.opty.returned", "optyNumber", opportunity.getOptyNumber());
+        return (opportunity);
     }
 
     /**
 
      *
+     * @param principal : User the token belongs to, scopes the not found cache
      * @param jwtToken
      * @param fusionURL
      * @param optyId
      * @param optyUpdatePayload
-     * @return
+     * @return the updated record as Fusion returned it, and its compact form
      */
-    public static String updateOpty(String jwtToken, String fusionURL, String optyId, String optyUpdatePayload) throws UnAuthorizedException, NotFoundException, IOException, BadRequestException {
+    public static UpdatedOpportunity updateOpty(String principal, String jwtToken, String fusionURL, String optyId, String optyUpdatePayload) throws UnAuthorizedException, NotFoundException, IOException, BadRequestException, ServiceUnavailableException {
 
-        LOGGER.info("Entered updateOpty with fusionURL=" + fusionURL + " OptyId=" + optyId + " Update=" + optyUpdatePayload);
+        LOGGER.info("fusion.opty.update", "fusionURL", fusionURL, "optyId", optyId);
+        LOGGER.fine("fusion.opty.update.payload", "payload", optyUpdatePayload);
         fusionURL = fusionURL + OPTY_URI + "/" + optyId;
         // Call Fusion SalesCloud PATCH Opportunities
-        LOGGER.info("Creating  client with URL " + fusionURL);
+
 
 
         // Make REST Call to SaaS, ensuring we're using REST-Framework-Version 6
-        String responseJson = "";
-        int status = 0;
-        HttpClient client = HttpClients.custom().build();
-        HttpUriRequest request = RequestBuilder.patch().setUri(fusionURL).
+        RequestBuilder request = RequestBuilder.patch().setUri(fusionURL).
                 setHeader(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.toString()).
                 setHeader(REST_FRAMEWORK_CONTENT_TYPE, "6").
                 setHeader(HttpHeaders.AUTHORIZATION, BEARER + jwtToken).
-                setEntity(new StringEntity(optyUpdatePayload, ContentType.APPLICATION_JSON)).
-                build();
-        HttpResponse response = client.execute(request);
-        responseJson = EntityUtils.toString(response.getEntity());
-        status = response.getStatusLine().getStatusCode();
+                setEntity(new StringEntity(optyUpdatePayload, ContentType.APPLICATION_JSON));
+        // PATCH is not idempotent, it is never retried
+        // Fusion answers with the whole updated record, returned to the caller as is
+        UpdatedOpportunity updated = execute(request, config.UPDATE_TIMEOUT_MS, false, OpportunityJson::readUpdated);
+        // The opportunity exists after all, forget any cached 404
+        notFoundCache.invalidate(principal, optyId);
+        LOGGER.fine("fusion.opty.updated", "optyNumber", updated.getOpportunity().getOptyNumber());
+        return (updated);
+    }
+
+    /**
+     * Executes a request against Fusion within timeoutMs.
+     * Idempotent requests are retried on 429/502/503/504 and I/O errors with jittered exponential backoff,
+     * honouring any Retry-After header. Slow GETs may be hedged (see RequestHedger). Every call goes through the circuit breaker, which fails fast once
+     * Fusion keeps failing, and through the read or write concurrency limiter.
+     * A GET identical to one already in flight for the same credentials waits for and shares its outcome instead.
+     *
+     * @param requestBuilder : Request to execute
+     * @param timeoutMs : Overall deadline for the operation, retries included
+     * @param idempotent : true if the request may be retried
+     * @param reader : Parses the response body when the status is 200
+     * @return : Parsed response body
+     * @throws UnAuthorizedException
+     * @throws NotFoundException
+     * @throws BadRequestException : Any other status, timeouts and open circuit
+     * @throws ServiceUnavailableException : Too many calls already in flight
+     * @throws IOException
+     */
+    private static <T> T execute(RequestBuilder requestBuilder, int timeoutMs, boolean idempotent, ResponseReader<T> reader)
+            throws UnAuthorizedException, NotFoundException, BadRequestException, ServiceUnavailableException, IOException {
+        if (idempotent && config.COALESCE_READS) {
+            // The bearer token is part of the key, so a result is only ever shared with the same user
+            Header authorization = requestBuilder.getFirstHeader(HttpHeaders.AUTHORIZATION);
+            String key = (authorization == null ? "" : authorization.getValue()) + " "
+                    + requestBuilder.getMethod() + " " + requestBuilder.getUri();
+            return coalescer.execute(key, Deadline.current().timeoutMs(timeoutMs, "calling SaaS"),
+                    () -> executeLimited(requestBuilder, timeoutMs, idempotent, reader));
+        }
+        return executeLimited(requestBuilder, timeoutMs, idempotent, reader);
+    }
+
+    /**
+     * Executes a background request once, within timeoutMs and the deadline of the thread. It is not sent while the
+     * circuit breaker is open, and its outcome and latency are not recorded : a call stalled in a container frozen
+     * between invocations says nothing about Fusion.
+     */
+    private static <T> T executeInBackground(RequestBuilder requestBuilder, int timeoutMs, ResponseReader<T> reader)
+            throws UnAuthorizedException, NotFoundException, BadRequestException, IOException {
+        if (circuitBreaker.remainingOpenMs() > 0) {
+            throw new BadRequestException(String.format(SAAS_UNAVAILABLE_ERROR, circuitBreaker.remainingOpenMs()));
+        }
+        int remaining = Deadline.current().timeoutMs(timeoutMs, "calling SaaS");
+        requestBuilder.setConfig(RequestConfig.custom()
+                .setConnectTimeout(Math.min(config.CONNECT_TIMEOUT_MS, remaining))
+                .setConnectionRequestTimeout(Math.min(config.CONNECT_TIMEOUT_MS, remaining))
+                .setSocketTimeout(remaining)
+                .build());
+        FusionResponse<T> response = send(requestBuilder.build(), reader);
+        checkStatus(response.status, response.errorBody);
+        return response.result;
+    }
 
+    private static <T> T executeLimited(RequestBuilder requestBuilder, int timeoutMs, boolean idempotent, ResponseReader<T> reader)
+            throws UnAuthorizedException, NotFoundException, BadRequestException, ServiceUnavailableException, IOException {
+        AdaptiveLimiter limiter = idempotent ? readLimiter : writeLimiter;
+        if (!limiter.tryAcquire()) {
+            throw new ServiceUnavailableException(String.format(SAAS_OVERLOADED_ERROR, idempotent ? "read" : "write"),
+                    config.LIMIT_RETRY_AFTER_SECONDS);
+        }
+        long start = System.currentTimeMillis();
+        boolean dropped = true;
+        try {
+            T result = executeWithRetries(requestBuilder, timeoutMs, idempotent, reader);
+            dropped = false;
+            return result;
+        } catch (UnAuthorizedException | NotFoundException e) {
+            // Fusion answered, it is not overloaded
+            dropped = false;
+            throw e;
+        } finally {
+            limiter.release(System.currentTimeMillis() - start, dropped);
+        }
+    }
+
+    private static <T> T executeWithRetries(RequestBuilder requestBuilder, int timeoutMs, boolean idempotent, ResponseReader<T> reader)
+            throws UnAuthorizedException, NotFoundException, BadRequestException, IOException {
+        // Never past the deadline of the invocation
+        Deadline invocation = Deadline.current();
+        invocation.check("calling SaaS");
+        long deadline = System.currentTimeMillis() + Math.min(timeoutMs, invocation.remainingMs());
+        int maxAttempts = idempotent ? config.MAX_RETRIES + 1 : 1;
+
+        for (int attempt = 1; ; attempt++) {
+            // Before the breaker, a half open breaker must not hand its trial to a call that cannot be made
+            int remaining = (int) (deadline - System.currentTimeMillis());
+            if (remaining <= 0) {
+                invocation.check("calling SaaS again");
+                throw new BadRequestException(String.format(SAAS_TIMEOUT_ERROR, timeoutMs));
+            }
+            if (!circuitBreaker.allowRequest()) {
+                String errorMessage = String.format(SAAS_UNAVAILABLE_ERROR, circuitBreaker.remainingOpenMs());
+                LOGGER.severe("fusion.circuit.open", "remainingMs", circuitBreaker.remainingOpenMs());
+                throw new BadRequestException(errorMessage);
+            }
+            boolean recorded = false;
+            try {
+                requestBuilder.setConfig(RequestConfig.custom()
+                        .setConnectTimeout(Math.min(config.CONNECT_TIMEOUT_MS, remaining))
+                        .setConnectionRequestTimeout(Math.min(config.CONNECT_TIMEOUT_MS, remaining))
+                        .setSocketTimeout(remaining)
+                        .build());
+
+                FusionResponse<T> response;
+                try {
+                    if (idempotent && hedger != null) {
+                        // A second identical request is sent if this one is slow, the first response wins. Both only
+                        // buffer their body, the reader then runs once, on the response that won
+                        FusionResponse<byte[]> buffered = hedger.execute(requestBuilder::build,
+                                request -> send(request, InputStream::readAllBytes));
+                        response = parse(buffered, reader);
+                    } else {
+                        response = send(requestBuilder.build(), reader);
+                    }
+                } catch (SocketTimeoutException | ConnectTimeoutException | HttpTimeoutException e) {
+                    circuitBreaker.recordFailure();
+                    recorded = true;
+                    LOGGER.severe("fusion.timeout", "attempt", attempt, "error", e.getLocalizedMessage());
+                    if (attempt >= maxAttempts || !backoff(attempt, -1, deadline)) {
+                        // A 504 if the invocation ran out of time rather than the call
+                        invocation.check("waiting for SaaS");
+                        throw new BadRequestException(String.format(SAAS_TIMEOUT_ERROR, timeoutMs));
+                    }
+                    continue;
+                } catch (IOException e) {
+                    circuitBreaker.recordFailure();
+                    recorded = true;
+                    LOGGER.severe("fusion.ioerror", "attempt", attempt, "error", e.getLocalizedMessage());
+                    if (attempt >= maxAttempts || !backoff(attempt, -1, deadline)) {
+                        throw e;
+                    }
+                    continue;
+                }
+                int status = response.status;
+
+                LOGGER.info("fusion.response", "status", status, "attempt", attempt);
+                if (isRetryable(status)) {
+                    circuitBreaker.recordFailure();
+                    recorded = true;
+                    if (attempt < maxAttempts && backoff(attempt, response.retryAfterMs, deadline)) {
+                        LOGGER.info("fusion.retry", "status", status, "attempt", attempt);
+                        continue;
+                    }
+                } else if (status >= SC_INTERNAL_SERVER_ERROR) {
+                    circuitBreaker.recordFailure();
+                    recorded = true;
+                } else {
+                    circuitBreaker.recordSuccess();
+                    recorded = true;
+                }
+                checkStatus(status, response.errorBody);
+                return response.result;
+            } finally {
+                if (!recorded) {
+                    // Ended without an outcome (unexpected error), the trial of a half open breaker goes back
+                    circuitBreaker.abandon();
+                }
+            }
+        }
+    }
+
+    /**
+     * Status and body of one http exchange with Fusion
+     */
+    private static final class FusionResponse<T> {
+        int status;
+        T result;
+        String errorBody = "";
+        long retryAfterMs = -1;
+    }
+
+    /**
+     * @return the response of a hedged request, its buffered 200 body read with the reader
+     */
+    private static <T> FusionResponse<T> parse(FusionResponse<byte[]> buffered, ResponseReader<T> reader) throws IOException {
+        FusionResponse<T> fusionResponse = new FusionResponse<>();
+        fusionResponse.status = buffered.status;
+        fusionResponse.errorBody = buffered.errorBody;
+        fusionResponse.retryAfterMs = buffered.retryAfterMs;
+        if (buffered.result != null) {
+            fusionResponse.result = reader.read(new ByteArrayInputStream(buffered.result));
+        }
+        return fusionResponse;
+    }
+
+    /**
+     * Sends one request and reads its response, the body with the reader on 200, as a String otherwise. The socket
+     * timeout of the request bounds the whole exchange, body included.
+     */
+    private static <T> FusionResponse<T> send(HttpUriRequest request, ResponseReader<T> reader) throws IOException {
+        FusionResponse<T> fusionResponse = new FusionResponse<>();
+        long start = System.currentTimeMillis();
+        int timeoutMs = Http2Transport.responseTimeoutMs(request);
+        Http2Transport transport = http2;
+        if (transport != null) {
+            try (Http2Transport.Exchange exchange = transport.send(request)) {
+                fusionResponse.status = exchange.getStatus();
+                if (fusionResponse.status == SC_OK) {
+                    fusionResponse.result = reader.read(exchange.getBody());
+                } else {
+                    fusionResponse.errorBody = new String(exchange.getBody().readAllBytes(), StandardCharsets.UTF_8);
+                }
+                fusionResponse.retryAfterMs = parseRetryAfter(exchange.getHeader(HttpHeaders.RETRY_AFTER));
+            }
+            return fusionResponse;
+        }
+        try (CloseableHttpResponse response = client.execute(request)) {
+            fusionResponse.status = response.getStatusLine().getStatusCode();
+            if (fusionResponse.status == SC_OK) {
+                // The socket timeout only bounds each read, aborting the request unblocks a body trickling in
+                InputStream content = response.getEntity().getContent();
+                try (InputStream in = timeoutMs > 0
+                        ? new TimedInputStream(content, Math.max(1, timeoutMs - (System.currentTimeMillis() - start)), request::abort)
+                        : content) {
+                    fusionResponse.result = reader.read(in);
+                }
+            } else {
+                // Error payloads are small, keep them for the error message
+                fusionResponse.errorBody = EntityUtils.toString(response.getEntity());
+            }
+            Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+            fusionResponse.retryAfterMs = parseRetryAfter(retryAfter == null ? null : retryAfter.getValue());
+        }
+        return fusionResponse;
+    }
 
-        LOGGER.info("Response Status from REST Call " + status);
+    /**
+     * Maps Fusion http status codes to the function exceptions
+     */
+    private static void checkStatus(int status, String responseJson) throws UnAuthorizedException, NotFoundException, BadRequestException {
         if (status == SC_UNAUTHORIZED) {
-            LOGGER.info(UNAUTH_EXCEPTION_MSG);
+
+            LOGGER.info("fusion.unauthorized");
             throw new UnAuthorizedException(UNAUTH_EXCEPTION_MSG);
         }
+
         if (status == SC_NOT_FOUND) {
 
-            LOGGER.info(NOTFOUND_EXCEPTION_MSG);
+            LOGGER.info("fusion.notfound");
             throw new NotFoundException(NOTFOUND_EXCEPTION_MSG);
         }
         // Any other error message gets thrown with any response text
         if (status != SC_OK) {
             String errorMessage = String.format(SAAS_GENERIC_ERROR, status, responseJson);
-            LOGGER.info(errorMessage);
+            LOGGER.info("fusion.error", "status", status, "body", responseJson);
             throw new BadRequestException(errorMessage);
         }
-        LOGGER.fine("Response from SaaS " + responseJson);
-        return (responseJson);
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == SC_TOO_MANY_REQUESTS || status == SC_BAD_GATEWAY
+                || status == SC_SERVICE_UNAVAILABLE || status == SC_GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * Sleeps before the next attempt, full jitter exponential backoff unless the server asked for a specific delay.
+     *
+     * @return false if the delay would take us past the deadline, in which case there is no point retrying
+     */
+    private static boolean backoff(int attempt, long retryAfterMs, long deadline) {
+        long delay;
+        if (retryAfterMs >= 0) {
+            delay = retryAfterMs;
+        } else {
+            long cap = Math.min(config.RETRY_MAX_DELAY_MS, (long) config.RETRY_BASE_DELAY_MS << Math.min(attempt - 1, 16));
+            delay = ThreadLocalRandom.current().nextLong(cap + 1);
+        }
+        if (System.currentTimeMillis() + delay >= deadline) {
+            return false;
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Retry-After can either be a number of seconds or an http date
+     *
+     * @return delay in milliseconds, -1 if absent or unparseable
+     */
+    private static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        String value = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
     }
 }
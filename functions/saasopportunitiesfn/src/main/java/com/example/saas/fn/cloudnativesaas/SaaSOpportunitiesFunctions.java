@@ -7,6 +7,12 @@ package com.example.saas.fn.cloudnativesaas;
 import com.example.saas.fn.cloudnativesaas.exceptions.BadRequestException;
 import com.example.saas.fn.cloudnativesaas.exceptions.UnAuthorizedException;
 import com.example.saas.fn.cloudnativesaas.exceptions.NotFoundException;
+import com.example.saas.fn.cloudnativesaas.exceptions.ServiceUnavailableException;
+import com.example.saas.fn.cloudnativesaas.model.Opportunity;
+import com.example.saas.fn.cloudnativesaas.model.OpportunityJson;
+import com.example.saas.fn.cloudnativesaas.model.OpportunityList;
+import com.example.saas.fn.cloudnativesaas.model.OpportunitySummary;
+import com.example.saas.fn.cloudnativesaas.model.UpdatedOpportunity;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fnproject.fn.api.FnConfiguration;
 import com.fnproject.fn.api.InputEvent;
@@ -17,13 +23,23 @@ import com.fnproject.fn.api.httpgateway.HTTPGatewayContext;
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.oracle.bmc.Region;
-import com.oracle.idcs.oauth.SecurityHelper;
+import com.oracle.idcs.oauth.util.Deadline;
+import com.oracle.idcs.oauth.util.DeadlineExceededException;
+import com.oracle.idcs.oauth.util.EventLog;
 
 
 /**
@@ -31,20 +47,50 @@ import com.oracle.idcs.oauth.SecurityHelper;
  */
 public class SaaSOpportunitiesFunctions {
 
-    private static final Logger LOGGER = Logger.getLogger("CLOUDNATIVESAAS");
+    private static final EventLog LOGGER = EventLog.get("CLOUDNATIVESAAS");
     private String fnURIBase = "";
     private String debugJWT = "";
     private String fusionHostname = "";
     private String logDebugLevel="INFO";    // Default is Info
+    private int compressionMinSize = 1024;  // Responses smaller than this are sent uncompressed
+    private long invocationBudgetMs = 60000;  // Same as the timeout in func.yaml
+    private long deadlineMarginMs = 1000;     // Kept to write the response once outbound calls give up
     private static final  String NOTSET="NOTSET";
     private static final  int SC_BADREQUEST =400;
     private static final int SC_UNAUTHORIZED = 401;
     private static final int SC_NOTFOUND = 404;
     private static final  int SC_INTERNALERROR = 500;
+    private static final  int SC_SERVICEUNAVAILABLE = 503;
+    private static final  int SC_GATEWAYTIMEOUT = 504;
     private static final  String CT_APPLICATION_JSON="application/json";
     private static final  String CT_TEXT_PLAIN="text/plain";
     private RuntimeContext context;
     private Boolean fullOAauth = false;
+    private FusionTokenAsserter tokenAsserter = null;  // Only set when full_oauth=true
+    private boolean gatewayTokenExchange = false;  // Fusion token asserted by the authorizer, passed by the gateway
+    // Headers the gateway sets from the authorizer context when gatewayTokenExchange=true
+    private static final String GATEWAY_FUSION_TOKEN_HEADER = "Fn-Http-H-X-Fusion-Token";
+    private static final String GATEWAY_PRINCIPAL_HEADER = "Fn-Http-H-X-Fusion-Principal";
+    private OpportunityMirror mirror = null;     // Only set when mirror_enabled=true
+    private OpportunitySearchIndex searchIndex = null;  // Only set when search_enabled=true
+    private DetailPrefetcher prefetcher = null;  // Only set when prefetch_enabled=true
+    private static final String SEARCH_URI = "/search";
+    private static final String SUMMARY_URI = "/summary";
+    // Fusion fields the summary may be grouped by
+    private static final Set<String> SUMMARY_DIMENSIONS = new HashSet<>(Arrays.asList("StatusCode", "SalesStage", "CurrencyCode"));
+    private int summaryPageSize = 500;
+    private static final String EXPORT_URI = "/export";
+    private static final String CONTINUATION_HEADER = "X-Continuation-Token";
+    private OpportunityExporter exporter;
+    // expand= names accepted on the single opportunity route, mapped to the Fusion child collection and its default fields
+    private static final Map<String, String[]> EXPANDABLE = new LinkedHashMap<>();
+    private static final Pattern FIELD_LIST = Pattern.compile("[A-Za-z0-9_]+(,[A-Za-z0-9_]+)*");
+
+    static {
+        EXPANDABLE.put("contacts", new String[]{"OpportunityContact", "PartyName,JobTitle,EmailAddress,FormattedPhoneNumber,PrimaryFlag"});
+        EXPANDABLE.put("revenueLines", new String[]{"ChildRevenue", "RevnId,ProdGroupName,ItemNumber,Quantity,RevnAmount,CurrencyCode,StatusCode"});
+        EXPANDABLE.put("notes", new String[]{"Note", "NoteId,NoteTypeCode,NoteTxt,CreatedBy,CreationDate"});
+    }
 
 
     private ObjectMapper objectMapper = new ObjectMapper();
@@ -81,11 +127,65 @@ public class SaaSOpportunitiesFunctions {
         fnURIBase = ctx.getConfigurationByKey("gtw_uri_base").orElse("/cloudnativefusion/opportunities");
         debugJWT = ctx.getConfigurationByKey("debug_jwt").orElse(NOTSET);
         logDebugLevel = ctx.getConfigurationByKey("debug_level").orElse("INFO");
+        // Set once, INFO traces of a sample of the requests, written by a background thread
+        EventLog.configure(Level.parse(logDebugLevel),
+                Double.parseDouble(ctx.getConfigurationByKey("log_info_sample_rate").orElse("1")),
+                Integer.parseInt(ctx.getConfigurationByKey("log_queue_capacity").orElse("10000")));
+        compressionMinSize = Integer.parseInt(ctx.getConfigurationByKey("compression_min_size").orElse("1024"));
+        summaryPageSize = Integer.parseInt(ctx.getConfigurationByKey("summary_page_size").orElse("500"));
+        invocationBudgetMs = Long.parseLong(ctx.getConfigurationByKey("invocation_budget_ms").orElse("60000"));
+        deadlineMarginMs = Long.parseLong(ctx.getConfigurationByKey("deadline_margin_ms").orElse("1000"));
 
         // Flag to check if use the Full OAuth IDCS Approach
         fullOAauth = Boolean.parseBoolean(ctx.getConfigurationByKey("full_oauth").orElse("false"));
+        if (fullOAauth) {
+            // SecurityHelper and the OCI SDK are only loaded from here
+            tokenAsserter = new IdcsFusionTokenAsserter(ctx);
+        }
+        // Flag to use the Fusion token the authorizer asserted, passed in headers by the gateway
+        gatewayTokenExchange = Boolean.parseBoolean(ctx.getConfigurationByKey("gateway_token_exchange").orElse("false"));
+
+        // Timeouts, retries and circuit breaker used for every call to Fusion
+        SaaSHelper.init(new FusionClientConfig(ctx));
+
+        // Chunked NDJSON/CSV export
+        exporter = new OpportunityExporter(
+                Integer.parseInt(ctx.getConfigurationByKey("export_window").orElse("4")),
+                Integer.parseInt(ctx.getConfigurationByKey("export_page_size").orElse("500")),
+                Integer.parseInt(ctx.getConfigurationByKey("export_max_bytes").orElse("5000000")),
+                Long.parseLong(ctx.getConfigurationByKey("export_deadline_margin_ms").orElse("5000")));
+
+        // Optional background prefetch of the detail of listed opportunities
+        if (Boolean.parseBoolean(ctx.getConfigurationByKey("prefetch_enabled").orElse("false"))) {
+            prefetcher = new DetailPrefetcher(
+                    Integer.parseInt(ctx.getConfigurationByKey("prefetch_concurrency").orElse("2")),
+                    Long.parseLong(ctx.getConfigurationByKey("prefetch_ttl_ms").orElse("60000")),
+                    Integer.parseInt(ctx.getConfigurationByKey("prefetch_max_entries").orElse("1000")),
+                    Long.parseLong(ctx.getConfigurationByKey("prefetch_budget_ms").orElse("5000")));
+        }
+
+        // Optional search index over the opportunities loaded by the function
+        if (Boolean.parseBoolean(ctx.getConfigurationByKey("search_enabled").orElse("false"))) {
+            searchIndex = new OpportunitySearchIndex(
+                    Integer.parseInt(ctx.getConfigurationByKey("search_max_docs").orElse("5000")),
+                    Integer.parseInt(ctx.getConfigurationByKey("search_max_users").orElse("5")));
+        }
+
+        // Optional in-container opportunity mirror answering list requests
+        if (Boolean.parseBoolean(ctx.getConfigurationByKey("mirror_enabled").orElse("false"))) {
+            mirror = new OpportunityMirror(
+                    Long.parseLong(ctx.getConfigurationByKey("mirror_staleness_ms").orElse("30000")),
+                    Long.parseLong(ctx.getConfigurationByKey("mirror_full_reload_ms").orElse("900000")),
+                    Long.parseLong(ctx.getConfigurationByKey("mirror_load_budget_ms").orElse("3000")),
+                    Integer.parseInt(ctx.getConfigurationByKey("mirror_page_size").orElse("500")),
+                    Integer.parseInt(ctx.getConfigurationByKey("mirror_max_rows").orElse("5000")),
+                    Integer.parseInt(ctx.getConfigurationByKey("mirror_max_users").orElse("5")),
+                    searchIndex);
+        }
 
-        LOGGER.info("Configuration read : debugJWT=[" + debugJWT + "] fusionHostname=[" + fusionHostname+"] fnuribase=["+fnURIBase+"]");
+        LOGGER.info("config.read", "debugJWT", !debugJWT.equals(NOTSET), "fusionHostname", fusionHostname, "fnURIBase", fnURIBase,
+                "mirror", mirror != null, "search", searchIndex != null, "prefetch", prefetcher != null,
+                "fullOAuth", fullOAauth, "gatewayTokenExchange", gatewayTokenExchange, "debugLevel", logDebugLevel);
     }
 
     /**
@@ -99,6 +199,191 @@ public class SaaSOpportunitiesFunctions {
 
     }
 
+    /**
+     * Serialises the typed model of a route, a PATCH passes on the record Fusion returned as is
+     */
+    private static byte[] responseBody(Object saasResponse) throws JsonProcessingException {
+        if (saasResponse == null) {
+            return new byte[0];
+        }
+        if (saasResponse instanceof UpdatedOpportunity) {
+            return ((UpdatedOpportunity) saasResponse).getBody();
+        }
+        return OpportunityJson.MAPPER.writeValueAsBytes(saasResponse);
+    }
+
+    /**
+     * Request URL without any query string
+     * @param hctx
+     * @return
+     */
+    private String requestPath(HTTPGatewayContext hctx) {
+        String url = hctx.getRequestURL();
+        int query = url.indexOf('?');
+        return query < 0 ? url : url.substring(0, query);
+    }
+
+    /**
+     * Parses an integer query parameter
+     */
+    private int intParameter(HTTPGatewayContext hctx, String name, int defaultValue) throws BadRequestException {
+        Optional<String> value = hctx.getQueryParameters().get(name);
+        try {
+            return value.isPresent() ? Integer.parseInt(value.get().trim()) : defaultValue;
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Query parameter " + name + " must be a number");
+        }
+    }
+
+    /**
+     * Lists opportunities from the mirror when enabled, falling back to Fusion
+     */
+    private OpportunityList listOptys(HTTPGatewayContext hctx, String cacheKey, String jwttoken) throws Exception {
+        OpportunityList opportunities = null;
+        // Same page whether the mirror or Fusion answers
+        Set<String> statuses = new HashSet<>();
+        hctx.getQueryParameters().get("status").ifPresent(v -> statuses.addAll(Arrays.asList(v.toUpperCase().split(","))));
+        statuses.remove("");
+        String orderBy = hctx.getQueryParameters().get("orderBy").orElse(null);
+        int offset = intParameter(hctx, "offset", 0);
+        int limit = intParameter(hctx, "limit", 10);
+        if (mirror != null) {
+            OpportunityList mirrored = mirror.list(cacheKey, jwttoken, fusionHostname, statuses, orderBy, offset, limit);
+            if (mirrored != null) {
+                LOGGER.info("optys.list.mirror");
+                opportunities = mirrored;
+            }
+        }
+        if (opportunities == null) {
+            opportunities = SaaSHelper.queryOptys(jwttoken, fusionHostname, statuses, orderBy, offset, limit);
+            if (searchIndex != null) {
+                searchIndex.index(cacheKey, opportunities.getItems());
+            }
+        }
+        if (prefetcher != null) {
+            // The user is likely to open one of these next, does not delay this response
+            prefetcher.prefetch(cacheKey, jwttoken, fusionHostname, opportunities.getItems());
+        }
+        return opportunities;
+    }
+
+    /**
+     * Searches the opportunities loaded so far for the user, loading the mirror first when enabled
+     */
+    private OpportunityList searchOptys(HTTPGatewayContext hctx, String cacheKey, String jwttoken) throws Exception {
+        if (searchIndex == null) {
+            throw new NotFoundException("Search is not enabled");
+        }
+        String text = hctx.getQueryParameters().get("text").orElse("");
+        if (mirror != null) {
+            // Makes sure the user's rows are loaded and fresh, cheap when they already are
+            mirror.list(cacheKey, jwttoken, fusionHostname, new HashSet<>(), null, 0, 0);
+        }
+        int limit = intParameter(hctx, "limit", 10);
+        OpportunityList results = new OpportunityList();
+        results.setItems(searchIndex.search(cacheKey, text, limit));
+        results.setCount(results.getItems().size());
+        results.setLimit(limit);
+        return results;
+    }
+
+    /**
+     * Counts and sums the revenue of the user's opportunities, grouped by the groupBy query parameter (StatusCode by default)
+     */
+    private OpportunitySummary summarizeOptys(HTTPGatewayContext hctx, String jwttoken) throws Exception {
+        List<String> groupBy = new ArrayList<>();
+        for (String dimension : hctx.getQueryParameters().get("groupBy").orElse("StatusCode").split(",")) {
+            dimension = dimension.trim();
+            if (!SUMMARY_DIMENSIONS.contains(dimension)) {
+                throw new BadRequestException("groupBy must be one or more of " + SUMMARY_DIMENSIONS);
+            }
+            if (!groupBy.contains(dimension)) {
+                groupBy.add(dimension);
+            }
+        }
+        return SaaSHelper.summarizeOptys(jwttoken, fusionHostname, groupBy, summaryPageSize);
+    }
+
+    /**
+     * Exports the next chunk of the user's opportunities, the continuation token of the following one goes in a header
+     */
+    private OutputEvent exportOptys(InputEvent rawInput, HTTPGatewayContext hctx, String jwttoken) throws Exception {
+        OpportunityExporter.Chunk chunk = exporter.export(jwttoken, fusionHostname,
+                hctx.getQueryParameters().get("format").orElse(OpportunityExporter.FORMAT_NDJSON),
+                hctx.getQueryParameters().get("continuation").orElse(null),
+                Deadline.current().toInstant());
+        if (chunk.getContinuation() != null) {
+            hctx.setResponseHeader(CONTINUATION_HEADER, chunk.getContinuation());
+        }
+        return ResponseCompression.encode(rawInput, hctx, chunk.getBody(), chunk.getContentType(), compressionMinSize);
+    }
+
+    /**
+     * Single opportunity, from the prefetch cache when possible (expanded queries always go to Fusion)
+     */
+    private Opportunity getOpty(HTTPGatewayContext hctx, String cacheKey, String jwttoken, String optyId) throws Exception {
+        Map<String, String> expand = expandParameter(hctx);
+        if (prefetcher != null && expand.isEmpty()) {
+            Opportunity cached = prefetcher.get(cacheKey, optyId);
+            if (cached != null) {
+                LOGGER.info("opty.get.prefetched", "optyId", optyId);
+                return cached;
+            }
+        }
+        Opportunity opportunity = SaaSHelper.querySingleOpty(cacheKey, jwttoken, fusionHostname, optyId, expand);
+        if (prefetcher != null) {
+            prefetcher.put(cacheKey, opportunity.compact());
+        }
+        return opportunity;
+    }
+
+    /**
+     * Reads the expand query parameter (eg: expand=contacts,notes) and any per child projection (eg: notes.fields=NoteId,NoteTxt)
+     *
+     * @return Fusion child collection name to the fields to return for it, empty when nothing is expanded
+     */
+    private Map<String, String> expandParameter(HTTPGatewayContext hctx) throws BadRequestException {
+        Map<String, String> expand = new LinkedHashMap<>();
+        Optional<String> requested = hctx.getQueryParameters().get("expand");
+        if (!requested.isPresent() || requested.get().trim().isEmpty()) {
+            return expand;
+        }
+        for (String name : requested.get().split(",")) {
+            String[] child = EXPANDABLE.get(name.trim());
+            if (child == null) {
+                throw new BadRequestException("expand must be one or more of " + EXPANDABLE.keySet());
+            }
+            String fields = hctx.getQueryParameters().get(name.trim() + ".fields").orElse(child[1]).trim();
+            if (!FIELD_LIST.matcher(fields).matches()) {
+                throw new BadRequestException(name.trim() + ".fields must be a comma separated list of field names");
+            }
+            expand.put(child[0], fields);
+        }
+        return expand;
+    }
+
+    /**
+     * Keeps the optional mirror and search index in step with a row fetched or updated in Fusion
+     */
+    private void loaded(String cacheKey, Opportunity opportunity) {
+        if (mirror != null) {
+            mirror.upsert(cacheKey, opportunity.compact());
+        } else if (searchIndex != null) {
+            searchIndex.index(cacheKey, opportunity.compact());
+        }
+    }
+
+    /**
+     * Deadline of this invocation : the configured budget, or the deadline passed by Fn if sooner, less the margin
+     */
+    private Deadline invocationDeadline(InputEvent rawInput) {
+        Deadline deadline = Deadline.after(invocationBudgetMs);
+        if (rawInput.getDeadline() != null) {
+            deadline = deadline.min(Deadline.at(rawInput.getDeadline()));
+        }
+        return deadline.minus(deadlineMarginMs);
+    }
+
     /**
      * Main Function entry point
      * @param rawInput  : Rawinput, used for getting body
@@ -107,40 +392,65 @@ public class SaaSOpportunitiesFunctions {
      * @throws JsonProcessingException
      */
     public OutputEvent handleRequest(InputEvent rawInput, HTTPGatewayContext hctx) throws JsonProcessingException {
-        // process request
-        LOGGER.setLevel(Level.parse(logDebugLevel));
+        // process request, INFO traces are logged for a sample of them
+        EventLog.startRequest();
+        // Caps the timeout of every Fusion, IDCS and Vault call made for this invocation
+        Deadline.Scope deadlineScope = invocationDeadline(rawInput).enter();
         try {
 
 
 
-            String jwtUsername = JWTUtils.getJWTUsername(rawInput);
-            String jwttoken = JWTUtils.getJWTToken(rawInput);
-            LOGGER.info("handleRequest called with following data");
-            LOGGER.info("Username = " + jwtUsername);
+            // Token exchanged by the authorizer, nothing to decode or assert. Without it, the usual flow below
+            Optional<String> gatewayToken = gatewayTokenExchange ? rawInput.getHeaders().get(GATEWAY_FUSION_TOKEN_HEADER) : Optional.empty();
+            boolean exchanged = gatewayToken.isPresent() && !gatewayToken.get().isEmpty();
+            String jwtUsername;
+            String jwttoken;
+            JsonNode claims;
+            if (exchanged) {
+                jwttoken = gatewayToken.get();
+                claims = JWTUtils.getJWTClaims(jwttoken);
+                // The user is the one the Fusion token was issued to, the principal header must name the same user
+                jwtUsername = claims.path("sub").asText();
+                if (jwtUsername.isEmpty() || !jwtUsername.equals(rawInput.getHeaders().get(GATEWAY_PRINCIPAL_HEADER).orElse(""))) {
+                    // The gateway sets both headers from the same authorizer result, anything else did not come from it
+                    LOGGER.severe("token.exchange.principal.mismatch");
+                    hctx.setStatusCode(SC_UNAUTHORIZED);
+                    return OutputEvent.fromBytes(
+                            "{'error':'Exchanged token does not belong to its principal'}".getBytes(),
+                            OutputEvent.Status.Success,
+                            CT_APPLICATION_JSON
+                    );
+                }
+                LOGGER.info("token.exchanged.by.authorizer");
+            } else {
+                if (gatewayTokenExchange) {
+                    LOGGER.warning("token.exchange.missing");
+                }
+                jwttoken = JWTUtils.getJWTToken(rawInput);
+                claims = JWTUtils.getJWTClaims(jwttoken);
+                jwtUsername = claims.path("sub").asText();
+            }
+            // Scopes the mirror, search index, prefetch and not found caches to this user
+            String cacheKey = JWTUtils.getCacheKey(claims);
+            LOGGER.info("request.start", "method", hctx.getMethod(), "path", requestPath(hctx), "username", jwtUsername);
             // To view all headers use rawInput.getHeaders().toString());
             // Override JWT token if there is one in the function config. This allows us to test when OCI & FA are not  associated
             if (!debugJWT.equals(NOTSET) && !debugJWT.equals("")) {
                 jwttoken = this.debugJWT;
-                LOGGER.info("OVERRIDE JWT TOKEN set");
+                LOGGER.info("token.override");
             }
 
             // Full Oauth scenario Perform exchange of tokens
-            if(fullOAauth) {
-                LOGGER.log(Level.INFO, "Full Oauth Assertion scenario - Perform exchange of tokens");
-                SecurityHelper idcsSecurityHelper = new SecurityHelper(context)                   // Initialize SecurityHelper with RuntimeContext
-                                                    .setOciRegion(Region.US_PHOENIX_1)            // Specify the OCI region, used to retrieve Secrets.
-                                                    .extractSubFromJwtTokenHeader(rawInput);      // Extracts the subject from Token in Fn-Http-H-Authorization.
-
-                // Get OAuth Access token with JWT Assertion using the principal extracted from Fn-Http-H-Access-Token Header
-                jwttoken = idcsSecurityHelper.getAssertedAccessToken();
-                LOGGER.log(Level.INFO, "Successfully token retrived with IDCS Assertion");
-                LOGGER.log(Level.FINEST, "Access Token from assertion [" + jwttoken + "]");
+            if(fullOAauth && !exchanged) {
+                LOGGER.info("token.assertion.start");
+                jwttoken = tokenAsserter.assertToken(rawInput);
+                LOGGER.info("token.assertion.done");
             }
 
 
             // if no debug jwt then there must be a real jwt or else error
             if (jwttoken.equals("")) {
-                LOGGER.severe("Error JWT token empty or null");
+                LOGGER.severe("token.empty");
                 hctx.setStatusCode(SC_BADREQUEST);
                 return OutputEvent.fromBytes(
                         "{'error':'Error JWT token empty or null and no debug token provided'}".getBytes(), // Data
@@ -151,51 +461,80 @@ public class SaaSOpportunitiesFunctions {
             //
             // Little router within the function to determine which method to call based on the HTTP Method passed in
             // GET /opportunity = Query all
+            // GET /opportunity/search?text= = Search the opportunities already loaded
+            // GET /opportunity/summary?groupBy= = Counts and revenue totals
+            // GET /opportunity/export?format=ndjson|csv&continuation= = Export, one chunk per call
             // GET /opportunity/{number} = Query Single
+            // GET /opportunity/{number}?expand=contacts,revenueLines,notes = Query Single with child collections
             // PATCH /opportunity/{number} = Patch single
             //
 
-            String saasResponse = "";
+            // Typed model (OpportunityList, Opportunity or OpportunitySummary), serialised once on the way out
+            Object saasResponse = null;
             String httpMethod = hctx.getMethod();
-            String httpRequestURI = hctx.getRequestURL();
+            String httpRequestURI = requestPath(hctx);
             if (httpMethod.equalsIgnoreCase("GET")) {
                 // Is there a subresource, ie a optyid?
-                if (httpRequestURI.equalsIgnoreCase(fnURIBase)) {
+                if (httpRequestURI.equalsIgnoreCase(fnURIBase + SEARCH_URI)) {
+                    // Search the opportunities already loaded
+                    LOGGER.info("route", "name", "search");
+                    saasResponse = searchOptys(hctx, cacheKey, jwttoken);
+                } else if (httpRequestURI.equalsIgnoreCase(fnURIBase + EXPORT_URI)) {
+                    // Not JSON, answered directly
+                    LOGGER.info("route", "name", "export");
+                    return exportOptys(rawInput, hctx, jwttoken);
+                } else if (httpRequestURI.equalsIgnoreCase(fnURIBase + SUMMARY_URI)) {
+                    // Aggregates only, streamed through every page of opportunities
+                    LOGGER.info("route", "name", "summary");
+                    saasResponse = summarizeOptys(hctx, jwttoken);
+                } else if (httpRequestURI.equalsIgnoreCase(fnURIBase)) {
                     // Query all optys
-                    LOGGER.info("fnURIBase=["+fnURIBase+"] httpRequestURI=["+httpRequestURI+" therefore Query all opty requested");
-                    saasResponse = SaaSHelper.queryOptys(jwttoken, fusionHostname);
+                    LOGGER.info("route", "name", "list");
+                    saasResponse = listOptys(hctx, cacheKey, jwttoken);
                 } else {
-                    LOGGER.info("fnURIBase=["+fnURIBase+"] httpRequestURI=["+httpRequestURI+" therefore Query SINGLE opty requested");
+                    LOGGER.info("route", "name", "get");
 
                     // Query Single opportunity
                     // Substring is to remove the initial /
                     String optionalOptyId = httpRequestURI.substring(fnURIBase.length() + 1);
-                    saasResponse = SaaSHelper.querySingleOpty(jwttoken, fusionHostname, optionalOptyId);
+                    Opportunity opportunity = getOpty(hctx, cacheKey, jwttoken, optionalOptyId);
+                    loaded(cacheKey, opportunity);
+                    saasResponse = opportunity;
                 }
             } else if (httpMethod.equalsIgnoreCase("PATCH")) {
                 // Patch request
-                LOGGER.info("Patch Request Detected");
+                LOGGER.info("route", "name", "patch");
 
-                String optionalOptyId = httpRequestURI.substring(fnURIBase.length());
-                saasResponse = SaaSHelper.updateOpty(jwttoken, fusionHostname, optionalOptyId, rawInput.consumeBody(this::readData));
+                // Substring is to remove the initial /
+                String optionalOptyId = httpRequestURI.substring(fnURIBase.length() + 1);
+                if (prefetcher != null) {
+                    // Whatever happens, the cached row is no longer current
+                    prefetcher.invalidate(cacheKey, optionalOptyId);
+                }
+                UpdatedOpportunity updated = SaaSHelper.updateOpty(cacheKey, jwttoken, fusionHostname, optionalOptyId, rawInput.consumeBody(this::readData));
+                if (prefetcher != null) {
+                    prefetcher.put(cacheKey, updated.getOpportunity());
+                }
+                loaded(cacheKey, updated.getOpportunity());
+                saasResponse = updated;
             }
             else
             {
                 // Do nothing
-                LOGGER.info("Unrecognized HTTP VERB Received");
+                LOGGER.info("route.unknown", "method", httpMethod);
             }
-            return  OutputEvent.fromBytes(
-                    saasResponse.getBytes(), // Data
-                    OutputEvent.Status.Success,
-                    CT_APPLICATION_JSON            // Content type
-
+            // Compressed if the client accepts gzip/deflate and the payload is large enough
+            return ResponseCompression.encode(rawInput, hctx,
+                    responseBody(saasResponse),     // Data
+                    CT_APPLICATION_JSON,           // Content type
+                    compressionMinSize
             );
 
 
         } catch (UnAuthorizedException e) {
             // Unauthorized by SaaS
             hctx.setStatusCode(SC_UNAUTHORIZED);
-            LOGGER.severe("Received NotAuthorizedException Error from SaaS " + e.getLocalizedMessage());
+            LOGGER.severe("request.unauthorized", "error", e.getLocalizedMessage());
 
             return OutputEvent.fromBytes(
                         objectMapper.writeValueAsBytes(
@@ -208,7 +547,7 @@ public class SaaSOpportunitiesFunctions {
 
 
         } catch (NotFoundException e) {
-            LOGGER.severe("NotFoundException Error " + e.getLocalizedMessage());
+            LOGGER.severe("request.notfound", "error", e.getLocalizedMessage());
             hctx.setStatusCode(SC_NOTFOUND);
             return OutputEvent.fromBytes(("Not found : " + e.getLocalizedMessage()).getBytes(),
                     OutputEvent.Status.Success,
@@ -218,7 +557,7 @@ public class SaaSOpportunitiesFunctions {
         } catch (BadRequestException e) {
             // Something else went wrong with the REST Request
             hctx.setStatusCode(SC_BADREQUEST);
-            LOGGER.severe("BadRequestException Error " + e.getLocalizedMessage());
+            LOGGER.severe("request.badrequest", "error", e.getLocalizedMessage());
             return OutputEvent.fromBytes(
                     objectMapper.writeValueAsBytes(
                             new JsonResult("BadReques: ",e.getLocalizedMessage())
@@ -228,9 +567,36 @@ public class SaaSOpportunitiesFunctions {
             );
 
 
+        } catch (ServiceUnavailableException e) {
+            // Shed by the concurrency limiter, tell the client when to come back
+            hctx.setStatusCode(SC_SERVICEUNAVAILABLE);
+            hctx.setResponseHeader("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            LOGGER.warning("request.unavailable", "error", e.getLocalizedMessage(), "retryAfterS", e.getRetryAfterSeconds());
+            return OutputEvent.fromBytes(
+                    objectMapper.writeValueAsBytes(
+                            new JsonResult("ServiceUnavailable", e.getLocalizedMessage())
+                    ),
+                    OutputEvent.Status.Success,
+                    CT_APPLICATION_JSON
+            );
+
+
+        } catch (DeadlineExceededException e) {
+            // Out of time, answer before Fn kills the invocation
+            hctx.setStatusCode(SC_GATEWAYTIMEOUT);
+            LOGGER.warning("request.timeout", "error", e.getLocalizedMessage());
+            return OutputEvent.fromBytes(
+                    objectMapper.writeValueAsBytes(
+                            new JsonResult("GatewayTimeout", e.getLocalizedMessage())
+                    ),
+                    OutputEvent.Status.Success,
+                    CT_APPLICATION_JSON
+            );
+
+
         } catch (Exception e) {
             // Something else went wrong, really bad
-            LOGGER.severe("Exception Error " + e.getLocalizedMessage());
+            LOGGER.log(Level.SEVERE, "request.failed", e, "error", e.getLocalizedMessage());
             hctx.setStatusCode(SC_INTERNALERROR);
             return OutputEvent.fromBytes(
                     objectMapper.writeValueAsBytes(
@@ -239,6 +605,8 @@ public class SaaSOpportunitiesFunctions {
                     OutputEvent.Status.Success,
                     CT_APPLICATION_JSON
             );
+        } finally {
+            deadlineScope.close();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas.model;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact opportunity, only the fields SaaSHelper asks Fusion for (see DEFAULT_QUERY_PARAMS),
+ * plus any child collections (eg: ChildRevenue) explicitly expanded on a single opportunity query
+ */
+@JsonPropertyOrder({"OptyNumber", "TargetPartyName", "Name", "DescriptionText", "StatusCode",
+        "PrimaryContactPartyName", "PrimaryContactFormattedPhoneNumber", "PrimaryContactEmailAddress"})
+public class Opportunity {
+
+    private String optyNumber;
+    private String targetPartyName;
+    private String name;
+    private String descriptionText;
+    private String statusCode;
+    private String primaryContactPartyName;
+    private String primaryContactFormattedPhoneNumber;
+    private String primaryContactEmailAddress;
+    // Only requested by the delta sync, never sent back to the client
+    private String lastUpdateDate;
+    // Expanded child collections by Fusion name, already projected to the requested fields
+    private Map<String, List<Map<String, Object>>> children;
+
+    @JsonProperty("OptyNumber")
+    public String getOptyNumber() {
+        return optyNumber;
+    }
+
+    public void setOptyNumber(String optyNumber) {
+        this.optyNumber = optyNumber;
+    }
+
+    @JsonProperty("TargetPartyName")
+    public String getTargetPartyName() {
+        return targetPartyName;
+    }
+
+    public void setTargetPartyName(String targetPartyName) {
+        this.targetPartyName = targetPartyName;
+    }
+
+    @JsonProperty("Name")
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @JsonProperty("DescriptionText")
+    public String getDescriptionText() {
+        return descriptionText;
+    }
+
+    public void setDescriptionText(String descriptionText) {
+        this.descriptionText = descriptionText;
+    }
+
+    @JsonProperty("StatusCode")
+    public String getStatusCode() {
+        return statusCode;
+    }
+
+    public void setStatusCode(String statusCode) {
+        // A handful of distinct values (WON, LOST, OPEN...) shared by every row
+        this.statusCode = statusCode == null ? null : statusCode.intern();
+    }
+
+    @JsonProperty("PrimaryContactPartyName")
+    public String getPrimaryContactPartyName() {
+        return primaryContactPartyName;
+    }
+
+    public void setPrimaryContactPartyName(String primaryContactPartyName) {
+        this.primaryContactPartyName = primaryContactPartyName;
+    }
+
+    @JsonProperty("PrimaryContactFormattedPhoneNumber")
+    public String getPrimaryContactFormattedPhoneNumber() {
+        return primaryContactFormattedPhoneNumber;
+    }
+
+    public void setPrimaryContactFormattedPhoneNumber(String primaryContactFormattedPhoneNumber) {
+        this.primaryContactFormattedPhoneNumber = primaryContactFormattedPhoneNumber;
+    }
+
+    @JsonProperty("PrimaryContactEmailAddress")
+    public String getPrimaryContactEmailAddress() {
+        return primaryContactEmailAddress;
+    }
+
+    public void setPrimaryContactEmailAddress(String primaryContactEmailAddress) {
+        this.primaryContactEmailAddress = primaryContactEmailAddress;
+    }
+
+    @JsonIgnore
+    public String getLastUpdateDate() {
+        return lastUpdateDate;
+    }
+
+    public void setLastUpdateDate(String lastUpdateDate) {
+        this.lastUpdateDate = lastUpdateDate;
+    }
+
+    /**
+     * Written after the compact fields, eg: "ChildRevenue":[{...}]
+     */
+    @JsonAnyGetter
+    public Map<String, List<Map<String, Object>>> getChildren() {
+        return children == null ? Collections.emptyMap() : children;
+    }
+
+    public void setChild(String name, List<Map<String, Object>> items) {
+        if (children == null) {
+            children = new LinkedHashMap<>();
+        }
+        children.put(name, items);
+    }
+
+    /**
+     * @return this opportunity without its child collections, as kept by the mirror and search index
+     */
+    public Opportunity compact() {
+        if (children == null) {
+            return this;
+        }
+        Opportunity copy = new Opportunity();
+        copy.optyNumber = optyNumber;
+        copy.targetPartyName = targetPartyName;
+        copy.name = name;
+        copy.descriptionText = descriptionText;
+        copy.statusCode = statusCode;
+        copy.primaryContactPartyName = primaryContactPartyName;
+        copy.primaryContactFormattedPhoneNumber = primaryContactFormattedPhoneNumber;
+        copy.primaryContactEmailAddress = primaryContactEmailAddress;
+        copy.lastUpdateDate = lastUpdateDate;
+        return copy;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas.model;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads Fusion opportunity payloads with the Jackson streaming parser, straight from the http response stream,
+ * and writes the typed model back out with an Afterburner enabled ObjectMapper (bytecode generated accessors).
+ * Fields that are not part of the model are skipped without being materialised.
+ */
+public class OpportunityJson {
+
+    // Thread safe once configured, shared by the whole container
+    public static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new AfterburnerModule());
+    private static final JsonFactory JSON_FACTORY = MAPPER.getFactory();
+    // Child collections kept when Fusion expands them, all other nested objects are skipped
+    public static final Set<String> CHILD_COLLECTIONS = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("OpportunityContact", "ChildRevenue", "Note")));
+    private static final TypeReference<List<Map<String, Object>>> CHILD_ITEMS = new TypeReference<List<Map<String, Object>>>() {};
+
+    private OpportunityJson() {
+        throw new IllegalStateException("OpportunityJson is a utility class");
+    }
+
+    /**
+     * @param in : Fusion collection response, eg: GET /opportunities
+     */
+    public static OpportunityList readList(InputStream in) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            OpportunityList list = new OpportunityList();
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "items":
+                        expect(value, JsonToken.START_ARRAY);
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            list.getItems().add(readOpportunity(parser));
+                        }
+                        break;
+                    case "count":
+                        list.setCount(parser.getValueAsInt());
+                        break;
+                    case "hasMore":
+                        list.setHasMore(parser.getValueAsBoolean());
+                        break;
+                    case "limit":
+                        list.setLimit(parser.getValueAsInt());
+                        break;
+                    case "offset":
+                        list.setOffset(parser.getValueAsInt());
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            return list;
+        }
+    }
+
+    /**
+     * @param in : Fusion single resource response, eg: GET /opportunities/{id}
+     */
+    public static Opportunity readSingle(InputStream in) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            return readOpportunity(parser);
+        }
+    }
+
+    /**
+     * @param in : Fusion response to a PATCH, the whole updated record
+     * @return the record as is, along with the compact opportunity read from it
+     */
+    public static UpdatedOpportunity readUpdated(InputStream in) throws IOException {
+        byte[] body = in.readAllBytes();
+        return new UpdatedOpportunity(body, readSingle(new ByteArrayInputStream(body)));
+    }
+
+    /**
+     * Totals one page of a Fusion collection response, without keeping the opportunities. Nothing outside the page is
+     * written to, the caller merges it (see OpportunitySummary.merge).
+     *
+     * @param in : Fusion collection response holding the groupBy fields and Revenue
+     * @param groupBy : Fusion fields to group by, eg: StatusCode
+     * @return the totals of the page and whether there are more
+     */
+    public static SummaryPage summarizePage(InputStream in, List<String> groupBy) throws IOException {
+        OpportunitySummary summary = new OpportunitySummary(groupBy);
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            boolean hasMore = false;
+            int items = 0;
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("items".equals(field)) {
+                    expect(value, JsonToken.START_ARRAY);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        String[] values = new String[groupBy.size()];
+                        BigDecimal revenue = null;
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String itemField = parser.getCurrentName();
+                            JsonToken itemValue = parser.nextToken();
+                            if (itemValue.isStructStart()) {
+                                parser.skipChildren();
+                            } else if (itemValue == JsonToken.VALUE_NULL) {
+                                continue;
+                            } else if ("Revenue".equals(itemField)) {
+                                revenue = itemValue.isNumeric() ? parser.getDecimalValue() : null;
+                            } else {
+                                int dimension = groupBy.indexOf(itemField);
+                                if (dimension >= 0) {
+                                    values[dimension] = parser.getValueAsString();
+                                }
+                            }
+                        }
+                        summary.add(values, revenue);
+                        items++;
+                    }
+                } else if ("hasMore".equals(field)) {
+                    hasMore = parser.getValueAsBoolean();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new SummaryPage(summary, hasMore && items > 0);
+        }
+    }
+
+    /**
+     * Reads one opportunity, the parser must be positioned on its START_OBJECT
+     */
+    public static Opportunity readOpportunity(JsonParser parser) throws IOException {
+        Opportunity opportunity = new Opportunity();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value.isStructStart()) {
+                if (CHILD_COLLECTIONS.contains(field)) {
+                    opportunity.setChild(field, readChildItems(parser, value));
+                } else {
+                    // Links and other nested objects are not part of the model
+                    parser.skipChildren();
+                }
+                continue;
+            }
+            String text = value == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+            switch (field) {
+                case "OptyNumber":
+                    opportunity.setOptyNumber(text);
+                    break;
+                case "TargetPartyName":
+                    opportunity.setTargetPartyName(text);
+                    break;
+                case "Name":
+                    opportunity.setName(text);
+                    break;
+                case "DescriptionText":
+                    opportunity.setDescriptionText(text);
+                    break;
+                case "StatusCode":
+                    opportunity.setStatusCode(text);
+                    break;
+                case "PrimaryContactPartyName":
+                    opportunity.setPrimaryContactPartyName(text);
+                    break;
+                case "PrimaryContactFormattedPhoneNumber":
+                    opportunity.setPrimaryContactFormattedPhoneNumber(text);
+                    break;
+                case "PrimaryContactEmailAddress":
+                    opportunity.setPrimaryContactEmailAddress(text);
+                    break;
+                case "LastUpdateDate":
+                    opportunity.setLastUpdateDate(text);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return opportunity;
+    }
+
+    /**
+     * An expanded child is either an array of items or a collection object holding them in "items"
+     */
+    private static List<Map<String, Object>> readChildItems(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.START_ARRAY) {
+            return MAPPER.readValue(parser, CHILD_ITEMS);
+        }
+        List<Map<String, Object>> items = Collections.emptyList();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken fieldValue = parser.nextToken();
+            if ("items".equals(field) && fieldValue == JsonToken.START_ARRAY) {
+                items = MAPPER.readValue(parser, CHILD_ITEMS);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return items;
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Unexpected JSON from SaaS, expected " + expected + " but got " + actual);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas.model;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fusion REST collection envelope (onlyData=true, so no links)
+ */
+@JsonPropertyOrder({"items", "count", "hasMore", "limit", "offset"})
+public class OpportunityList {
+
+    private List<Opportunity> items = new ArrayList<>();
+    private int count;
+    private boolean hasMore;
+    private int limit;
+    private int offset;
+
+    public List<Opportunity> getItems() {
+        return items;
+    }
+
+    public void setItems(List<Opportunity> items) {
+        this.items = items;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public boolean isHasMore() {
+        return hasMore;
+    }
+
+    public void setHasMore(boolean hasMore) {
+        this.hasMore = hasMore;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas.model;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Running counts and revenue totals of opportunities, grouped by one or more dimensions (eg: StatusCode).
+ * Only one Group per distinct list of values is kept, whatever the number of opportunities added.
+ */
+@JsonPropertyOrder({"groupBy", "count", "revenue", "groups"})
+public class OpportunitySummary {
+
+    // Value used when an opportunity has no value for a dimension
+    public static final String UNSPECIFIED = "UNSPECIFIED";
+    // Orders groups by their values, dimension by dimension
+    private static final Comparator<List<String>> VALUES_ORDER = (a, b) -> {
+        for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+            int c = a.get(i).compareTo(b.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(a.size(), b.size());
+    };
+
+    private final List<String> groupBy;
+    private long count;
+    private BigDecimal revenue = BigDecimal.ZERO;
+    private final Map<List<String>, Group> groups = new TreeMap<>(VALUES_ORDER);
+
+    @JsonPropertyOrder({"values", "count", "revenue"})
+    public static class Group {
+        private final List<String> values;
+        private long count;
+        private BigDecimal revenue = BigDecimal.ZERO;
+
+        Group(List<String> values) {
+            this.values = values;
+        }
+
+        /**
+         * @return Value of each groupBy dimension, in the same order
+         */
+        public List<String> getValues() {
+            return values;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public BigDecimal getRevenue() {
+            return revenue;
+        }
+    }
+
+    public OpportunitySummary(List<String> groupBy) {
+        this.groupBy = groupBy;
+    }
+
+    /**
+     * @param values : Value of each groupBy dimension, in the same order, null when absent
+     * @param revenue : Revenue of the opportunity, null when absent
+     */
+    public void add(String[] values, BigDecimal revenue) {
+        List<String> key = new ArrayList<>(values.length);
+        for (String value : values) {
+            key.add(value == null ? UNSPECIFIED : value);
+        }
+        Group group = groups.computeIfAbsent(Collections.unmodifiableList(key), Group::new);
+        group.count++;
+        count++;
+        if (revenue != null) {
+            group.revenue = group.revenue.add(revenue);
+            this.revenue = this.revenue.add(revenue);
+        }
+    }
+
+    /**
+     * Adds the counts and revenue of another summary with the same groupBy, eg: one page, to this one
+     */
+    public void merge(OpportunitySummary other) {
+        other.groups.forEach((key, page) -> {
+            Group group = groups.computeIfAbsent(key, Group::new);
+            group.count += page.count;
+            group.revenue = group.revenue.add(page.revenue);
+        });
+        count += other.count;
+        revenue = revenue.add(other.revenue);
+    }
+
+    public List<String> getGroupBy() {
+        return groupBy;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public BigDecimal getRevenue() {
+        return revenue;
+    }
+
+    public Collection<Group> getGroups() {
+        return groups.values();
+    }
+
+    /**
+     * @param values : Value of each groupBy dimension, in the same order
+     * @return The group of these values, null when no opportunity was added with them
+     */
+    public Group getGroup(String... values) {
+        return groups.get(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,34 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas.model;
+
+/**
+ * Totals of one page of a Fusion collection, merged by the caller into its own running summary. A page holds no
+ * state of the caller, so it can be shared between coalesced callers or thrown away when a hedged read loses.
+ */
+public class SummaryPage {
+
+    private final OpportunitySummary summary;
+    private final boolean hasMore;
+
+    public SummaryPage(OpportunitySummary summary, boolean hasMore) {
+        this.summary = summary;
+        this.hasMore = hasMore;
+    }
+
+    /**
+     * @return the counts and revenue of the opportunities of this page only
+     */
+    public OpportunitySummary getSummary() {
+        return summary;
+    }
+
+    /**
+     * @return true if Fusion has more pages (hasMore) and this one was not empty
+     */
+    public boolean isHasMore() {
+        return hasMore;
+    }
+}
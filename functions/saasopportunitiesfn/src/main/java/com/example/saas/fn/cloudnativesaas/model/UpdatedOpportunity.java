@@ -0,0 +1,31 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas.model;
+
+/**
+ * Response of a PATCH : the whole updated record as Fusion returned it, passed on to the caller unchanged, and the
+ * compact opportunity read from it for the caches of the function.
+ */
+public class UpdatedOpportunity {
+
+    private final byte[] body;
+    private final Opportunity opportunity;
+
+    public UpdatedOpportunity(byte[] body, Opportunity opportunity) {
+        this.body = body;
+        this.opportunity = opportunity;
+    }
+
+    /**
+     * @return the Fusion response body, JSON
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public Opportunity getOpportunity() {
+        return opportunity;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveLimiterTest {
+
+    @Test
+    public void refusesCallsOverTheLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 2, 1, 10, 2);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+
+        limiter.release(10, false);
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void growsByOneEveryLimitSuccesses() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 4, 1, 10, 2);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(10, false);
+        }
+        assertEquals(4, limiter.getLimit());
+        // Rounding, 1/4 + 1/4.25 + ... reaches one a call later
+        limiter.tryAcquire();
+        limiter.release(10, false);
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    public void neverGrowsPastTheMaximum() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 3, 1, 3, 2);
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire();
+            limiter.release(10, false);
+        }
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void dropsCutTheLimitDownToTheMinimum() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 10, 2, 20, 2);
+        limiter.tryAcquire();
+        limiter.release(10, true);
+        assertEquals(7, limiter.getLimit());
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire();
+            limiter.release(10, true);
+        }
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void slowCallsCutTheLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 10, 1, 20, 2);
+        limiter.tryAcquire();
+        limiter.release(100, false);
+        limiter.tryAcquire();
+        // Over twice the baseline of 100ms
+        limiter.release(250, false);
+        assertEquals(7, limiter.getLimit());
+    }
+
+    @Test
+    public void initialLimitIsClamped() {
+        assertEquals(5, new AdaptiveLimiter("test", 50, 1, 5, 2).getLimit());
+        assertEquals(2, new AdaptiveLimiter("test", 0, 2, 5, 2).getLimit());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.example.saas.fn.cloudnativesaas.model.Opportunity;
+import com.oracle.idcs.oauth.util.Deadline;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.saas.fn.cloudnativesaas.FakeFusion.opportunity;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DetailPrefetcherTest {
+
+    @Before
+    public void resetClient() {
+        SaaSHelper.init(FusionClientConfig.defaults());
+    }
+
+    private static List<Opportunity> listed(int count) {
+        List<Opportunity> listed = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            Opportunity opportunity = new Opportunity();
+            opportunity.setOptyNumber(String.valueOf(i));
+            listed.add(opportunity);
+        }
+        return listed;
+    }
+
+    private static void awaitQueries(FakeFusion fusion, int count) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (fusion.queries.size() < count && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        // Lets the last fetch store its row
+        Thread.sleep(100);
+    }
+
+    @Test
+    public void servesPrefetchedRows() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(q -> new FakeFusion.Reply(200, opportunity("1", "OPEN", "2020-01-01T00:00:00+00:00")))) {
+            DetailPrefetcher prefetcher = new DetailPrefetcher(2, 60000, 100, 5000);
+            prefetcher.prefetch("u", "t", fusion.url(), listed(1));
+            awaitQueries(fusion, 1);
+
+            assertEquals("1", prefetcher.get("u", "1").getOptyNumber());
+            assertNull(prefetcher.get("other", "1"));
+        }
+    }
+
+    @Test
+    public void failedPrefetchesDoNotOpenTheBreaker() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(q -> new FakeFusion.Reply(503, "{}"))) {
+            DetailPrefetcher prefetcher = new DetailPrefetcher(2, 60000, 100, 5000);
+            prefetcher.prefetch("u", "t", fusion.url(), listed(10));
+            awaitQueries(fusion, 10);
+        }
+        // Far more failures than fusion_breaker_failures, yet the users' requests still go to Fusion
+        try (FakeFusion fusion = new FakeFusion(q -> new FakeFusion.Reply(200, opportunity("11", "OPEN", "2020-01-01T00:00:00+00:00")))) {
+            assertNotNull(SaaSHelper.querySingleOpty("u", "t", fusion.url(), "11"));
+        }
+    }
+
+    @Test
+    public void prefetchesAreGivenUpPastTheInvocationDeadline() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(q -> new FakeFusion.Reply(200, opportunity("1", "OPEN", "2020-01-01T00:00:00+00:00")))) {
+            DetailPrefetcher prefetcher = new DetailPrefetcher(2, 60000, 100, 5000);
+            try (Deadline.Scope scope = Deadline.after(0).enter()) {
+                prefetcher.prefetch("u", "t", fusion.url(), listed(3));
+            }
+            Thread.sleep(200);
+
+            assertTrue(fusion.queries.isEmpty());
+            assertNull(prefetcher.get("u", "1"));
+        }
+    }
+
+    @Test
+    public void prefetchesAreGivenUpPastTheirBudget() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(q -> new FakeFusion.Reply(200, opportunity("1", "OPEN", "2020-01-01T00:00:00+00:00")))) {
+            // Far more time left to the invocation than the budget of the prefetches
+            DetailPrefetcher prefetcher = new DetailPrefetcher(2, 60000, 100, 0);
+            try (Deadline.Scope scope = Deadline.after(60000).enter()) {
+                prefetcher.prefetch("u", "t", fusion.url(), listed(3));
+            }
+            Thread.sleep(200);
+
+            assertTrue(fusion.queries.isEmpty());
+            assertNull(prefetcher.get("u", "1"));
+        }
+    }
+
+    @Test
+    public void putRowsAreNotOverwritten() {
+        DetailPrefetcher prefetcher = new DetailPrefetcher(1, 60000, 100, 5000);
+        Opportunity updated = listed(1).get(0);
+        updated.setName("updated");
+        prefetcher.put("u", updated);
+        prefetcher.prefetch("u", "t", "http://127.0.0.1:1", Collections.singletonList(updated));
+
+        assertEquals("updated", prefetcher.get("u", "1").getName());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Fusion REST endpoint for the tests : answers every request with the status and body the handler returns for its
+ * decoded query parameters, and records the queries received.
+ */
+class FakeFusion implements AutoCloseable {
+
+    /**
+     * Status and JSON body of a response
+     */
+    static class Reply {
+        final int status;
+        final String body;
+
+        Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private final HttpServer server;
+    final List<Map<String, String>> queries = new CopyOnWriteArrayList<>();
+
+    FakeFusion(Function<Map<String, String>, Reply> handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            Map<String, String> query = parse(exchange.getRequestURI().getRawQuery());
+            queries.add(query);
+            Reply reply = handler.apply(query);
+            byte[] body = reply.body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(reply.status, body.length == 0 ? -1 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param items : Opportunities, as JSON objects
+     */
+    static String page(boolean hasMore, String... items) {
+        return ("{'items':[" + String.join(",", items) + "],'count':" + items.length + ",'hasMore':" + hasMore + "}")
+                .replace('\'', '"');
+    }
+
+    static String opportunity(String optyNumber, String status, String lastUpdateDate) {
+        return ("{'OptyNumber':'" + optyNumber + "','Name':'Opty " + optyNumber + "','StatusCode':'" + status
+                + "','LastUpdateDate':'" + lastUpdateDate + "'}").replace('\'', '"');
+    }
+
+    private static Map<String, String> parse(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery != null) {
+            for (String parameter : rawQuery.split("&")) {
+                int equals = parameter.indexOf('=');
+                String name = equals < 0 ? parameter : parameter.substring(0, equals);
+                String value = equals < 0 ? "" : parameter.substring(equals + 1);
+                query.put(name, URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.example.saas.fn.cloudnativesaas.model.Opportunity;
+import com.example.saas.fn.cloudnativesaas.model.OpportunityList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.stream.Collectors;
+
+import static com.example.saas.fn.cloudnativesaas.FakeFusion.opportunity;
+import static com.example.saas.fn.cloudnativesaas.FakeFusion.page;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OpportunityMirrorTest {
+
+    @Before
+    public void resetClient() {
+        SaaSHelper.init(FusionClientConfig.defaults());
+    }
+
+    private static String numbers(OpportunityList list) {
+        return list.getItems().stream().map(Opportunity::getOptyNumber).collect(Collectors.joining(","));
+    }
+
+    @Test
+    public void pagesAndSortsTheFullLoad() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(q -> new FakeFusion.Reply(200, "0".equals(q.get("offset"))
+                ? page(true, opportunity("3", "OPEN", "2020-01-01T00:00:00+00:00"), opportunity("1", "WON", "2020-01-02T00:00:00+00:00"))
+                : page(false, opportunity("2", "LOST", "2020-01-03T00:00:00+00:00"))))) {
+            OpportunityMirror mirror = new OpportunityMirror(60000, 900000, 60000, 2, 100, 10, null);
+
+            OpportunityList first = mirror.list("u", "t", fusion.url(), Collections.emptySet(), null, 0, 2);
+            assertEquals("1,2", numbers(first));
+            assertTrue(first.isHasMore());
+            assertEquals("3", numbers(mirror.list("u", "t", fusion.url(), Collections.emptySet(), null, 2, 2)));
+            assertEquals("3,2", numbers(mirror.list("u", "t", fusion.url(), Collections.emptySet(), "OptyNumber:desc", 0, 2)));
+            assertEquals("2", numbers(mirror.list("u", "t", fusion.url(), Collections.singleton("LOST"), null, 0, 10)));
+            // Two pages of the one full load, the copy was fresh for the other requests
+            assertEquals(2, fusion.queries.size());
+        }
+    }
+
+    @Test
+    public void deltaUpsertsAndDropsRowsLeavingTheDefaultStatuses() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(q -> new FakeFusion.Reply(200, q.get("q").startsWith("LastUpdateDate")
+                ? page(false, opportunity("1", "CANCELLED", "2020-01-05T00:00:00+00:00"), opportunity("4", "OPEN", "2020-01-05T00:00:00+00:00"))
+                : page(false, opportunity("1", "WON", "2020-01-01T00:00:00+00:00"), opportunity("2", "OPEN", "2020-01-02T00:00:00+00:00"))))) {
+            // Always stale, every list syncs
+            OpportunityMirror mirror = new OpportunityMirror(0, 900000, 60000, 10, 100, 10, null);
+
+            assertEquals("1,2", numbers(mirror.list("u", "t", fusion.url(), Collections.emptySet(), null, 0, 10)));
+            assertEquals("2,4", numbers(mirror.list("u", "t", fusion.url(), Collections.emptySet(), null, 0, 10)));
+            assertEquals("LastUpdateDate >= '2020-01-02T00:00:00+00:00'", fusion.queries.get(1).get("q"));
+        }
+    }
+
+    @Test
+    public void overflowFallsBackToFusion() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(q -> new FakeFusion.Reply(200,
+                page(false, opportunity("1", "WON", "2020-01-01T00:00:00+00:00"), opportunity("2", "OPEN", "2020-01-01T00:00:00+00:00"))))) {
+            OpportunityMirror mirror = new OpportunityMirror(0, 900000, 60000, 10, 1, 10, null);
+
+            assertNull(mirror.list("u", "t", fusion.url(), Collections.emptySet(), null, 0, 10));
+            // Not paged through again until the next full reload
+            assertNull(mirror.list("u", "t", fusion.url(), Collections.emptySet(), null, 0, 10));
+            assertEquals(1, fusion.queries.size());
+        }
+    }
+
+    @Test
+    public void failedLoadFallsBackAndIsNotRetriedStraightAway() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(q -> new FakeFusion.Reply(500, "{}"))) {
+            OpportunityMirror mirror = new OpportunityMirror(0, 900000, 60000, 10, 100, 10, null);
+
+            assertNull(mirror.list("u", "t", fusion.url(), Collections.emptySet(), null, 0, 10));
+            int attempted = fusion.queries.size();
+            assertNull(mirror.list("u", "t", fusion.url(), Collections.emptySet(), null, 0, 10));
+            assertEquals(attempted, fusion.queries.size());
+        }
+    }
+
+    @Test
+    public void loadOverBudgetCarriesOnWithTheNextRequest() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(q -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new FakeFusion.Reply(200, "0".equals(q.get("offset"))
+                    ? page(true, opportunity("1", "OPEN", "2020-01-01T00:00:00+00:00"))
+                    : page(false, opportunity("2", "WON", "2020-01-02T00:00:00+00:00")));
+        })) {
+            OpportunityMirror mirror = new OpportunityMirror(60000, 900000, 50, 1, 100, 10, null);
+
+            // One page per request, Fusion answers until the copy is complete
+            assertNull(mirror.list("u", "t", fusion.url(), Collections.emptySet(), null, 0, 10));
+            assertEquals("1,2", numbers(mirror.list("u", "t", fusion.url(), Collections.emptySet(), null, 0, 10)));
+            assertEquals("0", fusion.queries.get(0).get("offset"));
+            assertEquals("1", fusion.queries.get(1).get("offset"));
+            assertEquals(2, fusion.queries.size());
+        }
+    }
+
+    @Test
+    public void requestsTheMirrorCannotAnswerFallBackWithoutSyncing() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(q -> new FakeFusion.Reply(200, page(false)))) {
+            OpportunityMirror mirror = new OpportunityMirror(0, 900000, 60000, 10, 100, 10, null);
+
+            assertNull(mirror.list("u", "t", fusion.url(), Collections.singleton("CANCELLED"), null, 0, 10));
+            assertNull(mirror.list("u", "t", fusion.url(), new HashSet<>(Arrays.asList("WON", "CANCELLED")), null, 0, 10));
+            assertNull(mirror.list("u", "t", fusion.url(), Collections.emptySet(), "Revenue:desc", 0, 10));
+            assertTrue(fusion.queries.isEmpty());
+        }
+    }
+
+    @Test
+    public void fusionFallbackGetsTheSameParameters() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(q -> new FakeFusion.Reply(200, page(false, opportunity("9", "CANCELLED", "2020-01-01T00:00:00+00:00"))))) {
+            OpportunityList list = SaaSHelper.queryOptys("t", fusion.url(), new HashSet<>(Arrays.asList("LOST", "CANCELLED")), "Name:desc", 20, 5);
+
+            assertEquals("9", numbers(list));
+            assertFalse(list.isHasMore());
+            assertEquals("StatusCode in ('CANCELLED','LOST')", fusion.queries.get(0).get("q"));
+            assertEquals("Name:desc", fusion.queries.get(0).get("orderBy"));
+            assertEquals("20", fusion.queries.get(0).get("offset"));
+            assertEquals("5", fusion.queries.get(0).get("limit"));
+        }
+    }
+
+    @Test(expected = com.example.saas.fn.cloudnativesaas.exceptions.BadRequestException.class)
+    public void fusionFallbackRejectsExpressions() throws Exception {
+        SaaSHelper.queryOptys("t", "http://127.0.0.1:1", Collections.singleton("WON') or ('1'='1"), null, 0, 10);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.example.saas.fn.cloudnativesaas.exceptions.NotFoundException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestCoalescerTest {
+
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Starts a caller whose call blocks until released
+     */
+    private Future<Object> leader(String key, CountDownLatch started, CountDownLatch release, AtomicInteger calls, Object result) {
+        return executor.submit(() -> coalescer.execute(key, 5000, () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            await(release);
+            return result;
+        }));
+    }
+
+    @Test
+    public void followersShareTheResultOfTheLeader() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        Object result = new Object();
+        Future<Object> leader = leader("k", started, release, calls, result);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Object> follower = executor.submit(() -> coalescer.execute("k", 5000, () -> {
+            calls.incrementAndGet();
+            return new Object();
+        }));
+        // Lets the follower join before the leader completes
+        Thread.sleep(100);
+        release.countDown();
+
+        assertSame(result, leader.get(5, TimeUnit.SECONDS));
+        assertSame(result, follower.get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void followersGetTheFailureOfTheLeader() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Object> leader = executor.submit(() -> coalescer.execute("k", 5000, () -> {
+            started.countDown();
+            await(release);
+            throw new NotFoundException("gone");
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Object> follower = executor.submit(() -> coalescer.execute("k", 5000, Object::new));
+        Thread.sleep(100);
+        release.countDown();
+
+        for (Future<Object> caller : new Future[]{leader, follower}) {
+            try {
+                caller.get(5, TimeUnit.SECONDS);
+                fail("Expected the failure of the leader");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof NotFoundException);
+            }
+        }
+    }
+
+    @Test
+    public void differentKeysAreNotCoalesced() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        Future<Object> leader = leader("user1 GET /x", started, release, calls, "one");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertEquals("two", coalescer.execute("user2 GET /x", 5000, () -> {
+            calls.incrementAndGet();
+            return "two";
+        }));
+        release.countDown();
+        assertEquals("one", leader.get(5, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void completedCallsAreNotKept() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        coalescer.execute("k", 5000, calls::incrementAndGet);
+        coalescer.execute("k", 5000, calls::incrementAndGet);
+        assertEquals(2, calls.get());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestHedgerTest {
+
+    private final List<HttpGet> sent = new CopyOnWriteArrayList<>();
+    private final Supplier<HttpUriRequest> requests = () -> {
+        HttpGet request = new HttpGet("http://fusion/optys");
+        sent.add(request);
+        return request;
+    };
+    private RequestHedger hedger;
+
+    @After
+    public void shutdown() {
+        hedger.shutdown();
+    }
+
+    /**
+     * Records enough fast requests for the hedger to compute its delay
+     */
+    private void warmUp() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            hedger.execute(requests, request -> "fast");
+        }
+        sent.clear();
+    }
+
+    private static String sleep(long ms, String result) throws IOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        return result;
+    }
+
+    @Test
+    public void neverHedgesWithoutEnoughSamples() throws IOException {
+        hedger = new RequestHedger(95, 10, 100, 4);
+        assertEquals("slow", hedger.execute(requests, request -> sleep(200, "slow")));
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void slowRequestIsHedgedAndTheLoserAborted() throws IOException {
+        hedger = new RequestHedger(95, 50, 100, 4);
+        warmUp();
+        long start = System.currentTimeMillis();
+        String result = hedger.execute(requests, request -> request == sent.get(0) ? sleep(2000, "primary") : "hedge");
+
+        assertEquals("hedge", result);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(2, sent.size());
+        assertTrue(sent.get(0).isAborted());
+        assertFalse(sent.get(1).isAborted());
+    }
+
+    @Test
+    public void noHedgeWithoutBudget() throws IOException {
+        hedger = new RequestHedger(95, 50, 0, 4);
+        warmUp();
+        assertEquals("primary", hedger.execute(requests, request -> sleep(200, "primary")));
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void failedRequestLetsTheOtherOneWin() throws IOException {
+        hedger = new RequestHedger(95, 50, 100, 4);
+        warmUp();
+        String result = hedger.execute(requests, request -> {
+            if (request == sent.get(0)) {
+                sleep(100, null);
+                throw new IOException("reset");
+            }
+            return sleep(200, "hedge");
+        });
+        assertEquals("hedge", result);
+    }
+
+    @Test
+    public void everyRequestFailingThrowsTheFirstFailure() throws IOException {
+        hedger = new RequestHedger(95, 50, 100, 4);
+        warmUp();
+        try {
+            hedger.execute(requests, request -> {
+                if (request == sent.get(0)) {
+                    sleep(100, null);
+                    throw new IOException("primary");
+                }
+                sleep(300, null);
+                throw new IOException("hedge");
+            });
+            fail("Expected the failure of the primary");
+        } catch (IOException e) {
+            assertEquals("primary", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ResponseCompressionTest {
+
+    private static String negotiate(String acceptEncoding) {
+        return ResponseCompression.negotiate(Optional.ofNullable(acceptEncoding));
+    }
+
+    @Test
+    public void prefersGzipOverDeflate() {
+        assertEquals("gzip", negotiate("deflate, gzip"));
+        assertEquals("deflate", negotiate("deflate"));
+        assertNull(negotiate("br"));
+        assertNull(negotiate(null));
+    }
+
+    @Test
+    public void refusedEncodingIsNeverPicked() {
+        assertEquals("deflate", negotiate("gzip;q=0, deflate"));
+        assertNull(negotiate("gzip;q=0.0"));
+    }
+
+    @Test
+    public void wildcardDoesNotOverrideRefusal() {
+        assertEquals("gzip", negotiate("*"));
+        assertNull(negotiate("gzip;q=0, *"));
+        assertEquals("deflate", negotiate("gzip;q=0, *, deflate"));
+        assertNull(negotiate("*;q=0"));
+    }
+}
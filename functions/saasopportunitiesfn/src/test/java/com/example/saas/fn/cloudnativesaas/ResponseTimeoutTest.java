@@ -0,0 +1,128 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.oracle.idcs.oauth.util.Deadline;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A body trickling in, one byte every 200ms, must not outlive the timeout of the call, nor an abort
+ */
+public class ResponseTimeoutTest {
+
+    private HttpServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        SaaSHelper.init(FusionClientConfig.defaults());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write("{\"items\":[".getBytes(StandardCharsets.UTF_8));
+                for (int i = 0; i < 100; i++) {
+                    out.write(' ');
+                    out.flush();
+                    Thread.sleep(200);
+                }
+                out.write("],\"hasMore\":false}".getBytes(StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                // Client gone
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Test
+    public void http2TransportBoundsTheBodyRead() throws Exception {
+        RequestBuilder request = RequestBuilder.get().setUri(url() + "/optys")
+                .setConfig(RequestConfig.custom().setSocketTimeout(1000).build());
+        long start = System.currentTimeMillis();
+        try (Http2Transport.Exchange exchange = new Http2Transport(1000).send(request.build());
+             InputStream body = exchange.getBody()) {
+            assertEquals(200, exchange.getStatus());
+            body.readAllBytes();
+            fail("Expected the body read to time out");
+        } catch (HttpTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test
+    public void abortClosesTheBodyOfALateResponse() throws Exception {
+        CountDownLatch clientGone = new CountDownLatch(1);
+        server.createContext("/late", exchange -> {
+            try (OutputStream out = exchange.getResponseBody()) {
+                Thread.sleep(300);
+                exchange.sendResponseHeaders(200, 0);
+                for (int i = 0; i < 100; i++) {
+                    out.write(' ');
+                    out.flush();
+                    Thread.sleep(200);
+                }
+            } catch (Exception e) {
+                clientGone.countDown();
+            }
+        });
+        HttpUriRequest request = RequestBuilder.get().setUri(url() + "/late")
+                .setConfig(RequestConfig.custom().setSocketTimeout(30000).build()).build();
+        ScheduledExecutorService aborter = Executors.newSingleThreadScheduledExecutor();
+        aborter.schedule(() -> ((HttpRequestBase) request).abort(), 50, TimeUnit.MILLISECONDS);
+        try {
+            new Http2Transport(1000).send(request);
+            fail("Expected the aborted request to fail");
+        } catch (IOException e) {
+            // The headers only come after the abort, nobody reads the body
+            assertTrue(clientGone.await(10, TimeUnit.SECONDS));
+        } finally {
+            aborter.shutdown();
+        }
+    }
+
+    @Test
+    public void queryGivesUpWithTheInvocation() throws Exception {
+        long start = System.currentTimeMillis();
+        try (Deadline.Scope scope = Deadline.after(1000).enter()) {
+            SaaSHelper.queryOptys("t", url());
+            fail("Expected the query to time out");
+        } catch (Exception e) {
+            // Socket reads alone would have waited for the whole 20s body
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+}
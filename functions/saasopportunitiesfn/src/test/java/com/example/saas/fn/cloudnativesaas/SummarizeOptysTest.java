@@ -0,0 +1,76 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas;
+
+import com.example.saas.fn.cloudnativesaas.model.OpportunitySummary;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.saas.fn.cloudnativesaas.FakeFusion.opportunity;
+import static com.example.saas.fn.cloudnativesaas.FakeFusion.page;
+import static org.junit.Assert.assertEquals;
+
+public class SummarizeOptysTest {
+
+    private static final List<String> BY_STATUS = Collections.singletonList("StatusCode");
+
+    @Before
+    public void resetClient() {
+        SaaSHelper.init(FusionClientConfig.defaults());
+    }
+
+    private static FakeFusion.Reply twoPages(Map<String, String> query) {
+        try {
+            // Slow enough for concurrent identical summaries to be coalesced
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if ("0".equals(query.get("offset"))) {
+            return new FakeFusion.Reply(200, page(true, opportunity("1", "OPEN", "2020-01-01T00:00:00+00:00"),
+                    opportunity("2", "WON", "2020-01-01T00:00:00+00:00")));
+        }
+        if ("2".equals(query.get("offset"))) {
+            return new FakeFusion.Reply(200, page(false, opportunity("3", "OPEN", "2020-01-01T00:00:00+00:00")));
+        }
+        return new FakeFusion.Reply(200, page(false));
+    }
+
+    @Test
+    public void summarizesEveryPage() throws Exception {
+        try (FakeFusion fusion = new FakeFusion(SummarizeOptysTest::twoPages)) {
+            OpportunitySummary summary = SaaSHelper.summarizeOptys("t", fusion.url(), BY_STATUS, 2);
+
+            assertEquals(3, summary.getCount());
+            assertEquals(2, summary.getGroup("OPEN").getCount());
+            assertEquals(1, summary.getGroup("WON").getCount());
+        }
+    }
+
+    @Test
+    public void coalescedSummariesEachCountEveryPage() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try (FakeFusion fusion = new FakeFusion(SummarizeOptysTest::twoPages)) {
+            Future<OpportunitySummary>[] summaries = new Future[3];
+            for (int i = 0; i < summaries.length; i++) {
+                summaries[i] = executor.submit(() -> SaaSHelper.summarizeOptys("t", fusion.url(), BY_STATUS, 2));
+            }
+            for (Future<OpportunitySummary> summary : summaries) {
+                assertEquals(3, summary.get(10, TimeUnit.SECONDS).getCount());
+                assertEquals(2, summary.get().getGroup("OPEN").getCount());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+Copyright © 2020, Oracle and/or its affiliates. All rights reserved.
+Licensed under the Universal Permissive License v 1.0 as shown at https://oss.oracle.com/licenses/upl.
+*/
+package com.example.saas.fn.cloudnativesaas.model;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OpportunityJsonTest {
+
+    private static InputStream json(String json) {
+        return new ByteArrayInputStream(json.replace('\'', '"').getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void readsListSkippingLinksAndUnknownFields() throws IOException {
+        OpportunityList list = OpportunityJson.readList(json("{'items':[{'OptyNumber':'1','Name':'A','Revenue':5,"
+                + "'links':[{'rel':'self'}]},{'OptyNumber':'2','StatusCode':null}],'count':2,'hasMore':true,"
+                + "'limit':10,'offset':0,'links':[]}"));
+        assertEquals(2, list.getItems().size());
+        assertEquals("1", list.getItems().get(0).getOptyNumber());
+        assertEquals("A", list.getItems().get(0).getName());
+        assertNull(list.getItems().get(1).getStatusCode());
+        assertEquals(2, list.getCount());
+        assertTrue(list.isHasMore());
+    }
+
+    @Test
+    public void readsSingleWithExpandedChildren() throws IOException {
+        Opportunity opportunity = OpportunityJson.readSingle(json("{'OptyNumber':'7','ChildRevenue':"
+                + "{'items':[{'RevnAmount':10}],'count':1},'Note':[{'NoteTxt':'x'}]}"));
+        assertEquals("7", opportunity.getOptyNumber());
+        assertEquals(10, opportunity.getChildren().get("ChildRevenue").get(0).get("RevnAmount"));
+        assertEquals("x", opportunity.getChildren().get("Note").get(0).get("NoteTxt"));
+    }
+
+    @Test
+    public void readUpdatedKeepsTheWholeRecord() throws IOException {
+        String record = "{\"OptyNumber\":\"7\",\"Name\":\"B\",\"OptyId\":300,\"WinProb\":50}";
+        UpdatedOpportunity updated = OpportunityJson.readUpdated(json(record));
+        assertArrayEquals(record.getBytes(StandardCharsets.UTF_8), updated.getBody());
+        assertEquals("7", updated.getOpportunity().getOptyNumber());
+        assertEquals("B", updated.getOpportunity().getName());
+    }
+
+    @Test
+    public void summarizesOnePageOnly() throws IOException {
+        List<String> groupBy = Collections.singletonList("StatusCode");
+        OpportunitySummary running = new OpportunitySummary(groupBy);
+        SummaryPage page = OpportunityJson.summarizePage(json("{'items':[{'StatusCode':'OPEN','Revenue':5},"
+                + "{'StatusCode':'WON','Revenue':2.5},{'Revenue':1}],'hasMore':true}"), groupBy);
+        assertTrue(page.isHasMore());
+        assertEquals(3, page.getSummary().getCount());
+        assertEquals(0, running.getCount());
+
+        running.merge(page.getSummary());
+        running.merge(page.getSummary());
+        assertEquals(6, running.getCount());
+        assertEquals(new BigDecimal("17.0"), running.getRevenue());
+        assertEquals(2, running.getGroup("OPEN").getCount());
+        assertEquals(new BigDecimal("10"), running.getGroup("OPEN").getRevenue());
+        assertEquals(2, running.getGroup(OpportunitySummary.UNSPECIFIED).getCount());
+    }
+
+    @Test
+    public void keepsEachDimensionValueApart() throws IOException {
+        List<String> groupBy = Arrays.asList("SalesStage", "CurrencyCode");
+        OpportunitySummary summary = OpportunityJson.summarizePage(json("{'items':[{'SalesStage':'A/B','CurrencyCode':'USD'},"
+                + "{'SalesStage':'A','CurrencyCode':'B/USD'}]}"), groupBy).getSummary();
+        assertEquals(2, summary.getGroups().size());
+        assertEquals(1, summary.getGroup("A/B", "USD").getCount());
+        assertEquals(Arrays.asList("A", "B/USD"), summary.getGroup("A", "B/USD").getValues());
+    }
+
+    @Test
+    public void emptySummaryPageHasNoMore() throws IOException {
+        assertFalse(OpportunityJson.summarizePage(json("{'items':[],'hasMore':true}"),
+                Collections.singletonList("StatusCode")).isHasMore());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnexpectedJson() throws IOException {
+        OpportunityJson.readList(json("[]"));
+    }
+
+    @Test
+    public void emptyListHasNoMore() throws IOException {
+        assertFalse(OpportunityJson.readList(json("{'items':[]}")).isHasMore());
+    }
+}